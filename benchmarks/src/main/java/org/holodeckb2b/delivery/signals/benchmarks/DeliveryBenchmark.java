@@ -0,0 +1,120 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.holodeckb2b.backend.file.NotifyOperation;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the complete delivery of a Signal by the {@link NotifyOperation}, including writing the SMD file.
+ * <p>To measure the delivery method and not the disk, the files should be written to a memory based file system. The
+ * directory to use can be set using the <code>smd.benchmark.dir</code> system property. By default a directory in
+ * <code>/dev/shm</code> is used when available, otherwise one in the system's temporary directory. The written files
+ * are removed after each iteration and a temporary directory is removed when the benchmark is done.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryBenchmark {
+
+    @Param({ "jaxb", "stax" })
+    public String serializer;
+
+    @Param({ "ERROR_1", "ERROR_10", "RECEIPT_SMALL", "RECEIPT_LARGE" })
+    public SignalFixtures.Kind kind;
+
+    @Param({ "false", "true" })
+    public boolean includeReceiptContent;
+
+    private Path            targetDir;
+    private boolean         isTempDir;
+    private NotifyOperation deliveryMethod;
+    private ISignalMessage  signal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MessageDeliveryException {
+        final String dir = System.getProperty("smd.benchmark.dir");
+        final Path shm = Paths.get("/dev/shm");
+        isTempDir = dir == null;
+        targetDir = dir != null ? Files.createDirectories(Paths.get(dir))
+                                : Files.isDirectory(shm) ? Files.createTempDirectory(shm, "smd-bench")
+                                                         : Files.createTempDirectory("smd-bench");
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("targetDirectory", targetDir.toString());
+        settings.put("serializer", serializer);
+        settings.put("includeReceiptContent", Boolean.toString(includeReceiptContent));
+        // All fixtures have the same message id, so use unique names to prevent collisions in the file names
+        settings.put("fileNamePattern", "{msgId}-{nodeId}-{seq}");
+        deliveryMethod = new NotifyOperation();
+        deliveryMethod.init(settings);
+        signal = SignalFixtures.create(kind);
+    }
+
+    @Benchmark
+    public void deliver() throws MessageDeliveryException {
+        deliveryMethod.deliver(signal);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeFiles() throws IOException {
+        clean(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        deliveryMethod.shutdown();
+        clean(isTempDir);
+    }
+
+    /**
+     * Removes the written files and optionally the target directory itself.
+     */
+    private void clean(final boolean removeDir) throws IOException {
+        try (Stream<Path> files = Files.walk(targetDir)) {
+            files.sorted(Comparator.reverseOrder())
+                 .filter(p -> removeDir || !p.equals(targetDir))
+                 .forEach(p -> p.toFile().delete());
+        }
+    }
+}
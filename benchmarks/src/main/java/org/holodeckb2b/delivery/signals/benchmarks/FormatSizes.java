@@ -0,0 +1,67 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Prints the size in bytes of the SMD documents for each of the fixtures, both Errors and Receipts, in each of the
+ * formats, followed by the size of the JSON and CBOR documents relative to the XML document written by the streaming
+ * serializer. As the content option only applies to Receipts, it is only varied for them. Complements the {@link
+ * SerializerBenchmark} which measures the throughput. Run using <code>java -cp target/benchmarks.jar
+ * org.holodeckb2b.delivery.signals.benchmarks.FormatSizes</code>.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class FormatSizes {
+
+    private static final String[] SERIALIZERS = { "jaxb", "stax", "json", "cbor" };
+
+    private FormatSizes() {}
+
+    public static void main(final String[] args) throws IOException {
+        System.out.printf("%-16s %-8s", "Signal", "content");
+        for (String s : SERIALIZERS)
+            System.out.printf(" %8s", s);
+        System.out.printf(" %8s %8s%n", "json/xml", "cbor/xml");
+        for (SignalFixtures.Kind kind : SignalFixtures.Kind.values()) {
+            final ISignalMessage signal = SignalFixtures.create(kind);
+            for (boolean includeContent : signal instanceof IReceipt ? new boolean[] { false, true }
+                                                                     : new boolean[] { false }) {
+                System.out.printf("%-16s %-8s", kind, includeContent);
+                final int[] sizes = new int[SERIALIZERS.length];
+                for (int i = 0; i < SERIALIZERS.length; i++) {
+                    sizes[i] = size(SerializerBenchmark.create(SERIALIZERS[i], includeContent), signal);
+                    System.out.printf(" %8d", sizes[i]);
+                }
+                System.out.printf(" %8.2f %8.2f%n", (double) sizes[2] / sizes[1], (double) sizes[3] / sizes[1]);
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the document written by the given serializer for the given Signal.
+     */
+    private static <T> int size(final ISMDSerializer<T> serializer, final ISignalMessage signal) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.write(serializer.createSMD(signal), out);
+        return out.size();
+    }
+}
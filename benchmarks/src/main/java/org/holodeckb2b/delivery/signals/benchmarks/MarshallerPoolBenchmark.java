@@ -0,0 +1,113 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.holodeckb2b.delivery.signals.smd.ObjectFactory;
+import org.holodeckb2b.delivery.signals.smd.SignalMessage;
+import org.holodeckb2b.delivery.signals.utils.MarshallerPool;
+import org.holodeckb2b.delivery.signals.utils.SMDFactory;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways of getting a JAXB {@link Marshaller} for writing the SMD. The <i>newContext</i> benchmark creates
+ * a new {@link JAXBContext} and marshaller for each document as was done before version 2.1.0, <i>newMarshaller</i>
+ * uses the shared context but creates a new marshaller for each document and <i>pooledMarshaller</i> borrows the
+ * marshaller from a {@link MarshallerPool}. The output is discarded. Run with multiple threads, e.g. <code>-t 8</code>,
+ * to include the contention on the pool.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarshallerPoolBenchmark {
+
+    @Param({ "ERROR_1", "RECEIPT_SMALL" })
+    public SignalFixtures.Kind kind;
+
+    /**
+     * Output stream that discards all data written to it
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private JAXBElement<SignalMessage>  smd;
+    private MarshallerPool              pool;
+
+    @Setup
+    public void setUp() throws JAXBException {
+        final ISignalMessage signal = SignalFixtures.create(kind);
+        smd = new ObjectFactory().createSignalMessage(signal instanceof IReceipt ?
+                                                                SMDFactory.createSMD((IReceipt) signal, false)
+                                                              : SMDFactory.createSMD(signal));
+        pool = new MarshallerPool();
+        // Make sure the shared context is created before measuring
+        MarshallerPool.getContext();
+    }
+
+    @Benchmark
+    public void newContext() throws JAXBException {
+        final Marshaller m = JAXBContext.newInstance(SignalMessage.class.getPackage().getName()).createMarshaller();
+        m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        m.marshal(smd, DISCARD);
+    }
+
+    @Benchmark
+    public void newMarshaller() throws JAXBException {
+        final Marshaller m = MarshallerPool.getContext().createMarshaller();
+        m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        m.marshal(smd, DISCARD);
+    }
+
+    @Benchmark
+    public void pooledMarshaller() throws JAXBException {
+        final Marshaller m = pool.borrow();
+        try {
+            m.marshal(smd, DISCARD);
+        } finally {
+            pool.release(m);
+        }
+    }
+}
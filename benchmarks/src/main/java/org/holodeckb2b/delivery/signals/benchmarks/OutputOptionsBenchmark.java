@@ -0,0 +1,149 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.holodeckb2b.backend.file.NotifyOperation;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of the delivery of a Signal by the {@link NotifyOperation} with the different output options,
+ * i.e. with and without formatting, write buffer size and compression. The complete Receipt content is included, as
+ * this results in the largest documents. The size of the files written with each of the options is reported by
+ * {@link OutputSizes}.
+ * <p>The compression is specified as <i>none</i> or <i>gzip-&lt;level&gt;</i>. Like the {@link DeliveryBenchmark} the
+ * files are written to <code>/dev/shm</code> when available, another directory can be set using the
+ * <code>smd.benchmark.dir</code> system property.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputOptionsBenchmark {
+
+    @Param({ "jaxb", "stax" })
+    public String serializer;
+
+    @Param({ "ERROR_1", "RECEIPT_SMALL", "RECEIPT_LARGE" })
+    public SignalFixtures.Kind kind;
+
+    @Param({ "true", "false" })
+    public boolean formattedOutput;
+
+    @Param({ "8192", "65536" })
+    public int writeBufferSize;
+
+    @Param({ "none", "gzip-1", "gzip-6" })
+    public String compression;
+
+    private Path            targetDir;
+    private boolean         isTempDir;
+    private NotifyOperation deliveryMethod;
+    private ISignalMessage  signal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MessageDeliveryException {
+        final String dir = System.getProperty("smd.benchmark.dir");
+        final Path shm = Paths.get("/dev/shm");
+        isTempDir = dir == null;
+        targetDir = dir != null ? Files.createDirectories(Paths.get(dir))
+                                : Files.isDirectory(shm) ? Files.createTempDirectory(shm, "smd-bench")
+                                                         : Files.createTempDirectory("smd-bench");
+        final Map<String, String> settings = settings(serializer, formattedOutput, writeBufferSize, compression);
+        settings.put("targetDirectory", targetDir.toString());
+        deliveryMethod = new NotifyOperation();
+        deliveryMethod.init(settings);
+        signal = SignalFixtures.create(kind);
+    }
+
+    /**
+     * Creates the settings of the delivery method for the given output options.
+     *
+     * @param serializer        The serializer to use
+     * @param formattedOutput   Indicates whether the XML should be formatted
+     * @param writeBufferSize   The size of the write buffer
+     * @param compression       The compression, <i>none</i> or <i>gzip-&lt;level&gt;</i>
+     * @return                  The settings, without target directory
+     */
+    static Map<String, String> settings(final String serializer, final boolean formattedOutput,
+                                        final int writeBufferSize, final String compression) {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("serializer", serializer);
+        settings.put("includeReceiptContent", "true");
+        settings.put("formattedOutput", Boolean.toString(formattedOutput));
+        settings.put("writeBufferSize", Integer.toString(writeBufferSize));
+        if (compression.startsWith("gzip-")) {
+            settings.put("compression", "gzip");
+            settings.put("compressionLevel", compression.substring(5));
+        }
+        // All fixtures have the same message id, so use unique names to prevent collisions in the file names
+        settings.put("fileNamePattern", "{msgId}-{nodeId}-{seq}");
+        return settings;
+    }
+
+    @Benchmark
+    public void deliver() throws MessageDeliveryException {
+        deliveryMethod.deliver(signal);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeFiles() throws IOException {
+        clean(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        deliveryMethod.shutdown();
+        clean(isTempDir);
+    }
+
+    /**
+     * Removes the written files and optionally the target directory itself.
+     */
+    private void clean(final boolean removeDir) throws IOException {
+        try (Stream<Path> files = Files.walk(targetDir)) {
+            files.sorted(Comparator.reverseOrder())
+                 .filter(p -> removeDir || !p.equals(targetDir))
+                 .forEach(p -> p.toFile().delete());
+        }
+    }
+}
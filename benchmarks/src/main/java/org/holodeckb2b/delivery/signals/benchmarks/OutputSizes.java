@@ -0,0 +1,90 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.holodeckb2b.backend.file.NotifyOperation;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+
+/**
+ * Prints the size in bytes of the SMD files written by the {@link NotifyOperation} for each of the fixtures with the
+ * different output options, i.e. formatted or not and the compression. Complements the {@link OutputOptionsBenchmark}
+ * which measures the latency. The complete Receipt content is included. Run using <code>java -cp
+ * target/benchmarks.jar org.holodeckb2b.delivery.signals.benchmarks.OutputSizes [jaxb|stax]</code>, by default the
+ * StAX serializer is used.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class OutputSizes {
+
+    private static final String[] COMPRESSIONS = { "none", "gzip-1", "gzip-6", "gzip-9" };
+
+    /**
+     * The write buffer size, which does not change the size of the files
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    private OutputSizes() {}
+
+    public static void main(final String[] args) throws IOException, MessageDeliveryException {
+        final String serializer = args.length > 0 ? args[0] : "stax";
+        System.out.printf("%-15s %-9s", "Signal", "formatted");
+        for (String c : COMPRESSIONS)
+            System.out.printf(" %8s", c);
+        System.out.println();
+        final Path dir = Files.createTempDirectory("smd-sizes");
+        try {
+            for (SignalFixtures.Kind kind : SignalFixtures.Kind.values())
+                for (boolean formatted : new boolean[] { true, false }) {
+                    System.out.printf("%-15s %-9s", kind, formatted);
+                    for (String c : COMPRESSIONS)
+                        System.out.printf(" %8d", size(dir, kind, serializer, formatted, c));
+                    System.out.println();
+                }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the file written for a Signal of the given kind with the given output options.
+     */
+    private static long size(final Path dir, final SignalFixtures.Kind kind, final String serializer,
+                             final boolean formatted, final String compression)
+                                                                    throws IOException, MessageDeliveryException {
+        final Path target = Files.createTempDirectory(dir, "out");
+        final Map<String, String> settings = OutputOptionsBenchmark.settings(serializer, formatted, BUFFER_SIZE,
+                                                                             compression);
+        settings.put("targetDirectory", target.toString());
+        final NotifyOperation deliveryMethod = new NotifyOperation();
+        deliveryMethod.init(settings);
+        try {
+            deliveryMethod.deliver(SignalFixtures.create(kind));
+        } finally {
+            deliveryMethod.shutdown();
+        }
+        try (Stream<Path> files = Files.list(target)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+}
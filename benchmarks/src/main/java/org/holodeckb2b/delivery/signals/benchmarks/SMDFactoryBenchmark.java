@@ -0,0 +1,66 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.holodeckb2b.delivery.signals.smd.SignalMessage;
+import org.holodeckb2b.delivery.signals.utils.SMDFactory;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the creation of the JAXB object model of the SMD by the {@link SMDFactory}, i.e. without serialising it.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SMDFactoryBenchmark {
+
+    @Param({ "ERROR_1", "ERROR_10", "RECEIPT_SMALL", "RECEIPT_LARGE" })
+    public SignalFixtures.Kind kind;
+
+    @Param({ "false", "true" })
+    public boolean includeReceiptContent;
+
+    private ISignalMessage signal;
+
+    @Setup
+    public void setUp() {
+        signal = SignalFixtures.create(kind);
+    }
+
+    @Benchmark
+    public SignalMessage createSMD() {
+        return signal instanceof IReceipt ? SMDFactory.createSMD((IReceipt) signal, includeReceiptContent)
+                                          : SMDFactory.createSMD(signal);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.delivery.signals.utils.JAXBSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.MarshallerPool;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialisation of the SMD by the available {@link ISMDSerializer}s, including the ones for the JSON and
+ * CBOR formats, for both Errors and Receipts. The size of the documents in the different formats is reported by {@link
+ * FormatSizes}. The <i>write</i> benchmark only measures the serialisation of an already created SMD, the
+ * <i>createAndWrite</i> benchmark includes its creation. The output is discarded, only its size is returned.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+
+    @Param({ "jaxb", "stax", "json", "cbor" })
+    public String serializer;
+
+    @Param({ "ERROR_1", "ERROR_10", "RECEIPT_SMALL", "RECEIPT_LARGE", "RECEIPT_MULTIPLE" })
+    public SignalFixtures.Kind kind;
+
+    @Param({ "false", "true" })
+    public boolean includeReceiptContent;
+
+    private ISignalMessage          signal;
+    private ISMDSerializer<Object>  smdSerializer;
+    private Object                  smd;
+
+    /**
+     * Output stream that discards the data written to it and only counts the number of bytes
+     */
+    private static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setUp() throws IOException {
+        signal = SignalFixtures.create(kind);
+        smdSerializer = (ISMDSerializer<Object>) create(serializer, includeReceiptContent);
+        smd = smdSerializer.createSMD(signal);
+    }
+
+    /**
+     * Creates the serializer with the given name.
+     *
+     * @param name                  The name of the serializer, i.e. <i>jaxb</i>, <i>stax</i>, <i>json</i> or
+     *                              <i>cbor</i>
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included
+     * @return                      The serializer
+     */
+    static ISMDSerializer<?> create(final String name, final boolean includeReceiptContent) {
+        switch (name) {
+        case "stax" :
+            return new StAXSerializer(includeReceiptContent);
+        case "json" :
+            return new JSONSerializer(includeReceiptContent);
+        case "cbor" :
+            return new CBORSerializer(includeReceiptContent);
+        default :
+            return new JAXBSerializer(includeReceiptContent, new MarshallerPool());
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        final CountingSink out = new CountingSink();
+        smdSerializer.write(smd, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long createAndWrite() throws IOException {
+        final CountingSink out = new CountingSink();
+        smdSerializer.write(smdSerializer.createSMD(signal), out);
+        return out.count;
+    }
+}
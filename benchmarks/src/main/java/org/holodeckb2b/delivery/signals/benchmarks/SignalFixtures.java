@@ -0,0 +1,253 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.om.OMNamespace;
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Creates the synthetic Signals used in the benchmarks. The message model objects are created as dynamic proxies that
+ * only return values for the properties used when creating the SMD, so the fixtures do not depend on the other
+ * methods of the Holodeck B2B interfaces.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class SignalFixtures {
+
+    private static final String EBBP_NS = "http://docs.oasis-open.org/ebxml-bp/ebbp-signals-2.0";
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String SWA_TRANSFORM =
+                "http://docs.oasis-open.org/wss/oasis-wss-SwAProfile-1.1#Attachment-Content-Signature-Transform";
+
+    /**
+     * The kinds of Signals available as fixture
+     */
+    public enum Kind {
+        /**
+         * Error Signal with one error
+         */
+        ERROR_1,
+        /**
+         * Error Signal with ten errors
+         */
+        ERROR_10,
+        /**
+         * Receipt containing a <i>UserMessage</i> element as used for a "reception awareness" Receipt
+         */
+        RECEIPT_SMALL,
+        /**
+         * Receipt containing the NRR information for a message with 50 payloads
+         */
+        RECEIPT_LARGE,
+        /**
+         * Receipt containing multiple elements in different namespaces, including a default namespace, and text that
+         * must be escaped or is not ASCII
+         */
+        RECEIPT_MULTIPLE
+    }
+
+    private SignalFixtures() {}
+
+    /**
+     * Creates a Signal of the given kind.
+     *
+     * @param kind  The kind of Signal to create
+     * @return      The Signal
+     */
+    public static ISignalMessage create(final Kind kind) {
+        switch (kind) {
+        case ERROR_1 :
+            return createError(1);
+        case ERROR_10 :
+            return createError(10);
+        case RECEIPT_SMALL :
+            return createReceipt(createUserMessageContent());
+        case RECEIPT_MULTIPLE :
+            return createReceipt(createMultipleContent());
+        default :
+            return createReceipt(createNRRContent(50));
+        }
+    }
+
+    /**
+     * Creates an Error Signal containing the given number of errors.
+     *
+     * @param nErrors   The number of errors to include
+     * @return          The Error Signal
+     */
+    public static IErrorMessage createError(final int nErrors) {
+        final List<IEbmsError> errors = new ArrayList<>(nErrors);
+        for (int i = 0; i < nErrors; i++) {
+            final Map<String, Object> e = new HashMap<>();
+            e.put("getCategory", "Content");
+            e.put("getErrorCode", "EBMS:000" + (i % 10));
+            e.put("getOrigin", "ebMS");
+            e.put("getSeverity", IEbmsError.Severity.failure);
+            e.put("getMessage", "ValueNotRecognized");
+            e.put("getErrorDetail", "The value of element eb:Property[" + i + "] is not recognized");
+            e.put("getRefToMessageInError", "8fa3c2e1-77b0-4d3a-9d0a-3c5a6b7e1f20@sender.example.org");
+            final Map<String, Object> d = new HashMap<>();
+            d.put("getText", "Detailed description of error number " + i);
+            d.put("getLanguage", "en");
+            e.put("getDescription", proxy(IDescription.class, d));
+            errors.add(proxy(IEbmsError.class, e));
+        }
+        final Map<String, Object> sig = signalProperties();
+        sig.put("getErrors", Collections.unmodifiableList(errors));
+        return proxy(IErrorMessage.class, sig);
+    }
+
+    /**
+     * Creates a Receipt Signal with the given content.
+     *
+     * @param content   The content of the Receipt
+     * @return          The Receipt Signal
+     */
+    public static IReceipt createReceipt(final List<OMElement> content) {
+        final Map<String, Object> sig = signalProperties();
+        sig.put("getContent", content);
+        return proxy(IReceipt.class, sig);
+    }
+
+    /**
+     * Creates Receipt content consisting of an ebMS <i>UserMessage</i> element, i.e. a small Receipt.
+     *
+     * @return  The Receipt content
+     */
+    public static List<OMElement> createUserMessageContent() {
+        final OMFactory f = OMAbstractFactory.getOMFactory();
+        final OMNamespace eb = f.createOMNamespace("http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/",
+                                                   "eb");
+        final OMElement um = f.createOMElement("UserMessage", eb);
+        final OMElement mi = f.createOMElement("MessageInfo", eb, um);
+        f.createOMElement("Timestamp", eb, mi).setText("2023-06-01T10:15:30.123Z");
+        f.createOMElement("MessageId", eb, mi).setText("8fa3c2e1-77b0-4d3a-9d0a-3c5a6b7e1f20@sender.example.org");
+        final OMElement pi = f.createOMElement("PartyInfo", eb, um);
+        f.createOMElement("PartyId", eb, f.createOMElement("From", eb, pi)).setText("sender.example.org");
+        f.createOMElement("PartyId", eb, f.createOMElement("To", eb, pi)).setText("receiver.example.org");
+        final OMElement ci = f.createOMElement("CollaborationInfo", eb, um);
+        f.createOMElement("Service", eb, ci).setText("urn:example:service");
+        f.createOMElement("Action", eb, ci).setText("Deliver");
+        f.createOMElement("ConversationId", eb, ci).setText("conv-1");
+        return Collections.singletonList(um);
+    }
+
+    /**
+     * Creates Receipt content consisting of the non-repudiation information for a message with the given number of
+     * payloads, i.e. a large Receipt.
+     *
+     * @param nParts    The number of message parts to include
+     * @return          The Receipt content
+     */
+    public static List<OMElement> createNRRContent(final int nParts) {
+        final OMFactory f = OMAbstractFactory.getOMFactory();
+        final OMNamespace ebbp = f.createOMNamespace(EBBP_NS, "ebbp");
+        final OMNamespace ds = f.createOMNamespace(DSIG_NS, "ds");
+        final OMElement nri = f.createOMElement("NonRepudiationInformation", ebbp);
+        for (int i = 0; i < nParts; i++) {
+            final OMElement ref = f.createOMElement("Reference", ds,
+                                                    f.createOMElement("MessagePartNRInformation", ebbp, nri));
+            ref.addAttribute("URI", "cid:part-" + i + "@sender.example.org", null);
+            final OMElement transforms = f.createOMElement("Transforms", ds, ref);
+            f.createOMElement("Transform", ds, transforms).addAttribute("Algorithm", SWA_TRANSFORM, null);
+            f.createOMElement("DigestMethod", ds, ref).addAttribute("Algorithm",
+                                                        "http://www.w3.org/2001/04/xmlenc#sha256", null);
+            f.createOMElement("DigestValue", ds, ref).setText("b5bb9d8014a0f9b1d61e21e796d78dccdf1352f23cd32812f4850b87"
+                                                               + Integer.toHexString(i));
+        }
+        return Collections.singletonList(nri);
+    }
+
+    /**
+     * Creates Receipt content consisting of an application level acknowledgement and a signature, i.e. a Receipt with
+     * multiple elements.
+     *
+     * @return  The Receipt content
+     */
+    public static List<OMElement> createMultipleContent() {
+        final OMFactory f = OMAbstractFactory.getOMFactory();
+        final OMNamespace ack = f.createOMNamespace("urn:example:acknowledgement", "ack");
+        final OMElement ackElement = f.createOMElement("Acknowledgement", ack);
+        ackElement.addAttribute("status", "accepted", null);
+        ackElement.addAttribute("version", "1.0", null);
+        f.createOMElement("Reference", ack, ackElement).setText("urn:example:document:4711");
+        f.createOMElement("Note", ack, ackElement).setText("Ontvangen & verwerkt, \"zonder\" <fouten>");
+        final OMNamespace sig = f.createOMNamespace("urn:example:signature", "");
+        final OMElement signature = f.createOMElement("Signature", sig);
+        signature.addAttribute("id", "sig-1", null);
+        f.createOMElement("Value", sig, signature).setText("bWVzc2FnZQ==");
+        f.createOMElement("Name", sig, f.createOMElement("Signer", sig, signature))
+                                                                        .setText("Zo\u00eb \u00c5ngstr\u00f6m");
+        final List<OMElement> content = new ArrayList<>(2);
+        content.add(ackElement);
+        content.add(signature);
+        return content;
+    }
+
+    /**
+     * @return  The properties common to all Signals
+     */
+    private static Map<String, Object> signalProperties() {
+        final Map<String, Object> sig = new HashMap<>();
+        sig.put("getMessageId", "c3a4e2d0-5b1f-4e8a-9c7d-2f6e8a1b3c5d@receiver.example.org");
+        sig.put("getRefToMessageId", "8fa3c2e1-77b0-4d3a-9d0a-3c5a6b7e1f20@sender.example.org");
+        sig.put("getTimestamp", new Date(1685614530123L));
+        return sig;
+    }
+
+    /**
+     * Creates a proxy implementing the given interface that returns the value from the given map for each method,
+     * using the method name as key. For methods without a value <code>null</code> or zero is returned.
+     */
+    private static <T> T proxy(final Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(SignalFixtures.class.getClassLoader(), new Class<?>[] { type },
+            (p, m, args) -> {
+                switch (m.getName()) {
+                case "equals" :
+                    return p == args[0];
+                case "hashCode" :
+                    return System.identityHashCode(p);
+                case "toString" :
+                    return type.getSimpleName() + values;
+                default:
+                }
+                final Object v = values.get(m.getName());
+                final Class<?> rt = m.getReturnType();
+                if (v != null || !rt.isPrimitive() || rt == void.class)
+                    return v;
+                else if (rt == boolean.class)
+                    return Boolean.FALSE;
+                else if (rt == long.class)
+                    return 0L;
+                else
+                    return 0;
+            }));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.holodeckb2b.delivery.signals.utils.SMDFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways to convert the time stamp of a Signal into its <code>xs:dateTime</code> representation. The
+ * <i>lookupFactory</i> benchmark is the conversion as done up to version 2.0.0, which looked up the {@link
+ * DatatypeFactory} and created a {@link GregorianCalendar} for every Signal. It is included as baseline.
+ * <p>The conversion methods of the {@link SMDFactory} are package private, so they are called through method handles.
+ * As these are constants the JIT compiler inlines the calls, so this does not influence the results.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimestampBenchmark {
+
+    private static final MethodHandle CONVERT_DATE = conversion("convertDate");
+    private static final MethodHandle FORMAT_DATE = conversion("formatDate");
+
+    private final Date timestamp = new Date(1685614530123L);
+
+    private static MethodHandle conversion(final String name) {
+        try {
+            final Method m = SMDFactory.class.getDeclaredMethod(name, Date.class);
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m);
+        } catch (ReflectiveOperationException notAvailable) {
+            throw new IllegalStateException("Conversion method " + name + " not available", notAvailable);
+        }
+    }
+
+    @Benchmark
+    public String lookupFactory() throws DatatypeConfigurationException {
+        final GregorianCalendar c = new GregorianCalendar();
+        c.setTime(timestamp);
+        return DatatypeFactory.newInstance().newXMLGregorianCalendar(c).toXMLFormat();
+    }
+
+    @Benchmark
+    public String sharedFactory() throws Throwable {
+        return ((XMLGregorianCalendar) CONVERT_DATE.invokeExact(timestamp)).toXMLFormat();
+    }
+
+    @Benchmark
+    public String formatDirect() throws Throwable {
+        return (String) FORMAT_DATE.invokeExact(timestamp);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IMessageUnit;
+
+/**
+ * Is the worker pipeline used by the {@link NotifyOperation} when it is configured for asynchronous delivery. The
+ * Signals to deliver are put in a bounded queue from which they are taken by a fixed number of workers. When running
+ * on Java 21 or later the workers are virtual threads, otherwise normal daemon threads are used.
+ * <p>When the queue is full the submitting thread waits at most the configured time for space to become available. If
+ * no space becomes available in time the submission is rejected, so the Holodeck B2B Core can retry the delivery later.
+ * When the pipeline is shut down while the submitter is waiting for space, the Signal is not delivered and the failure
+ * is reported to its callback, as the workers may already have stopped.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class AsyncDeliveryPipeline {
+    private static final Logger log = LogManager.getLogger(AsyncDeliveryPipeline.class);
+
+    /**
+     * Is the actual delivery operation executed by the workers
+     */
+    interface DeliveryTask {
+        void deliver(IMessageUnit msgUnit) throws MessageDeliveryException;
+    }
+
+    /**
+     * Delivers a Signal and reports the result to the callback
+     */
+    private final class Delivery implements Runnable {
+        final IMessageUnit      msgUnit;
+        final IDeliveryCallback callback;
+        final long              queued = System.nanoTime();
+
+        Delivery(final IMessageUnit msgUnit, final IDeliveryCallback callback) {
+            this.msgUnit = msgUnit;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            statistics.record(DeliveryStatistics.Stage.QUEUE, System.nanoTime() - queued);
+            inFlight.incrementAndGet();
+            try {
+                task.deliver(msgUnit);
+                callback.success();
+            } catch (MessageDeliveryException deliveryFailure) {
+                callback.failed(deliveryFailure);
+            } catch (Throwable unexpected) {
+                log.error("Unexpected error in delivery of {} (msgId={}) : {}",
+                          msgUnit.getClass().getSimpleName(), msgUnit.getMessageId(), unexpected.toString());
+                callback.failed(new MessageDeliveryException("Unexpected error in delivery of Signal", unexpected));
+                if (unexpected instanceof Error)
+                    throw (Error) unexpected;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor    executor;
+    private final DeliveryTask          task;
+    private final DeliveryStatistics    statistics;
+    private final AtomicInteger         inFlight = new AtomicInteger();
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param name          Name of the pipeline, used for naming the worker threads
+     * @param workers       The number of workers
+     * @param queueSize     The maximum number of Signals waiting to be delivered
+     * @param queueTimeout  The maximum time in milliseconds a submitter waits for space in the queue
+     * @param task          The delivery operation to execute
+     * @param statistics    The statistics to record the time spent waiting in the queue in
+     */
+    AsyncDeliveryPipeline(final String name, final int workers, final int queueSize, final long queueTimeout,
+                          final DeliveryTask task, final DeliveryStatistics statistics) {
+        this.task = task;
+        this.statistics = statistics;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(queueSize), createThreadFactory(name),
+                                               (r, e) -> {
+                if (e.isShutdown())
+                    throw new RejectedExecutionException("Pipeline is shut down");
+                try {
+                    if (!e.getQueue().offer(r, queueTimeout, TimeUnit.MILLISECONDS))
+                        throw new RejectedExecutionException("Queue is full");
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for space in queue");
+                }
+                // The pipeline may have been shut down while waiting and the workers stopped, so the task would never
+                // be executed
+                if (e.isShutdown() && e.getQueue().remove(r)) {
+                    final Delivery rejected = (Delivery) r;
+                    log.warn("Pipeline shut down before {} (msgId={}) could be delivered",
+                             rejected.msgUnit.getClass().getSimpleName(), rejected.msgUnit.getMessageId());
+                    rejected.callback.failed(new MessageDeliveryException("Pipeline is shut down"));
+                }
+            });
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Submits a Signal for delivery. The result of the delivery is reported to the given callback.
+     *
+     * @param msgUnit   The Signal to deliver
+     * @param callback  The callback to report the result of the delivery to
+     * @throws MessageDeliveryException When the Signal could not be accepted because the queue is full
+     */
+    void submit(final IMessageUnit msgUnit, final IDeliveryCallback callback) throws MessageDeliveryException {
+        try {
+            executor.execute(new Delivery(msgUnit, callback));
+        } catch (RejectedExecutionException rejected) {
+            log.warn("Could not queue {} (msgId={}) for delivery : {}", msgUnit.getClass().getSimpleName(),
+                     msgUnit.getMessageId(), rejected.getMessage());
+            throw new MessageDeliveryException("Delivery queue is full, try again later");
+        }
+    }
+
+    /**
+     * @return  The number of Signals waiting in the queue
+     */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return  The number of Signals currently being delivered by the workers
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Stops the pipeline. Signals already in the queue are still delivered, but this method waits at most the given
+     * time for them to complete.
+     *
+     * @param timeout   Maximum time in milliseconds to wait for queued Signals to be delivered
+     */
+    void shutdown(final long timeout) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                log.warn("Not all queued Signals could be delivered before shutdown ({} remaining)",
+                         getQueueDepth() + getInFlight());
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the factory for the worker threads. When the JVM supports virtual threads (Java 21+) these are used,
+     * otherwise daemon platform threads are created. As this project is compiled for Java 8 the virtual thread API is
+     * accessed through reflection.
+     *
+     * @param name  The prefix for the thread names
+     * @return      The thread factory to use for the workers
+     */
+    private static ThreadFactory createThreadFactory(final String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            log.debug("Using virtual threads for delivery workers");
+            return factory;
+        } catch (ReflectiveOperationException | ClassCastException noVirtualThreads) {
+            final AtomicInteger seq = new AtomicInteger();
+            return r -> {
+                final Thread t = new Thread(r, name + "-" + seq.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Groups the SMD files written by the {@link NotifyOperation} into batches that are made durable together. The files
+ * of all Signals in a batch are written and synced to disk, after which the directories they were written to are
+ * synced only once for the whole batch. Only then the delivery of the Signals in the batch is acknowledged. When
+ * writing one of the files fails, the files already written for the batch are removed and the delivery of all Signals
+ * in the batch fails.
+ * <p>A batch is written when it contains the configured number of Signals or when the first Signal in it has waited
+ * for the configured time window, whichever comes first. The batches are written by a single background thread. Should
+ * this thread stop because of an unexpected error, the delivery of all waiting Signals fails and new Signals are
+ * rejected. A synchronous delivery waits at most {@value #MAX_WRITE_TIME} milliseconds longer than the time window for
+ * its batch to be written. When its Signal is still waiting by then, it is taken out of the batch and the delivery
+ * fails. When the file of the Signal is already being written the delivery keeps waiting for the result, as failing it
+ * while the file is still written would make the Core deliver the Signal again.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class BatchWriter {
+    private static final Logger log = LogManager.getLogger(BatchWriter.class);
+
+    /**
+     * Maximum time in milliseconds a synchronous delivery waits for its batch to be written, in addition to the window
+     */
+    static final long MAX_WRITE_TIME = 60000;
+
+    /**
+     * Is the operation that writes the SMD file for a Signal and ensures the file's content is synced to disk. Returns
+     * the written file, or <code>null</code> when no file needed to be written because the Signal was already delivered
+     */
+    interface WriteTask {
+        Path write(ISignalMessage signal) throws MessageDeliveryException;
+    }
+
+    /**
+     * A Signal waiting to be written
+     */
+    private static final class Entry {
+        final ISignalMessage    signal;
+        final IDeliveryCallback callback;
+        final long              queued = System.nanoTime();
+
+        /**
+         * 0 = waiting, 1 = claimed by the writer, 2 = abandoned by the caller
+         */
+        private final AtomicInteger state = new AtomicInteger();
+
+        Entry(final ISignalMessage signal, final IDeliveryCallback callback) {
+            this.signal = signal;
+            this.callback = callback;
+        }
+
+        /**
+         * Claims the Signal for writing or reporting its result.
+         *
+         * @return  <code>true</code> when claimed, <code>false</code> when the caller already gave up on it
+         */
+        boolean claim() {
+            return state.compareAndSet(0, 1);
+        }
+
+        /**
+         * Gives up on the Signal so it will not be written.
+         *
+         * @return  <code>true</code> when given up, <code>false</code> when it is already being written
+         */
+        boolean abandon() {
+            return state.compareAndSet(0, 2);
+        }
+    }
+
+    /**
+     * Callback used for synchronous delivery, which waits for the batch containing the Signal to be written
+     */
+    private static final class WaitingCallback implements IDeliveryCallback {
+        private final CountDownLatch    done = new CountDownLatch(1);
+        private MessageDeliveryException failure;
+
+        @Override
+        public void success() {
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final MessageDeliveryException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Waits until the result of the delivery is reported.
+         *
+         * @param timeout   The maximum time in nanoseconds to wait
+         * @return          <code>true</code> when the result was reported, <code>false</code> if the time elapsed
+         * @throws MessageDeliveryException When the delivery failed
+         * @throws InterruptedException     When the thread was interrupted while waiting
+         */
+        boolean await(final long timeout) throws MessageDeliveryException, InterruptedException {
+            if (!done.await(timeout, TimeUnit.NANOSECONDS))
+                return false;
+            if (failure != null)
+                throw failure;
+            return true;
+        }
+
+        /**
+         * Waits until the result of the delivery is reported, also when the thread is interrupted.
+         *
+         * @throws MessageDeliveryException When the delivery failed
+         */
+        void awaitResult() throws MessageDeliveryException {
+            boolean interrupted = false;
+            try {
+                while (true)
+                    try {
+                        done.await();
+                        break;
+                    } catch (InterruptedException ignored) {
+                        interrupted = true;
+                    }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    private final int                   batchSize;
+    private final long                  window;
+    private final long                  maxWriteTime;
+    private final int                   maxPending;
+    private final long                  queueTimeout;
+    private final WriteTask             task;
+    private final DeliveryStatistics    statistics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition     batchReady = lock.newCondition();
+    private final Condition     notFull = lock.newCondition();
+    private final List<Entry>   pending = new ArrayList<>();
+    private final Thread        flusher;
+    private volatile boolean    running = true;
+
+    /**
+     * Creates a new batch writer.
+     *
+     * @param batchSize     The maximum number of Signals in a batch
+     * @param window        The maximum time in milliseconds a Signal waits before its batch is written
+     * @param maxPending    The maximum number of Signals waiting to be written
+     * @param queueTimeout  The maximum time in milliseconds a submitter waits when the maximum number of waiting
+     *                      Signals is reached
+     * @param task          The operation that writes the SMD file for a Signal
+     * @param statistics    The statistics to record the time waited for the batch to be written and the result of
+     *                      the deliveries in
+     */
+    BatchWriter(final int batchSize, final long window, final int maxPending, final long queueTimeout,
+                final WriteTask task, final DeliveryStatistics statistics) {
+        this(batchSize, window, maxPending, queueTimeout, MAX_WRITE_TIME, task, statistics);
+    }
+
+    /**
+     * Creates a new batch writer that waits the given time for a batch to be written in synchronous deliveries.
+     *
+     * @param batchSize     The maximum number of Signals in a batch
+     * @param window        The maximum time in milliseconds a Signal waits before its batch is written
+     * @param maxPending    The maximum number of Signals waiting to be written
+     * @param queueTimeout  The maximum time in milliseconds a submitter waits when the maximum number of waiting
+     *                      Signals is reached
+     * @param maxWriteTime  The maximum time in milliseconds, in addition to the window, a synchronous delivery waits
+     *                      before the Signal is taken out of its batch
+     * @param task          The operation that writes the SMD file for a Signal
+     * @param statistics    The statistics to record the time waited for the batch to be written and the result of
+     *                      the deliveries in
+     */
+    BatchWriter(final int batchSize, final long window, final int maxPending, final long queueTimeout,
+                final long maxWriteTime, final WriteTask task, final DeliveryStatistics statistics) {
+        this.batchSize = batchSize;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.maxWriteTime = TimeUnit.MILLISECONDS.toNanos(maxWriteTime);
+        this.maxPending = Math.max(maxPending, batchSize);
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        this.task = task;
+        this.statistics = statistics;
+        this.flusher = new Thread(this::run, "smd-batch-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Adds the Signal to the current batch and waits until the batch has been written. When the Signal is still
+     * waiting after the maximum write time it is taken out of the batch and the delivery fails. When its file is
+     * already being written this method waits for the result of the batch.
+     *
+     * @param signal    The Signal to deliver
+     * @throws MessageDeliveryException When the Signal could not be added to the batch, the batch could not be
+     *                                  written or the Signal was not written in time
+     */
+    void deliver(final ISignalMessage signal) throws MessageDeliveryException {
+        final WaitingCallback callback = new WaitingCallback();
+        final Entry entry = add(signal, callback);
+        boolean interrupted = false;
+        try {
+            if (callback.await(window + maxWriteTime))
+                return;
+        } catch (InterruptedException interrupt) {
+            interrupted = true;
+        }
+        if (!entry.abandon()) {
+            // The file is being written or the result was just reported, failing now could create a duplicate
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            else
+                log.warn("Batch with {} (msgId={}) still being written after {} ms, waiting for it",
+                         signal.getClass().getSimpleName(), signal.getMessageId(),
+                         TimeUnit.NANOSECONDS.toMillis(maxWriteTime));
+            callback.awaitResult();
+            return;
+        }
+        // Take the Signal out of the queue, the writer also skips it if it already took the batch
+        lock.lock();
+        try {
+            if (pending.remove(entry))
+                notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        statistics.recordFailure(DeliveryStatistics.typeOf(signal));
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new MessageDeliveryException("Interrupted while waiting for batch to be written");
+        }
+        log.error("Batch with {} (msgId={}) was not written within {} ms", signal.getClass().getSimpleName(),
+                  signal.getMessageId(), TimeUnit.NANOSECONDS.toMillis(maxWriteTime));
+        throw new MessageDeliveryException("Batch of SMD files was not written in time");
+    }
+
+    /**
+     * Adds the Signal to the current batch. The result of the delivery is reported to the given callback when the
+     * batch has been written.
+     *
+     * @param signal    The Signal to deliver
+     * @param callback  The callback to report the result of the delivery to
+     * @throws MessageDeliveryException When the Signal could not be added because too many Signals are waiting
+     */
+    void submit(final ISignalMessage signal, final IDeliveryCallback callback) throws MessageDeliveryException {
+        add(signal, callback);
+    }
+
+    /**
+     * Adds the Signal to the current batch.
+     *
+     * @return  The entry of the Signal in the queue
+     */
+    private Entry add(final ISignalMessage signal, final IDeliveryCallback callback) throws MessageDeliveryException {
+        lock.lock();
+        try {
+            long wait = queueTimeout;
+            while (running && pending.size() >= maxPending && wait > 0)
+                wait = notFull.awaitNanos(wait);
+            if (!running)
+                throw new MessageDeliveryException("Batch writer is shut down");
+            if (pending.size() >= maxPending) {
+                log.warn("Could not add {} (msgId={}) to batch, too many Signals waiting",
+                         signal.getClass().getSimpleName(), signal.getMessageId());
+                throw new MessageDeliveryException("Delivery queue is full, try again later");
+            }
+            final Entry entry = new Entry(signal, callback);
+            pending.add(entry);
+            // Wake up the writer when a new batch is started or the current one is full
+            if (pending.size() == 1 || pending.size() >= batchSize)
+                batchReady.signal();
+            return entry;
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new MessageDeliveryException("Interrupted while waiting for space in the batch");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of Signals waiting to be written
+     */
+    int getPending() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the batch writer after writing the Signals that are still waiting.
+     *
+     * @param timeout   Maximum time in milliseconds to wait for the waiting Signals to be written
+     */
+    void shutdown(final long timeout) {
+        lock.lock();
+        try {
+            running = false;
+            batchReady.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(timeout);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive())
+            failPending("Batch writer is shut down");
+    }
+
+    /**
+     * Main loop of the background thread, collects the batches and writes them.
+     */
+    private void run() {
+        try {
+            collectAndWrite();
+        } catch (RuntimeException | Error unexpected) {
+            log.error("Batch writer stopped because of unexpected error : {}", unexpected.toString());
+            throw unexpected;
+        } finally {
+            running = false;
+            failPending("Batch writer stopped");
+        }
+    }
+
+    /**
+     * Collects the batches and writes them until the writer is shut down.
+     */
+    private void collectAndWrite() {
+        while (true) {
+            final List<Entry> batch;
+            lock.lock();
+            try {
+                while (running && pending.isEmpty())
+                    batchReady.await();
+                if (pending.isEmpty())
+                    return;
+                final long deadline = pending.get(0).queued + window;
+                long wait;
+                while (running && pending.size() < batchSize && (wait = deadline - System.nanoTime()) > 0)
+                    batchReady.awaitNanos(wait);
+                final List<Entry> head = pending.subList(0, Math.min(batchSize, pending.size()));
+                batch = new ArrayList<>(head);
+                head.clear();
+                notFull.signalAll();
+            } catch (InterruptedException interrupted) {
+                log.warn("Batch writer interrupted, stopping");
+                return;
+            } finally {
+                lock.unlock();
+            }
+            write(batch);
+        }
+    }
+
+    /**
+     * Writes the SMD files for the given batch and reports the result to the callbacks.
+     *
+     * @param batch The batch of Signals to write
+     */
+    private void write(final List<Entry> batch) {
+        final List<Path> written = new ArrayList<>(batch.size());
+        // The Signals that are written, those whose caller gave up are skipped
+        final List<Entry> claimed = new ArrayList<>(batch.size());
+        MessageDeliveryException failure = null;
+        try {
+            final Set<Path> directories = new LinkedHashSet<>();
+            for (Entry e : batch) {
+                if (!e.claim())
+                    continue;
+                claimed.add(e);
+                statistics.record(DeliveryStatistics.Stage.QUEUE, System.nanoTime() - e.queued);
+                final Path file = task.write(e.signal);
+                if (file != null) {
+                    written.add(file);
+                    directories.add(file.getParent());
+                }
+            }
+            for (Path dir : directories)
+                FileSync.syncDirectory(dir);
+        } catch (MessageDeliveryException writeFailure) {
+            failure = writeFailure;
+        } catch (IOException syncFailure) {
+            log.error("Could not sync delivery directory! Details: {}", syncFailure.getMessage());
+            failure = new MessageDeliveryException("Could not make batch of SMD files durable", syncFailure);
+        } catch (RuntimeException unexpected) {
+            log.error("Unexpected error in writing batch of SMD files : {}", unexpected.toString());
+            failure = new MessageDeliveryException("Unexpected error in writing batch of SMD files", unexpected);
+        } catch (Error fatal) {
+            // Fail the batch, the writer is stopped by rethrowing the error
+            removeFiles(written);
+            final MessageDeliveryException batchFailure =
+                                    new MessageDeliveryException("Fatal error in writing batch of SMD files", fatal);
+            for (Entry e : claimed)
+                report(e, batchFailure);
+            throw fatal;
+        }
+
+        if (failure == null) {
+            log.debug("Wrote batch of {} SMD files", claimed.size());
+            for (Entry e : claimed)
+                report(e, null);
+        } else {
+            log.warn("Writing batch of {} SMD files failed, removing {} already written files", claimed.size(),
+                     written.size());
+            removeFiles(written);
+            for (Entry e : claimed)
+                report(e, failure);
+        }
+    }
+
+    /**
+     * Removes the files already written for a failed batch.
+     */
+    private static void removeFiles(final List<Path> written) {
+        for (Path file : written)
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException removeFailure) {
+                log.error("Could not remove SMD file {} of failed batch", file);
+            }
+    }
+
+    /**
+     * Fails the delivery of all Signals still waiting to be written.
+     *
+     * @param reason    The reason the Signals will not be written
+     */
+    private void failPending(final String reason) {
+        final List<Entry> failed = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Entry e : pending)
+                if (e.claim())
+                    failed.add(e);
+            pending.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (failed.isEmpty())
+            return;
+        log.warn("{}, failing delivery of {} waiting Signals", reason, failed.size());
+        final MessageDeliveryException failure = new MessageDeliveryException(reason);
+        for (Entry e : failed)
+            report(e, failure);
+    }
+
+    /**
+     * Reports the result of the delivery of a Signal to its callback and records it in the statistics.
+     *
+     * @param e         The entry of the Signal
+     * @param failure   The reason the delivery failed, <code>null</code> when it succeeded
+     */
+    private void report(final Entry e, final MessageDeliveryException failure) {
+        try {
+            if (failure == null) {
+                statistics.recordSuccess(DeliveryStatistics.typeOf(e.signal));
+                e.callback.success();
+            } else {
+                statistics.recordFailure(DeliveryStatistics.typeOf(e.signal));
+                e.callback.failed(failure);
+            }
+        } catch (RuntimeException callbackFailure) {
+            // Must not stop the writer, the other Signals in the batch still need to be reported
+            log.error("Error in reporting the result of the delivery of {} (msgId={}) : {}",
+                      e.signal.getClass().getSimpleName(), e.signal.getMessageId(), callbackFailure.toString());
+        }
+    }
+}
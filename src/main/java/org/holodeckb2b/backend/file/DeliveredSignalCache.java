@@ -0,0 +1,511 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Keeps track of the Signals that have already been delivered by the {@link NotifyOperation}, so a Signal that is
+ * delivered again, for example because the partner resent it, is not written to another file. A Signal is identified
+ * by the combination of its message id and the message id it refers to.
+ * <p>The number of Signals kept is limited and a Signal is only remembered for a limited time. When the maximum number
+ * is reached the oldest Signals are removed. The cache uses a concurrent map together with a queue of the Signals in
+ * the order they were added, so neither checking nor adding a Signal requires locking.
+ * <p>Before a Signal is written it is reserved in the cache, which atomically checks that it was not delivered before
+ * and marks it as delivered. A Signal that is delivered again while the first delivery is still in progress is
+ * therefore also skipped. When the delivery fails the reservation is released, so the Signal can be delivered again.
+ * The released reservation is removed from the queue as well, so failed deliveries do not grow the cache beyond its
+ * maximum size.
+ * <p>On initialisation the cache is filled with the Signals whose SMD was written to the target directory within the
+ * time they are remembered. The SMD files in XML, JSON and CBOR format, which may be compressed using gzip, are read
+ * for this and only their <i>MessageInfo</i> part is parsed. The files are read one at a time, as the cache is loaded
+ * in the background when the delivery method is warmed up.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class DeliveredSignalCache {
+    private static final Logger log = LogManager.getLogger(DeliveredSignalCache.class);
+
+    /**
+     * Default maximum number of Signals kept in the cache
+     */
+    static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * Default time in seconds a Signal is kept in the cache
+     */
+    static final int DEFAULT_TTL = 24 * 60 * 60;
+
+    /**
+     * The CBOR major types used in the SMD
+     */
+    private static final int CBOR_TEXT = 3;
+    private static final int CBOR_MAP = 5;
+    private static final int CBOR_TAG = 6;
+
+    private static final XMLInputFactory INPUT_FACTORY;
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * The formats of the SMD files that can be read, identified by the extension of the file
+     */
+    private enum Format {
+        XML(".xml"), JSON(".json"), CBOR(".cbor");
+
+        final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * A Signal in the cache. The entries are also kept in the order in which they were added and serve as the
+     * reservation of a Signal that is being delivered.
+     */
+    static final class Entry {
+        final String    key;
+        final long      added;
+
+        Entry(final String key, final long added) {
+            this.key = key;
+            this.added = added;
+        }
+    }
+
+    private final int   maxSize;
+    private final long  ttl;
+
+    /**
+     * The Signals in the cache
+     */
+    private final ConcurrentHashMap<String, Entry>  signals = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry>      order = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize   The maximum number of Signals kept
+     * @param ttl       The time in seconds a Signal is kept
+     */
+    DeliveredSignalCache(final int maxSize, final int ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl * 1000L;
+    }
+
+    /**
+     * Reserves the given Signal for delivery when it has not been delivered before. The Signal is added to the cache,
+     * removing the oldest Signals when the maximum number of Signals is reached or their time has passed. When the
+     * delivery fails the reservation must be released using {@link #release(Entry)}.
+     *
+     * @param signal    The Signal to deliver
+     * @return          The reservation of the Signal, or <code>null</code> when the Signal was already delivered or is
+     *                  being delivered
+     */
+    Entry reserve(final ISignalMessage signal) {
+        final String key = keyOf(signal.getMessageId(), signal.getRefToMessageId());
+        final long now = System.currentTimeMillis();
+        final Entry reservation = new Entry(key, now);
+        Entry existing;
+        while ((existing = signals.putIfAbsent(key, reservation)) != null) {
+            if (now - existing.added < ttl) {
+                hits.increment();
+                return null;
+            } else if (signals.replace(key, existing, reservation)) {
+                // Replaced the expired entry
+                order.remove(existing);
+                break;
+            }
+        }
+        misses.increment();
+        order.add(reservation);
+        evict();
+        return reservation;
+    }
+
+    /**
+     * Releases the reservation of a Signal whose delivery failed, so it can be delivered again.
+     *
+     * @param reservation   The reservation of the Signal
+     */
+    void release(final Entry reservation) {
+        // The queue must only contain Signals in the cache, otherwise it would grow with every failed delivery. The
+        // reservation is usually one of the last entries, but the queue has to be searched from the start
+        if (signals.remove(reservation.key, reservation))
+            order.remove(reservation);
+    }
+
+    /**
+     * @return  The number of times a Signal was found to be delivered before
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return  The number of times a Signal was not found in the cache
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return  The number of Signals in the cache
+     */
+    int getSize() {
+        return signals.size();
+    }
+
+    /**
+     * @return  The number of entries in the queue used for removing the oldest Signals, which should be equal to the
+     *          number of Signals in the cache. Note that this requires traversing the queue.
+     */
+    int getQueueLength() {
+        return order.size();
+    }
+
+    /**
+     * Fills the cache with the Signals whose SMD was written to the given directory or its sub directories within the
+     * time Signals are kept. When there are more such SMDs than the maximum size of the cache, only the most recent
+     * ones are read. All supported formats are read, as the format may have been changed since they were written.
+     *
+     * @param directory The target directory
+     * @param depth     The maximum depth of sub directories to check
+     * @param suffix    The suffix added to the names of compressed files, empty when files are not compressed
+     */
+    void load(final Path directory, final int depth, final String suffix) {
+        final long start = System.currentTimeMillis();
+        final List<Object[]> candidates = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory, depth + 1)) {
+            files.forEach(f -> {
+                final String name = f.getFileName().toString();
+                final Format format = !name.startsWith(".") ? formatOf(name, suffix) : null;
+                if (format != null)
+                    try {
+                        final BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                        final long modified = attrs.lastModifiedTime().toMillis();
+                        if (attrs.isRegularFile() && start - modified < ttl)
+                            candidates.add(new Object[] { f, modified, format });
+                    } catch (IOException removed) {
+                        // The file was already processed by the back-end
+                    }
+            });
+        } catch (IOException | UncheckedIOException listFailure) {
+            log.warn("Could not read the delivered Signals from {} : {}", directory, listFailure.getMessage());
+            return;
+        }
+        // Add the most recent SMDs, oldest first, so they are removed in the right order
+        candidates.sort(Comparator.comparingLong(c -> -(Long) c[1]));
+        final List<Object[]> recent = candidates.subList(0, Math.min(maxSize, candidates.size()));
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            final Object[] c = recent.get(i);
+            final String key = readKey((Path) c[0], (Format) c[2]);
+            if (key != null)
+                add(key, (Long) c[1]);
+        }
+        log.debug("Loaded {} delivered Signals from {} in {} ms", signals.size(), directory,
+                  System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Adds the Signal with the given key to the cache.
+     */
+    private void add(final String key, final long time) {
+        final Entry entry = new Entry(key, time);
+        final Entry previous = signals.put(key, entry);
+        if (previous != null)
+            // The same Signal was delivered more than once
+            order.remove(previous);
+        order.add(entry);
+        evict();
+    }
+
+    /**
+     * Removes the oldest Signals when the maximum size is exceeded or their time has passed.
+     */
+    private void evict() {
+        final long expired = System.currentTimeMillis() - ttl;
+        Entry oldest;
+        while ((oldest = order.peek()) != null && (signals.size() > maxSize || oldest.added <= expired)) {
+            if (order.remove(oldest))
+                // Only remove the Signal when it was not added again later
+                signals.remove(oldest.key, oldest);
+        }
+    }
+
+    /**
+     * Determines the format of the SMD file with the given name.
+     *
+     * @return  The format of the file, or <code>null</code> when it is not an SMD file
+     */
+    private static Format formatOf(final String name, final String suffix) {
+        final String baseName = !suffix.isEmpty() && name.endsWith(suffix)
+                                        ? name.substring(0, name.length() - suffix.length()) : name;
+        for (Format f : Format.values())
+            if (baseName.endsWith(f.extension))
+                return f;
+        return null;
+    }
+
+    /**
+     * Reads the message id and reference from the SMD file.
+     *
+     * @return  The key of the Signal, or <code>null</code> when the file could not be read or is not an SMD
+     */
+    private static String readKey(final Path file, final Format format) {
+        try {
+            // SMDs are small, reading them at once is about twice as fast as letting the parser read the stream
+            final byte[] content = Files.readAllBytes(file);
+            final boolean compressed = content.length > 1 && content[0] == (byte) 0x1f && content[1] == (byte) 0x8b;
+            switch (format) {
+            case JSON :
+                return readJSONKey(compressed ? decompress(content) : content);
+            case CBOR :
+                return readCBORKey(compressed ? decompress(content) : content);
+            default :
+                return readXMLKey(compressed ? new GZIPInputStream(new ByteArrayInputStream(content))
+                                             : new ByteArrayInputStream(content));
+            }
+        } catch (IOException | XMLStreamException | RuntimeException readFailure) {
+            log.debug("Could not read SMD file {} : {}", file, readFailure.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the message id and reference from the <i>MessageInfo</i> element of an SMD in XML format.
+     */
+    private static String readXMLKey(final InputStream is) throws XMLStreamException {
+        XMLStreamReader r = null;
+        try {
+            r = INPUT_FACTORY.createXMLStreamReader(is);
+            String msgId = null;
+            String refToMsgId = null;
+            while (r.hasNext()) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT
+                    && StAXSerializer.SMD_NS_URI.equals(r.getNamespaceURI())) {
+                    final String name = r.getLocalName();
+                    if ("MessageId".equals(name))
+                        msgId = r.getElementText().trim();
+                    else if ("RefToMessageId".equals(name))
+                        refToMsgId = r.getElementText().trim();
+                } else if (event == XMLStreamConstants.END_ELEMENT && "MessageInfo".equals(r.getLocalName()))
+                    break;
+            }
+            return msgId != null ? keyOf(msgId, refToMsgId) : null;
+        } finally {
+            if (r != null)
+                try {
+                    r.close();
+                } catch (XMLStreamException ignored) {
+                    // Stream is closed below
+                }
+            try {
+                // Releases the decompressor
+                is.close();
+            } catch (IOException ignored) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Reads the message id and reference from the <i>messageInfo</i> object of an SMD in JSON format. As the SMD was
+     * written by the {@link JSONSerializer} the <i>messageInfo</i> object is the first property and contains only
+     * string properties.
+     *
+     * @throws IOException  When the content is not an SMD written by the JSON serializer
+     */
+    private static String readJSONKey(final byte[] content) throws IOException {
+        final String json = new String(content, StandardCharsets.UTF_8);
+        final String start = "{\"messageInfo\":{";
+        if (!json.startsWith(start))
+            throw new IOException("No messageInfo found");
+        final int[] pos = { start.length() };
+        String msgId = null;
+        String refToMsgId = null;
+        while (json.charAt(pos[0]) != '}') {
+            final String name = readJSONString(json, pos);
+            if (json.charAt(pos[0]++) != ':')
+                throw new IOException("Invalid messageInfo");
+            final String value = readJSONString(json, pos);
+            if ("messageId".equals(name))
+                msgId = value;
+            else if ("refToMessageId".equals(name))
+                refToMsgId = value;
+            if (json.charAt(pos[0]) == ',')
+                pos[0]++;
+        }
+        return msgId != null ? keyOf(msgId, refToMsgId) : null;
+    }
+
+    /**
+     * Reads a JSON string starting at the given position, which is updated to the position after the string.
+     */
+    private static String readJSONString(final String json, final int[] pos) throws IOException {
+        int i = pos[0];
+        if (json.charAt(i++) != '"')
+            throw new IOException("String expected at position " + pos[0]);
+        final StringBuilder value = new StringBuilder();
+        char c;
+        while ((c = json.charAt(i++)) != '"') {
+            if (c == '\\') {
+                c = json.charAt(i++);
+                switch (c) {
+                case 'n' :
+                    c = '\n';
+                    break;
+                case 'r' :
+                    c = '\r';
+                    break;
+                case 't' :
+                    c = '\t';
+                    break;
+                case 'b' :
+                    c = '\b';
+                    break;
+                case 'f' :
+                    c = '\f';
+                    break;
+                case 'u' :
+                    c = (char) Integer.parseInt(json.substring(i, i + 4), 16);
+                    i += 4;
+                    break;
+                default :
+                    // The escaped character itself, i.e. '"', '\\' or '/'
+                }
+            }
+            value.append(c);
+        }
+        pos[0] = i;
+        return value.toString();
+    }
+
+    /**
+     * Reads the message id and reference from the <i>messageInfo</i> map of an SMD in CBOR format. As the SMD was
+     * written by the {@link CBORSerializer} the <i>messageInfo</i> map is the first entry and contains only text
+     * strings, of which the time stamp is tagged.
+     *
+     * @throws IOException  When the content is not an SMD written by the CBOR serializer
+     */
+    private static String readCBORKey(final byte[] content) throws IOException {
+        final int[] pos = { 0 };
+        if (readCBORHead(content, pos, CBOR_MAP) < 1 || !"messageInfo".equals(readCBORText(content, pos)))
+            throw new IOException("No messageInfo found");
+        final long n = readCBORHead(content, pos, CBOR_MAP);
+        String msgId = null;
+        String refToMsgId = null;
+        for (long i = 0; i < n; i++) {
+            final String name = readCBORText(content, pos);
+            if ((content[pos[0]] & 0xff) >> 5 == CBOR_TAG)
+                readCBORHead(content, pos, CBOR_TAG);
+            final String value = readCBORText(content, pos);
+            if ("messageId".equals(name))
+                msgId = value;
+            else if ("refToMessageId".equals(name))
+                refToMsgId = value;
+        }
+        return msgId != null ? keyOf(msgId, refToMsgId) : null;
+    }
+
+    /**
+     * Reads a CBOR text string starting at the given position, which is updated to the position after the string.
+     */
+    private static String readCBORText(final byte[] content, final int[] pos) throws IOException {
+        final long length = readCBORHead(content, pos, CBOR_TEXT);
+        if (length > content.length - pos[0])
+            throw new IOException("Invalid text length");
+        final String text = new String(content, pos[0], (int) length, StandardCharsets.UTF_8);
+        pos[0] += (int) length;
+        return text;
+    }
+
+    /**
+     * Reads the head of a CBOR data item of the given major type starting at the given position, which is updated to
+     * the position after the head.
+     *
+     * @return  The argument of the head, i.e. the length, number of entries or tag
+     * @throws IOException  When the data item is of another major type or uses an indefinite length
+     */
+    private static long readCBORHead(final byte[] content, final int[] pos, final int majorType) throws IOException {
+        final int initial = content[pos[0]++] & 0xff;
+        if (initial >> 5 != majorType)
+            throw new IOException("Unexpected data item at position " + (pos[0] - 1));
+        final int info = initial & 0x1f;
+        if (info < 24)
+            return info;
+        else if (info > 27)
+            throw new IOException("Unsupported length at position " + (pos[0] - 1));
+        final int size = 1 << (info - 24);
+        long value = 0;
+        for (int i = 0; i < size; i++)
+            value = (value << 8) | (content[pos[0]++] & 0xff);
+        return value;
+    }
+
+    /**
+     * Decompresses the gzip compressed content.
+     */
+    private static byte[] decompress(final byte[] content) throws IOException {
+        try (GZIPInputStream is = new GZIPInputStream(new ByteArrayInputStream(content))) {
+            final ByteArrayOutputStream decompressed = new ByteArrayOutputStream(content.length * 4);
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) > 0)
+                decompressed.write(buffer, 0, n);
+            return decompressed.toByteArray();
+        }
+    }
+
+    private static String keyOf(final String msgId, final String refToMsgId) {
+        return refToMsgId != null ? msgId + '\n' + refToMsgId : msgId;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.backend.file.DeliveryStatistics.SignalType;
+import org.holodeckb2b.backend.file.DeliveryStatistics.Stage;
+
+/**
+ * Exposes the {@link DeliveryStatistics} and queue state of a {@link NotifyOperation} instance as a JMX MBean. The
+ * MBean is registered in the platform MBean server in the <code>org.holodeckb2b.backend.file</code> domain with type
+ * <i>NotifyOperation</i>, a sequence number as id and the quoted target directory as directory key.
+ * <p>The values are only read from the statistics when requested through JMX, so exposing them does not add any cost
+ * to the delivery itself.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class DeliveryMetrics implements DeliveryMetricsMXBean {
+    private static final Logger log = LogManager.getLogger(DeliveryMetrics.class);
+
+    /**
+     * Sequence to make the names of the MBeans unique when multiple instances write to the same directory
+     */
+    private static final AtomicInteger INSTANCE_SEQ = new AtomicInteger();
+
+    private final NotifyOperation       deliveryMethod;
+    private final String                targetDirectory;
+    private final DeliveryStatistics    statistics;
+    private ObjectName                  name;
+
+    /**
+     * Creates the MBean for the given delivery method.
+     *
+     * @param deliveryMethod    The delivery method to expose the metrics of
+     * @param targetDirectory   The directory the delivery method writes to
+     */
+    DeliveryMetrics(final NotifyOperation deliveryMethod, final String targetDirectory) {
+        this.deliveryMethod = deliveryMethod;
+        this.targetDirectory = targetDirectory;
+        this.statistics = deliveryMethod.getStatistics();
+    }
+
+    /**
+     * Registers the MBean in the platform MBean server. As the metrics are not essential for the delivery a failure
+     * to register is only logged.
+     */
+    void register() {
+        try {
+            name = new ObjectName("org.holodeckb2b.backend.file:type=NotifyOperation,id="
+                                  + INSTANCE_SEQ.incrementAndGet() + ",directory=" + ObjectName.quote(targetDirectory));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            log.debug("Registered metrics MBean {}", name);
+        } catch (JMException registrationFailure) {
+            log.warn("Could not register the metrics MBean! Details: {}", registrationFailure.getMessage());
+            name = null;
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server.
+     */
+    void unregister() {
+        if (name == null)
+            return;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException unregistrationFailure) {
+            log.warn("Could not unregister the metrics MBean {}! Details: {}", name,
+                     unregistrationFailure.getMessage());
+        }
+        name = null;
+    }
+
+    @Override
+    public String getTargetDirectory() {
+        return targetDirectory;
+    }
+
+    @Override
+    public long getReceiptsDelivered() {
+        return statistics.getDelivered(SignalType.RECEIPT);
+    }
+
+    @Override
+    public long getReceiptsFailed() {
+        return statistics.getFailed(SignalType.RECEIPT);
+    }
+
+    @Override
+    public long getErrorsDelivered() {
+        return statistics.getDelivered(SignalType.ERROR);
+    }
+
+    @Override
+    public long getErrorsFailed() {
+        return statistics.getFailed(SignalType.ERROR);
+    }
+
+    @Override
+    public long getErrorStreak() {
+        return statistics.getErrorStreak();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return statistics.getBytesWritten();
+    }
+
+    @Override
+    public long getDuplicatesSkipped() {
+        final DeliveredSignalCache cache = deliveryMethod.getDeliveredSignals();
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    @Override
+    public long getDuplicateCacheMisses() {
+        final DeliveredSignalCache cache = deliveryMethod.getDeliveredSignals();
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    @Override
+    public int getDuplicateCacheSize() {
+        final DeliveredSignalCache cache = deliveryMethod.getDeliveredSignals();
+        return cache != null ? cache.getSize() : 0;
+    }
+
+    @Override
+    public long getStartupTime() {
+        return deliveryMethod.getStartupTime();
+    }
+
+    @Override
+    public long getFirstDeliveryLatency() {
+        return deliveryMethod.getFirstDeliveryLatency();
+    }
+
+    @Override
+    public int getWriteLimit() {
+        final WriteLimiter limiter = deliveryMethod.getWriteLimiter();
+        return limiter != null ? limiter.getLimit() : 0;
+    }
+
+    @Override
+    public int getWritesInProgress() {
+        final WriteLimiter limiter = deliveryMethod.getWriteLimiter();
+        return limiter != null ? limiter.getInProgress() : 0;
+    }
+
+    @Override
+    public long getWritesRejected() {
+        final WriteLimiter limiter = deliveryMethod.getWriteLimiter();
+        return limiter != null ? limiter.getRejected() : 0;
+    }
+
+    @Override
+    public long getWritesTimedOut() {
+        final WriteLimiter limiter = deliveryMethod.getWriteLimiter();
+        return limiter != null ? limiter.getTimedOut() : 0;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return deliveryMethod.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return deliveryMethod.getInFlight();
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        return perStage(statistics::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getAverageLatencies() {
+        return perStage(statistics::getAverageLatency);
+    }
+
+    @Override
+    public Map<String, Long> getMaxLatencies() {
+        return perStage(statistics::getMaxLatency);
+    }
+
+    @Override
+    public Map<String, Long> getP99Latencies() {
+        return perStage(s -> statistics.getPercentileLatency(s, 99));
+    }
+
+    /**
+     * Helper method to collect a value for each stage.
+     */
+    private static Map<String, Long> perStage(final ToLongFunction<Stage> value) {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        for (Stage s : Stage.values())
+            values.put(s.name(), value.applyAsLong(s));
+        return values;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.util.Map;
+
+/**
+ * Is the management interface that exposes the metrics of a {@link NotifyOperation} instance through JMX. The
+ * latencies are given per stage of the delivery, see {@link DeliveryStatistics.Stage}, in microseconds.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public interface DeliveryMetricsMXBean {
+
+    /**
+     * @return  The directory the SMD files are written to
+     */
+    String getTargetDirectory();
+
+    /**
+     * @return  The number of Receipts delivered successfully
+     */
+    long getReceiptsDelivered();
+
+    /**
+     * @return  The number of Receipts that could not be delivered
+     */
+    long getReceiptsFailed();
+
+    /**
+     * @return  The number of Errors delivered successfully
+     */
+    long getErrorsDelivered();
+
+    /**
+     * @return  The number of Errors that could not be delivered
+     */
+    long getErrorsFailed();
+
+    /**
+     * @return  The number of deliveries that failed since the last successful delivery
+     */
+    long getErrorStreak();
+
+    /**
+     * @return  The total number of bytes written to the SMD files
+     */
+    long getBytesWritten();
+
+    /**
+     * @return  The number of Signals that were skipped because they were already delivered, always 0 when duplicates
+     *          are not detected
+     */
+    long getDuplicatesSkipped();
+
+    /**
+     * @return  The number of Signals that were not found in the cache of delivered Signals, always 0 when duplicates
+     *          are not detected
+     */
+    long getDuplicateCacheMisses();
+
+    /**
+     * @return  The number of Signals in the cache of delivered Signals, always 0 when duplicates are not detected
+     */
+    int getDuplicateCacheSize();
+
+    /**
+     * @return  The time in milliseconds it took until the delivery method was ready for delivery after the start of
+     *          the initialisation, -1 while it is not ready yet
+     */
+    long getStartupTime();
+
+    /**
+     * @return  The time in milliseconds it took to deliver the first Signal, -1 while no Signal has been delivered yet
+     */
+    long getFirstDeliveryLatency();
+
+    /**
+     * @return  The current limit of SMD files written concurrently, always 0 when writes are not limited
+     */
+    int getWriteLimit();
+
+    /**
+     * @return  The number of SMD files currently being written, always 0 when writes are not limited
+     */
+    int getWritesInProgress();
+
+    /**
+     * @return  The number of deliveries that failed because the limit of concurrent writes was reached, always 0 when
+     *          writes are not limited
+     */
+    long getWritesRejected();
+
+    /**
+     * @return  The number of deliveries that failed because the SMD file was not written in time, always 0 when no
+     *          write timeout is used
+     */
+    long getWritesTimedOut();
+
+    /**
+     * @return  The number of Signals waiting for delivery
+     */
+    int getQueueDepth();
+
+    /**
+     * @return  The number of Signals currently being delivered by the workers
+     */
+    int getInFlight();
+
+    /**
+     * @return  The number of executions of each stage
+     */
+    Map<String, Long> getStageCounts();
+
+    /**
+     * @return  The average latency of each stage
+     */
+    Map<String, Long> getAverageLatencies();
+
+    /**
+     * @return  The maximum latency of each stage
+     */
+    Map<String, Long> getMaxLatencies();
+
+    /**
+     * @return  The 99th percentile of the latency of each stage
+     */
+    Map<String, Long> getP99Latencies();
+}
@@ -0,0 +1,241 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Collects the latency of the different stages a Signal passes through when it is delivered by the {@link
+ * NotifyOperation}. For each stage the number of executions, the total and the maximum time spent are kept together
+ * with a histogram of the latencies. The histogram uses buckets whose upper bound doubles, starting at 1 microsecond.
+ * <p>Also the number of delivered and failed Signals per type, the number of bytes written and the number of
+ * consecutive failures are kept. Recording a measurement does not allocate any objects so it can be done on every
+ * delivery.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class DeliveryStatistics {
+
+    /**
+     * The stages of the delivery process
+     */
+    public enum Stage {
+        /**
+         * Time the Signal waited in the queue before a worker picked it up (only in asynchronous mode)
+         */
+        QUEUE,
+        /**
+         * Creation of the SMD from the Signal
+         */
+        CREATE,
+        /**
+         * Creation of the file, including publishing it under its final name when atomic writes are used
+         */
+        FILE,
+        /**
+         * Serialising the SMD into the file
+         */
+        MARSHAL,
+        /**
+         * Writing the SMD to file, including file creation, serialisation and syncing the file to disk
+         */
+        WRITE,
+        /**
+         * The complete delivery, from start of SMD creation until the file is written
+         */
+        TOTAL
+    }
+
+    /**
+     * The types of Signals
+     */
+    public enum SignalType {
+        RECEIPT, ERROR
+    }
+
+    /**
+     * Gets the type of the given Signal.
+     *
+     * @param signal    The Signal
+     * @return          {@link SignalType#RECEIPT} when the Signal is a Receipt, {@link SignalType#ERROR} otherwise
+     */
+    static SignalType typeOf(final ISignalMessage signal) {
+        return signal instanceof IReceipt ? SignalType.RECEIPT : SignalType.ERROR;
+    }
+
+    /**
+     * Number of buckets in the latency histogram of each stage, the last bucket contains all latencies over 2^30 µs
+     */
+    static final int HISTOGRAM_BUCKETS = 32;
+
+    private final LongAdder[]     counts = new LongAdder[Stage.values().length];
+    private final LongAdder[]     totals = new LongAdder[Stage.values().length];
+    private final AtomicLongArray maxima = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray histograms = new AtomicLongArray(Stage.values().length * HISTOGRAM_BUCKETS);
+
+    private final LongAdder[]     delivered = new LongAdder[SignalType.values().length];
+    private final LongAdder[]     failed = new LongAdder[SignalType.values().length];
+    private final LongAdder       bytesWritten = new LongAdder();
+    private final AtomicLong      errorStreak = new AtomicLong();
+
+    public DeliveryStatistics() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+        }
+        for (int i = 0; i < delivered.length; i++) {
+            delivered[i] = new LongAdder();
+            failed[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time spent in the given stage.
+     *
+     * @param stage     The stage that was executed
+     * @param nanos     The time spent in the stage, in nanoseconds
+     */
+    public void record(final Stage stage, final long nanos) {
+        final int i = stage.ordinal();
+        counts[i].increment();
+        totals[i].add(nanos);
+        long max;
+        while (nanos > (max = maxima.get(i)) && !maxima.compareAndSet(i, max, nanos));
+        histograms.incrementAndGet(i * HISTOGRAM_BUCKETS + bucket(nanos));
+    }
+
+    /**
+     * Records the successful delivery of a Signal.
+     *
+     * @param type  The type of the delivered Signal
+     */
+    public void recordSuccess(final SignalType type) {
+        delivered[type.ordinal()].increment();
+        // Only write when needed to prevent contention on the streak counter
+        if (errorStreak.get() != 0)
+            errorStreak.set(0);
+    }
+
+    /**
+     * Records the failed delivery of a Signal.
+     *
+     * @param type  The type of the Signal that could not be delivered
+     */
+    public void recordFailure(final SignalType type) {
+        failed[type.ordinal()].increment();
+        errorStreak.incrementAndGet();
+    }
+
+    /**
+     * Records the number of bytes written to a SMD file.
+     *
+     * @param bytes The number of bytes written
+     */
+    public void recordBytesWritten(final long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param stage The stage to get the count for
+     * @return      The number of times the given stage was executed
+     */
+    public long getCount(final Stage stage) {
+        return counts[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage The stage to get the average latency for
+     * @return      The average time spent in the given stage in microseconds, 0 if the stage was not executed yet
+     */
+    public long getAverageLatency(final Stage stage) {
+        final long n = getCount(stage);
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totals[stage.ordinal()].sum() / n);
+    }
+
+    /**
+     * @param stage The stage to get the maximum latency for
+     * @return      The maximum time spent in the given stage in microseconds
+     */
+    public long getMaxLatency(final Stage stage) {
+        return TimeUnit.NANOSECONDS.toMicros(maxima.get(stage.ordinal()));
+    }
+
+    /**
+     * Gets the latency of the given stage below which the given percentage of the measurements fall. As the latencies
+     * are kept in a histogram the result is the upper bound of the bucket that contains the percentile.
+     *
+     * @param stage         The stage to get the percentile for
+     * @param percentile    The percentile, between 0 and 100
+     * @return              The upper bound of the latency in microseconds, 0 if the stage was not executed yet
+     */
+    public long getPercentileLatency(final Stage stage, final double percentile) {
+        final int base = stage.ordinal() * HISTOGRAM_BUCKETS;
+        long n = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++)
+            n += histograms.get(base + b);
+        if (n == 0)
+            return 0;
+        final long threshold = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS - 1; b++)
+            if ((seen += histograms.get(base + b)) >= threshold)
+                return 1L << b;
+        return getMaxLatency(stage);
+    }
+
+    /**
+     * @param type  The type of Signal
+     * @return      The number of Signals of the given type that were delivered successfully
+     */
+    public long getDelivered(final SignalType type) {
+        return delivered[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type  The type of Signal
+     * @return      The number of Signals of the given type that could not be delivered
+     */
+    public long getFailed(final SignalType type) {
+        return failed[type.ordinal()].sum();
+    }
+
+    /**
+     * @return  The total number of bytes written to the SMD files
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return  The number of deliveries that failed since the last successful delivery
+     */
+    public long getErrorStreak() {
+        return errorStreak.get();
+    }
+
+    /**
+     * Gets the histogram bucket for the given latency. Bucket <i>b</i> contains the latencies up to 2^b microseconds.
+     */
+    private static int bucket(final long nanos) {
+        final long micros = nanos / 1000;
+        return micros <= 1 ? 0 : Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Determines the sub directory of the target directory an SMD file is written to. Spreading the files over multiple
+ * directories keeps the directories small, which speeds up both the creation of new files and the listing of the
+ * directory by the back-end.
+ * <p>The sub directories are created when the first file is written to them. The directories already created are
+ * cached so the file system does not need to be checked for each Signal.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class DirectorySharder {
+
+    /**
+     * The ways the SMD files can be spread over sub directories
+     */
+    enum Mode {
+        /**
+         * All files are written directly in the target directory
+         */
+        NONE,
+        /**
+         * A sub directory per day, named <i>yyyy-MM-dd</i>
+         */
+        DATE,
+        /**
+         * A sub directory per day containing a sub directory per hour, i.e. <i>yyyy-MM-dd/HH</i>
+         */
+        HOUR,
+        /**
+         * One of 256 sub directories, named by the two hexadecimal digits of the hash of the message id
+         */
+        HASH,
+        /**
+         * A sub directory per type of Signal, i.e. <i>receipts</i> and <i>errors</i>
+         */
+        TYPE
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd/HH");
+
+    /**
+     * The sub directory for the current day or hour and the time until which it is used
+     */
+    private static final class TimeShard {
+        final long  validUntil;
+        final Path  directory;
+
+        TimeShard(final long validUntil, final Path directory) {
+            this.validUntil = validUntil;
+            this.directory = directory;
+        }
+    }
+
+    private final Path      root;
+    private final Mode      mode;
+    private final boolean   syncNewDirs;
+
+    /**
+     * The sub directories that are known to exist
+     */
+    private final ConcurrentHashMap<Path, Boolean>  created = new ConcurrentHashMap<>();
+
+    /**
+     * The sub directories for each hash value or Signal type, created up front so no paths need to be resolved per
+     * Signal
+     */
+    private final Path[]    fixedShards;
+
+    private volatile TimeShard  currentTimeShard = new TimeShard(Long.MIN_VALUE, null);
+
+    /**
+     * Creates a new sharder.
+     *
+     * @param root          The target directory
+     * @param mode          The way the files should be spread over sub directories
+     * @param syncNewDirs   Indicates whether the parent directory should be synced when a new sub directory is created
+     */
+    DirectorySharder(final Path root, final Mode mode, final boolean syncNewDirs) {
+        this.root = root;
+        this.mode = mode;
+        this.syncNewDirs = syncNewDirs;
+        switch (mode) {
+        case HASH :
+            fixedShards = new Path[256];
+            for (int i = 0; i < 256; i++)
+                fixedShards[i] = root.resolve(new String(new char[] { HEX[i >> 4], HEX[i & 0xf] }));
+            break;
+        case TYPE :
+            fixedShards = new Path[] { root.resolve("receipts"), root.resolve("errors") };
+            break;
+        default:
+            fixedShards = null;
+        }
+    }
+
+    /**
+     * @return  The target directory
+     */
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return  The maximum depth of the sub directories below the target directory
+     */
+    int getDepth() {
+        return mode == Mode.NONE ? 0 : mode == Mode.HOUR ? 2 : 1;
+    }
+
+    /**
+     * Gets the directory where the SMD file for the given Signal should be written to. The directory is created if it
+     * does not exist yet.
+     *
+     * @param signal    The Signal
+     * @return          The directory to write the SMD file to
+     * @throws IOException  When the directory does not exist and could not be created
+     */
+    Path getDirectory(final ISignalMessage signal) throws IOException {
+        final Path dir;
+        switch (mode) {
+        case NONE :
+            return root;
+        case HASH :
+            final String msgId = signal.getMessageId();
+            int h = msgId != null ? msgId.hashCode() : 0;
+            h ^= (h >>> 16);
+            dir = fixedShards[(h ^ (h >>> 8)) & 0xff];
+            break;
+        case TYPE :
+            dir = fixedShards[signal instanceof IReceipt ? 0 : 1];
+            break;
+        default :
+            dir = getTimeShard();
+        }
+        if (!created.containsKey(dir)) {
+            final boolean isNew = !Files.isDirectory(dir);
+            Files.createDirectories(dir);
+            if (isNew && syncNewDirs)
+                for (Path p = dir.getParent(); p != null && p.startsWith(root); p = p.getParent())
+                    FileSync.syncDirectory(p);
+            created.put(dir, Boolean.TRUE);
+        }
+        return dir;
+    }
+
+    /**
+     * Removes the given directory from the cache of existing directories, for example because writing to it failed
+     * as the directory was removed by the back-end.
+     *
+     * @param dir   The directory to remove from the cache
+     */
+    void invalidate(final Path dir) {
+        created.remove(dir);
+    }
+
+    /**
+     * Gets the sub directory for the current day or hour. The path is only resolved again when the day or hour has
+     * passed.
+     */
+    private Path getTimeShard() {
+        TimeShard shard = currentTimeShard;
+        final long now = System.currentTimeMillis();
+        if (now >= shard.validUntil) {
+            final ZonedDateTime start = ZonedDateTime.now().truncatedTo(mode == Mode.HOUR ? ChronoUnit.HOURS
+                                                                                          : ChronoUnit.DAYS);
+            final ZonedDateTime end = mode == Mode.HOUR ? start.plusHours(1) : start.plusDays(1);
+            shard = new TimeShard(end.toInstant().toEpochMilli(),
+                                  root.resolve((mode == Mode.HOUR ? HOUR_FORMAT : DATE_FORMAT).format(start)));
+            currentTimeShard = shard;
+        }
+        return shard.directory;
+    }
+}
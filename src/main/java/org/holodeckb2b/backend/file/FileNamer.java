@@ -0,0 +1,203 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Creates the names of the SMD files based on a configurable pattern. The pattern is parsed once when the namer is
+ * created, so creating a name only requires appending the parts of the pattern. The pattern can contain the following
+ * placeholders:<ul>
+ * <li><code>{msgId}</code> : the message id of the Signal</li>
+ * <li><code>{refToMsgId}</code> : the message id of the message the Signal refers to</li>
+ * <li><code>{type}</code> : the type of Signal, i.e. <i>receipt</i> or <i>error</i></li>
+ * <li><code>{ts}</code> : the time stamp of the Signal in milliseconds since the epoch</li>
+ * <li><code>{nodeId}</code> : the identifier of this Holodeck B2B instance</li>
+ * <li><code>{seq}</code> : a sequence number that is unique for this instance</li>
+ * </ul>
+ * All characters in the values of the placeholders other than letters, digits, '.' and '-' are replaced by '_'. When
+ * the Signal has no message id {@value #NO_MSG_ID} is used instead.
+ * <p>Files whose name starts with a '.' are hidden and used for the temporary files of atomic writes, so they are
+ * ignored when the delivered Signals are read from the directory and may even be removed as left over temporary file.
+ * Therefore the pattern must not start with a '.' and when the name created for a Signal still does, for example
+ * because its message id starts with a '.', an '_' is put in front of it.
+ * <p>The sequence number starts at a random 64 bit value when the namer is created, so the chance that numbers used
+ * before a restart are used again is negligible. Combined with a node identifier that is unique for each instance
+ * writing to the directory, a pattern that contains both <code>{nodeId}</code> and <code>{seq}</code> therefore
+ * practically never creates a name that is already in use, also when multiple instances share the same (network)
+ * directory. As the files are created exclusively, an existing file is never overwritten when it still happens.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class FileNamer {
+
+    /**
+     * The default pattern, which uses just the message id as the file name
+     */
+    static final String DEFAULT_PATTERN = "{msgId}";
+
+    /**
+     * The value used for the <code>{msgId}</code> placeholder when the Signal has no message id
+     */
+    static final String NO_MSG_ID = "no-msgId";
+
+    /**
+     * The placeholders that can be used in the pattern
+     */
+    private enum Placeholder {
+        MSG_ID("{msgId}"), REF_TO_MSG_ID("{refToMsgId}"), TYPE("{type}"), TS("{ts}"), NODE_ID("{nodeId}"),
+        SEQ("{seq}");
+
+        final String token;
+
+        Placeholder(final String token) {
+            this.token = token;
+        }
+    }
+
+    /**
+     * The parsed pattern, containing either literal strings or placeholders
+     */
+    private final Object[]      parts;
+    private final String        nodeId;
+    private final AtomicLong    seq = new AtomicLong(new SecureRandom().nextLong());
+
+    /**
+     * Creates a new namer.
+     *
+     * @param pattern   The pattern of the file names, when <code>null</code> the {@link #DEFAULT_PATTERN} is used
+     * @param nodeId    The identifier of this instance, when <code>null</code> the process id and host name are used
+     * @throws IllegalArgumentException When the pattern is empty, starts with a '.' or contains an unknown placeholder
+     *                                  or a path separator
+     */
+    FileNamer(final String pattern, final String nodeId) {
+        this.parts = parse(pattern != null ? pattern : DEFAULT_PATTERN);
+        this.nodeId = sanitize(nodeId != null ? nodeId : ManagementFactory.getRuntimeMXBean().getName(),
+                               new StringBuilder()).toString();
+    }
+
+    /**
+     * Creates the name of the SMD file for the given Signal, without extension.
+     *
+     * @param signal    The Signal
+     * @return          The file name
+     */
+    String getName(final ISignalMessage signal) {
+        final StringBuilder name = new StringBuilder(64);
+        for (Object p : parts) {
+            if (p instanceof String)
+                name.append((String) p);
+            else
+                switch ((Placeholder) p) {
+                case MSG_ID :
+                    final String msgId = signal.getMessageId();
+                    sanitize(msgId != null && !msgId.isEmpty() ? msgId : NO_MSG_ID, name);
+                    break;
+                case REF_TO_MSG_ID :
+                    sanitize(signal.getRefToMessageId(), name);
+                    break;
+                case TYPE :
+                    name.append(signal instanceof IReceipt ? "receipt" : "error");
+                    break;
+                case TS :
+                    final Date ts = signal.getTimestamp();
+                    name.append(ts != null ? ts.getTime() : System.currentTimeMillis());
+                    break;
+                case NODE_ID :
+                    name.append(nodeId);
+                    break;
+                case SEQ :
+                    name.append(Long.toHexString(seq.getAndIncrement()));
+                }
+        }
+        // Prevent a hidden file, which would be taken for a temporary file
+        if (name.length() == 0 || name.charAt(0) == '.')
+            name.insert(0, '_');
+        return name.toString();
+    }
+
+    /**
+     * Appends the given value to the name, replacing each character that is not a letter, digit, '.' or '-' by '_'.
+     * This results in the same names as the regular expression <code>[^a-zA-Z0-9.-]</code> used by earlier versions,
+     * which matches per code point, so a character outside the Basic Multilingual Plane, i.e. a surrogate pair, is
+     * replaced by a single '_'.
+     *
+     * @param value The value to append, nothing is appended when <code>null</code>
+     * @param name  The name being built
+     * @return      The name being built
+     */
+    static StringBuilder sanitize(final String value, final StringBuilder name) {
+        if (value == null)
+            return name;
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-')
+                name.append(c);
+            else {
+                name.append('_');
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1)))
+                    i++;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Parses the pattern into its literal and placeholder parts.
+     */
+    private static Object[] parse(final String pattern) {
+        if (pattern.startsWith("."))
+            throw new IllegalArgumentException("File name pattern must not start with .");
+        final List<Object> parts = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i);
+            if (c == '{') {
+                Placeholder placeholder = null;
+                for (Placeholder p : Placeholder.values())
+                    if (pattern.startsWith(p.token, i))
+                        placeholder = p;
+                if (placeholder == null)
+                    throw new IllegalArgumentException("Unknown placeholder in file name pattern at position " + i);
+                if (literal.length() > 0) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+                parts.add(placeholder);
+                i += placeholder.token.length();
+            } else {
+                if (c == '/' || c == '\\' || c == ':')
+                    throw new IllegalArgumentException("File name pattern must not contain " + c);
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0)
+            parts.add(literal.toString());
+        if (parts.isEmpty())
+            throw new IllegalArgumentException("File name pattern is empty");
+        return parts.toArray();
+    }
+}
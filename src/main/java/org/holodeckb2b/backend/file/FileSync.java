@@ -0,0 +1,51 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Contains helper methods to ensure that written files are durable.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+final class FileSync {
+
+    /**
+     * Indicates whether directories can be synced, which is not possible on Windows as directories can not be opened
+     */
+    private static final boolean DIR_SYNC_SUPPORTED = File.separatorChar == '/';
+
+    private FileSync() {}
+
+    /**
+     * Syncs the given directory so changes to its entries, i.e. created, renamed or removed files, are durable. On
+     * platforms that do not support syncing directories this method does nothing.
+     *
+     * @param dir   The directory to sync
+     * @throws IOException  When the directory could not be synced
+     */
+    static void syncDirectory(final Path dir) throws IOException {
+        if (!DIR_SYNC_SUPPORTED)
+            return;
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+}
@@ -16,44 +16,155 @@ package org.holodeckb2b.backend.file;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.holodeckb2b.commons.util.FileUtils;
 import org.holodeckb2b.commons.util.Utils;
-import org.holodeckb2b.delivery.signals.smd.ObjectFactory;
-import org.holodeckb2b.delivery.signals.smd.SignalMessage;
-import org.holodeckb2b.delivery.signals.utils.SMDFactory;
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.JAXBSerializer;
+import org.holodeckb2b.delivery.signals.utils.MarshallerPool;
+import org.holodeckb2b.delivery.signals.utils.Settings;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
 import org.holodeckb2b.interfaces.delivery.IDeliveryMethod;
 import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
-import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
 import org.holodeckb2b.interfaces.messagemodel.IMessageUnit;
 import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
 
 /**
  * Is a {@link IDeliveryMethod} implementation that notifies the business application about received <i>Signal 
  * Messages</i> by writing the signal meta-data (SMD) to file.
  * <p>The XML format of the meta data document is based on the ebMS header for signals and is defined in the 
  * <code>http://holodeck-b2b.org/schemas/2015/08/smd</code> xml schema definition.
- * <p>The delivery method takes two parameters:<ol>
+ * <p>The delivery method takes the following parameters:<ol>
  * <li><i>targetDirectory</i> : the path to the directory where the SMD files should be written.</li>
  * <li><i>includeReceiptContent</i> : a boolean that indicate whether the complete Receipt content from the ebMS message
  * should be included (<i>"true"</i>) or only the first child element (<i>"false"</i>). Default is <i>false</i> (only
  * first child included).</li>
+ * <li><i>marshallerPoolSize</i> : the maximum number of idle JAXB marshallers kept for re-use. It does not limit the
+ * number of marshallers in use, which equals the number of threads delivering Signals at the same time. This is an
+ * optional parameter with default value {@value MarshallerPool#DEFAULT_SIZE}.</li>
+ * <li><i>serializer</i> : the component used to write the SMD, either <i>"jaxb"</i> to create the document using the
+ * JAXB object model or <i>"stax"</i> to stream the document directly from the Signal. The documents contain the same
+ * information, see {@link StAXSerializer} for the differences in their formatting. Default is <i>"jaxb"</i>.</li>
+ * <li><i>format</i> : the format of the SMD files, either <i>"xml"</i> for the XML document described above,
+ * <i>"json"</i> for a compact JSON document (see {@link JSONSerializer}) or <i>"cbor"</i> for a binary CBOR document
+ * (see {@link CBORSerializer}). The files get the extension <i>.smd.xml</i>, <i>.smd.json</i> or <i>.smd.cbor</i>
+ * respectively. The <i>serializer</i> parameter only applies to the XML format. Default is <i>"xml"</i>.</li>
+ * <li><i>streamReceiptContent</i> : a boolean that indicates whether, when the complete Receipt content is included
+ * and the JAXB serializer is used, the Receipts should be written using the streaming serializer so their content does
+ * not need to be copied into a DOM. As the Receipt content is then formatted differently, see {@link StAXSerializer},
+ * this must be enabled explicitly. Default is <i>false</i>.</li>
+ * <li><i>asyncDelivery</i> : a boolean that indicates whether the Signals should be delivered asynchronously by a pool
+ * of worker threads instead of on the thread of the Holodeck B2B Core. Default is <i>false</i>.</li>
+ * <li><i>workerPoolSize</i> : the number of workers that deliver the Signals in asynchronous mode. Default is the
+ * number of available processors.</li>
+ * <li><i>queueSize</i> : the maximum number of Signals waiting for delivery in asynchronous mode. Default is {@value
+ * #DEFAULT_QUEUE_SIZE}.</li>
+ * <li><i>queueTimeout</i> : the maximum time in milliseconds the Holodeck B2B Core waits for space in the queue when
+ * it is full. When no space comes available in time the delivery fails and will be retried by the Core. Default is
+ * {@value #DEFAULT_QUEUE_TIMEOUT}.</li>
+ * <li><i>batchSize</i> : the maximum number of Signals that are written together in one batch. The SMD files of a
+ * batch are synced to disk together and the delivery of the Signals in a batch is only acknowledged when the complete
+ * batch is durable. When set to 1, which is the default, Signals are not batched.</li>
+ * <li><i>batchWindow</i> : the maximum time in milliseconds a Signal waits for its batch to be written. Default is
+ * {@value #DEFAULT_BATCH_WINDOW}.</li>
+ * <li><i>atomicWrites</i> : a boolean that indicates whether the SMD files should be written atomically, i.e. first
+ * to a hidden temporary file which is then published under the final name. This ensures the back-end never sees
+ * partially written files. Default is <i>false</i>.</li>
+ * <li><i>durability</i> : the level of durability of the written SMD files, one of <i>"none"</i> (the OS decides when
+ * data is written to disk), <i>"fdatasync"</i> (the file's content is synced to disk) or <i>"fsync"</i> (both the
+ * file and its directory are synced to disk). Default is <i>"none"</i>. When batching is used the batches are always
+ * written with level <i>"fsync"</i>.</li>
+ * <li><i>shardBy</i> : how the SMD files are spread over sub directories of the target directory, one of <i>"none"</i>
+ * (all files are written directly in the target directory), <i>"date"</i> (a sub directory per day named
+ * <i>yyyy-MM-dd</i>), <i>"hour"</i> (a sub directory per hour named <i>yyyy-MM-dd/HH</i>), <i>"hash"</i> (256 sub
+ * directories named by the hash of the message id) or <i>"type"</i> (the sub directories <i>receipts</i> and
+ * <i>errors</i>). Default is <i>"none"</i>.</li>
+ * <li><i>fileNamePattern</i> : the pattern used to create the names of the SMD files, which can contain the
+ * placeholders <i>{msgId}</i>, <i>{refToMsgId}</i>, <i>{type}</i>, <i>{ts}</i>, <i>{nodeId}</i> and <i>{seq}</i>. A
+ * pattern containing both <i>{nodeId}</i> and <i>{seq}</i> creates unique names, also when multiple instances write
+ * to the same directory. The pattern must not start with a '.'. Default is <i>"{msgId}"</i>. See {@link FileNamer}
+ * for details.</li>
+ * <li><i>nodeId</i> : the identifier of this Holodeck B2B instance used for the <i>{nodeId}</i> placeholder. Must be
+ * unique for each instance writing to the same directory. Default is the process id and host name.</li>
+ * <li><i>jmxMetrics</i> : a boolean that indicates whether the delivery statistics should be exposed as a JMX MBean,
+ * see {@link DeliveryMetricsMXBean}. The MBean is registered on initialisation and removed on shut down. Default is
+ * <i>false</i>.</li>
+ * <li><i>deduplicate</i> : a boolean that indicates whether Signals that were already delivered should be skipped,
+ * i.e. not written to file again. A Signal is identified by its message id and the message id it refers to. The
+ * delivered Signals are kept in a cache that is filled with the Signals whose SMD file is found in the target
+ * directory on initialisation. See {@link DeliveredSignalCache}. Default is <i>false</i>.</li>
+ * <li><i>dedupCacheSize</i> : the maximum number of delivered Signals kept for detecting duplicates. Default is
+ * {@value DeliveredSignalCache#DEFAULT_SIZE}.</li>
+ * <li><i>dedupTTL</i> : the time in seconds a delivered Signal is kept for detecting duplicates. Default is {@value
+ * DeliveredSignalCache#DEFAULT_TTL} (one day).</li>
+ * <li><i>warmUp</i> : a boolean that indicates whether the delivery method should warm up on initialisation. The
+ * SMD of a synthetic Error and Receipt is then created a number of times in the background, so the Holodeck B2B Core
+ * does not need to wait for this and the first Signal is delivered without the delay of loading and compiling the
+ * classes. The left over temporary files are removed and the delivered Signals are read in the background as well.
+ * The target directory is still checked on initialisation. Deliveries wait until the warm-up is done. See {@link
+ * WarmUp}. Default is <i>false</i>.</li>
+ * <li><i>writeTimeout</i> : the maximum time in milliseconds a delivery waits for the SMD file to be written. When the
+ * file is not written in time the delivery fails, so the Holodeck B2B Core can retry it later instead of being blocked
+ * by a slow file system. When set the files are written by a separate pool of threads. As a file that is written after
+ * the delivery failed is discarded before it is published, a write timeout can only be used together with
+ * <i>atomicWrites</i>. Default is <i>0</i>, which means the delivery waits until the file is written.</li>
+ * <li><i>maxConcurrentWrites</i> : the maximum number of SMD files written concurrently to the target directory. The
+ * actual limit adapts to the write latency and deliveries fail immediately when it is reached. See {@link
+ * WriteLimiter}. Default is no limit, or {@value WriteLimiter#DEFAULT_MAX_CONCURRENT} when a write timeout is set.</li>
+ * <li><i>writeLatencyTarget</i> : the write latency in milliseconds above which the limit of concurrent writes is
+ * decreased. Default is {@value WriteLimiter#DEFAULT_LATENCY_TARGET}.</li>
+ * <li><i>formattedOutput</i> : a boolean that indicates whether the XML documents should be formatted using line breaks
+ * and indentation. Turning formatting off results in smaller files. Default is <i>true</i>.</li>
+ * <li><i>writeBufferSize</i> : the size in bytes of the buffer used for writing the SMD files. When the buffer is at
+ * least as large as the SMD, the file is written in one call. Default is {@value SMDFileWriter#DEFAULT_BUFFER_SIZE}.
+ * </li>
+ * <li><i>compression</i> : the compression applied to the SMD files, either <i>"none"</i> or <i>"gzip"</i>. Default is
+ * <i>"none"</i>.</li>
+ * <li><i>compressionLevel</i> : the level of compression, from 1 (fastest) to 9 (smallest). Default is {@value
+ * SMDFileWriter#DEFAULT_COMPRESSION_LEVEL}.</li>
+ * <li><i>compressedSuffix</i> : the suffix added to the name of compressed files. Default is <i>".gz"</i>, so for
+ * example an XML file is named <i>.smd.xml.gz</i>.</li>
  * </ol>
  * <p>NOTE: This delivery method can only be used for Signals!
  */
 public class NotifyOperation implements IDeliveryMethod {
     private final Logger log = LogManager.getLogger(NotifyOperation.class);
 
+    /**
+     * Default maximum number of Signals waiting for delivery in asynchronous mode
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Default maximum time in milliseconds to wait for space in the queue in asynchronous mode
+     */
+    public static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    /**
+     * Default maximum time in milliseconds a Signal waits for its batch to be written
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 100;
+
+    /**
+     * Maximum time in milliseconds to wait for queued Signals to be delivered when the delivery method is shut down
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
     /**
      * The path to the directory where to save the notifications
      */
@@ -63,6 +174,98 @@ public class NotifyOperation implements IDeliveryMethod {
      * Indicates whether the content of the Receipt should be included in the notification. Default it is not.
      */
     private boolean includeReceiptContent = false;
+
+    /**
+     * The serializer used to write the SMD documents
+     */
+    private ISMDSerializer<?> serializer;
+
+    /**
+     * The serializer used to write the SMD documents for Receipts
+     */
+    private ISMDSerializer<?> receiptSerializer;
+
+    /**
+     * The latency statistics of the deliveries done by this instance
+     */
+    private final DeliveryStatistics statistics = new DeliveryStatistics();
+
+    /**
+     * The worker pipeline when the Signals are delivered asynchronously, <code>null</code> in synchronous mode
+     */
+    private AsyncDeliveryPipeline pipeline;
+
+    /**
+     * The batch writer when the Signals are written in batches, <code>null</code> if not
+     */
+    private BatchWriter batchWriter;
+
+    /**
+     * The writer of the SMD files
+     */
+    private SMDFileWriter fileWriter;
+
+    /**
+     * Determines the (sub) directory of the target directory the SMD files are written to
+     */
+    private DirectorySharder sharder;
+
+    /**
+     * Creates the names of the SMD files
+     */
+    private FileNamer fileNamer;
+
+    /**
+     * Indicates whether the Signals are delivered asynchronously
+     */
+    private boolean asyncDelivery;
+
+    /**
+     * The MBean exposing the statistics, <code>null</code> if not enabled
+     */
+    private DeliveryMetrics metrics;
+
+    /**
+     * The Signals already delivered, <code>null</code> if duplicates are not detected
+     */
+    private DeliveredSignalCache deliveredSignals;
+
+    /**
+     * Reservation returned by {@link #reserve(ISignalMessage)} for a signal that was already delivered
+     */
+    private static final DeliveredSignalCache.Entry SKIP = new DeliveredSignalCache.Entry("", 0);
+
+    /**
+     * Completes when the delivery method is ready to deliver, i.e. the target directory was prepared and, when enabled,
+     * the warm-up is done
+     */
+    private CompletableFuture<Void> ready;
+
+    /**
+     * The time in milliseconds it took until the delivery method was ready to deliver, -1 while not ready yet
+     */
+    private volatile long startupTime = -1;
+
+    /**
+     * The time in milliseconds it took to deliver the first Signal, -1 while no Signal has been delivered yet
+     */
+    private final AtomicLong firstDeliveryLatency = new AtomicLong(-1);
+
+    /**
+     * Limits the concurrent writes to the target directory, <code>null</code> if not limited
+     */
+    private WriteLimiter writeLimiter;
+
+    /**
+     * The maximum time in milliseconds to wait for a SMD file to be written, 0 to wait until written
+     */
+    private long writeTimeout;
+
+    /**
+     * The suffix added to the names of the SMD files, i.e. after the extension of the format, empty when the files are
+     * not compressed
+     */
+    private String fileSuffix = "";
 	
     /**
      * Initializes the delivery method. Ensures that the specified directory is available for delivery of the Signals,
@@ -74,27 +277,239 @@ public class NotifyOperation implements IDeliveryMethod {
      */
 	@Override
 	public void init(Map<String, ?> settings) throws MessageDeliveryException {
-        String includeRcptCont = null;
-        
-        if (settings != null) {
-            try {
-               deliveryDir = (String) settings.get("targetDirectory");                
-               includeRcptCont = (String) settings.get("includeReceiptContent");
-            } catch (ClassCastException ex) {
-                throw new MessageDeliveryException("Configuration error! No directory specified!");
-            }
-        }        
-        if (!checkDirectory())
-            throw new MessageDeliveryException("Configuration error! Specified directory [" + deliveryDir
-                                                                        + "] is not available!");
+        final long initStart = System.nanoTime();
+        if (pipeline != null || batchWriter != null || metrics != null || writeLimiter != null) {
+            log.warn("Delivery method is initialised again without being shut down, shutting down first");
+            shutdown();
+        }
+        deliveryDir = Settings.get(settings, "targetDirectory");
+        if (Utils.isNullOrEmpty(deliveryDir))
+            throw new MessageDeliveryException("Configuration error! No target directory specified!");
         // Ensure directory path ends with separator
         deliveryDir = (deliveryDir.endsWith(FileSystems.getDefault().getSeparator()) ? deliveryDir 
                               : deliveryDir + FileSystems.getDefault().getSeparator());
         
+        final String durability = Settings.get(settings, "durability");
+        final SMDFileWriter.Durability durabilityLevel;
+        try {
+            durabilityLevel = Utils.isNullOrEmpty(durability) ? SMDFileWriter.Durability.NONE
+                                                    : SMDFileWriter.Durability.valueOf(durability.toUpperCase());
+        } catch (IllegalArgumentException unknownLevel) {
+            throw new MessageDeliveryException("Configuration error! Unknown durability level specified: "
+                                                + durability);
+        }
+        final String compression = Settings.get(settings, "compression");
+        final SMDFileWriter.Compression compressionAlg;
+        try {
+            compressionAlg = Utils.isNullOrEmpty(compression) ? SMDFileWriter.Compression.NONE
+                                                    : SMDFileWriter.Compression.valueOf(compression.toUpperCase());
+        } catch (IllegalArgumentException unknownAlg) {
+            throw new MessageDeliveryException("Configuration error! Unsupported compression specified: "
+                                                + compression);
+        }
+        final int compressionLevel = Settings.getInt(settings, "compressionLevel",
+                                                     SMDFileWriter.DEFAULT_COMPRESSION_LEVEL, 1);
+        if (compressionLevel > 9)
+            throw new MessageDeliveryException("Configuration error! Invalid value specified for compressionLevel: "
+                                                + compressionLevel);
+        if (compressionAlg != SMDFileWriter.Compression.NONE) {
+            final String suffix = Settings.get(settings, "compressedSuffix");
+            fileSuffix = suffix != null ? suffix : ".gz";
+        }
+        final boolean atomicWrites = Utils.isTrue(Settings.get(settings, "atomicWrites"));
+        fileWriter = new SMDFileWriter(atomicWrites, durabilityLevel,
+                                       Settings.getInt(settings, "writeBufferSize",
+                                                       SMDFileWriter.DEFAULT_BUFFER_SIZE, 512),
+                                       compressionAlg, compressionLevel, statistics);
+        final String shardBy = Settings.get(settings, "shardBy");
+        try {
+            sharder = new DirectorySharder(Paths.get(deliveryDir),
+                                           Utils.isNullOrEmpty(shardBy) ? DirectorySharder.Mode.NONE
+                                                    : DirectorySharder.Mode.valueOf(shardBy.toUpperCase()),
+                                           fileWriter.getDurability() == SMDFileWriter.Durability.FSYNC);
+        } catch (IllegalArgumentException unknownMode) {
+            throw new MessageDeliveryException("Configuration error! Unknown sharding specified: " + shardBy);
+        }
+        try {
+            fileNamer = new FileNamer(Settings.get(settings, "fileNamePattern"), Settings.get(settings, "nodeId"));
+        } catch (IllegalArgumentException invalidPattern) {
+            throw new MessageDeliveryException("Configuration error! Invalid file name pattern specified: "
+                                                + invalidPattern.getMessage());
+        }
+        writeTimeout = Settings.getInt(settings, "writeTimeout", 0, 0);
+        // Without atomic writes the back-end could already read a file that is removed because it was written too late
+        if (writeTimeout > 0 && !atomicWrites)
+            throw new MessageDeliveryException("Configuration error! writeTimeout can only be used with atomicWrites");
+        final int maxConcurrentWrites = Settings.getInt(settings, "maxConcurrentWrites",
+                                                        writeTimeout > 0 ? WriteLimiter.DEFAULT_MAX_CONCURRENT : 0, 1);
+        final long writeLatencyTarget = Settings.getInt(settings, "writeLatencyTarget",
+                                                        (int) WriteLimiter.DEFAULT_LATENCY_TARGET, 1);
+        if (Utils.isTrue(Settings.get(settings, "deduplicate")))
+            deliveredSignals = new DeliveredSignalCache(Settings.getInt(settings, "dedupCacheSize",
+                                                                        DeliveredSignalCache.DEFAULT_SIZE, 1),
+                                                        Settings.getInt(settings, "dedupTTL",
+                                                                        DeliveredSignalCache.DEFAULT_TTL, 1));
+
         // Should we include receipt content?
-        includeReceiptContent = Utils.isTrue(includeRcptCont);
+        includeReceiptContent = Utils.isTrue(Settings.get(settings, "includeReceiptContent"));
+
+        final String fmtOutput = Settings.get(settings, "formattedOutput");
+        final boolean formatted = Utils.isNullOrEmpty(fmtOutput) || Utils.isTrue(fmtOutput);
+        final String format = Settings.get(settings, "format");
+        final String serializerName = Settings.get(settings, "serializer");
+        boolean usesJAXB = false;
+        if ("json".equalsIgnoreCase(format))
+            receiptSerializer = serializer = new JSONSerializer(includeReceiptContent);
+        else if ("cbor".equalsIgnoreCase(format))
+            receiptSerializer = serializer = new CBORSerializer(includeReceiptContent);
+        else if (!Utils.isNullOrEmpty(format) && !"xml".equalsIgnoreCase(format))
+            throw new MessageDeliveryException("Configuration error! Unknown format specified: " + format);
+        else if (Utils.isNullOrEmpty(serializerName) || "jaxb".equalsIgnoreCase(serializerName)) {
+            final MarshallerPool marshallers = new MarshallerPool(Settings.getInt(settings, "marshallerPoolSize",
+                                                                                  MarshallerPool.DEFAULT_SIZE, 1),
+                                                                  formatted);
+            usesJAXB = true;
+            serializer = new JAXBSerializer(includeReceiptContent, marshallers);
+            // Converting the complete Receipt content to DOM is expensive, so stream it when enabled
+            final boolean streamReceipts = Utils.isTrue(Settings.get(settings, "streamReceiptContent"));
+            receiptSerializer = includeReceiptContent && streamReceipts ? new StAXSerializer(true, formatted)
+                                                                        : serializer;
+        } else if ("stax".equalsIgnoreCase(serializerName))
+            receiptSerializer = serializer = new StAXSerializer(includeReceiptContent, formatted);
+        else
+            throw new MessageDeliveryException("Configuration error! Unknown serializer specified: "
+                                                + serializerName);
+
+        final int maxQueued = Settings.getInt(settings, "queueSize", DEFAULT_QUEUE_SIZE, 1);
+        final long maxWait = Settings.getInt(settings, "queueTimeout", (int) DEFAULT_QUEUE_TIMEOUT, 0);
+        final int batchSize = Settings.getInt(settings, "batchSize", 1, 1);
+        final long batchWindow = Settings.getInt(settings, "batchWindow", (int) DEFAULT_BATCH_WINDOW, 0);
+        asyncDelivery = Utils.isTrue(Settings.get(settings, "asyncDelivery"));
+        final int nWorkers = Settings.getInt(settings, "workerPoolSize", Runtime.getRuntime().availableProcessors(), 1);
+        final boolean jmxMetrics = Utils.isTrue(Settings.get(settings, "jmxMetrics"));
+
+        // The directory is always checked now, so a configuration error is not only detected on delivery
+        if (!checkDirectory())
+            throw new MessageDeliveryException("Configuration error! Specified directory [" + deliveryDir
+                                                                        + "] is not available!");
+        if (!Utils.isTrue(Settings.get(settings, "warmUp"))) {
+            prepareDirectory();
+            // Create the JAXB context now, so a problem is detected at configuration time and not on first delivery
+            if (usesJAXB)
+                createJAXBContext();
+            startupTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStart);
+            ready = CompletableFuture.completedFuture(null);
+            log.info("Initialised delivery to {} in {} ms", deliveryDir, startupTime);
+        } else {
+            final boolean createContext = usesJAXB;
+            // Preparing the directory is mostly waiting for I/O, so do it in parallel with the warm-up
+            ready = CompletableFuture.allOf(WarmUp.runInBackground("smd-init-directory", () -> {
+                                                prepareDirectory();
+                                                probeDirectory();
+                                                return null;
+                                            }),
+                                            WarmUp.runInBackground("smd-init-warmup", () -> {
+                                                warmUp(createContext);
+                                                return null;
+                                            }));
+            final long initTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStart);
+            log.debug("Initialised delivery to {} in {} ms, warming up in the background", deliveryDir, initTime);
+            ready.whenComplete((r, failure) -> {
+                startupTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStart);
+                if (failure == null)
+                    log.info("Initialised delivery to {} in {} ms, ready for delivery after {} ms", deliveryDir,
+                             initTime, startupTime);
+                else
+                    log.error("Initialisation of delivery to {} failed after {} ms : {}", deliveryDir, startupTime,
+                              failure.getCause() != null ? failure.getCause().getMessage() : failure.getMessage());
+            });
+        }
+
+        // Threads are only started and the MBean registered when the configuration is valid, so nothing is left
+        // running when the initialisation fails
+        try {
+            if (batchSize > 1) {
+                log.debug("Writing SMD files in batches of max {} Signals within {} ms", batchSize, batchWindow);
+                batchWriter = new BatchWriter(batchSize, batchWindow, maxQueued, maxWait,
+                                              s -> writeSMD(s, SMDFileWriter.Durability.FSYNC, true), statistics);
+            }
+            // When batching the batch writer already delivers asynchronously, so no workers are needed
+            if (asyncDelivery && batchWriter == null) {
+                log.debug("Using asynchronous delivery with {} workers and queue size {}", nWorkers, maxQueued);
+                pipeline = new AsyncDeliveryPipeline("smd-delivery", nWorkers, maxQueued, maxWait, this::deliver,
+                                                     statistics);
+            }
+            if (maxConcurrentWrites > 0)
+                writeLimiter = WriteLimiter.acquire(sharder.getRoot(), maxConcurrentWrites, writeLatencyTarget);
+            if (jmxMetrics) {
+                metrics = new DeliveryMetrics(this, deliveryDir);
+                metrics.register();
+            }
+        } catch (RuntimeException | Error startFailure) {
+            log.error("Could not start the delivery to {} : {}", deliveryDir, startFailure.getMessage());
+            shutdown();
+            throw startFailure;
+        }
 	}
 
+    /**
+     * Prepares the already checked target directory for delivery. Removes the temporary files of writes interrupted by
+     * a crash and, when duplicates are detected, reads the Signals already delivered.
+     */
+    private void prepareDirectory() {
+        // Remove temporary files of writes interrupted by a crash
+        SMDFileWriter.sweepTempFiles(sharder.getRoot(), sharder.getDepth());
+        if (deliveredSignals != null)
+            deliveredSignals.load(sharder.getRoot(), sharder.getDepth(), fileSuffix);
+    }
+
+    /**
+     * Checks that files can be written to the target directory, which also loads the classes used for writing them.
+     */
+    private void probeDirectory() {
+        try {
+            WarmUp.probe(sharder.getRoot(), fileWriter, serializer);
+        } catch (IOException | RuntimeException | LinkageError probeFailure) {
+            // The directory check passed, so there is no reason to stop, the problem will show up on delivery
+            log.warn("Could not write a test file to {} : {}", deliveryDir, probeFailure.getMessage());
+        }
+    }
+
+    /**
+     * Creates the shared JAXB context.
+     *
+     * @throws MessageDeliveryException When the JAXB context could not be created
+     */
+    private static void createJAXBContext() throws MessageDeliveryException {
+        try {
+            MarshallerPool.getContext();
+        } catch (JAXBException jaxbError) {
+            throw new MessageDeliveryException("Could not create the JAXB context for writing the SMD files!",
+                                                jaxbError);
+        }
+    }
+
+    /**
+     * Warms up the serializers by creating the SMD of a synthetic Error and Receipt a number of times.
+     *
+     * @param createContext Indicates whether the JAXB context must be created
+     * @throws MessageDeliveryException When the JAXB context could not be created
+     */
+    private void warmUp(final boolean createContext) throws MessageDeliveryException {
+        final long start = System.nanoTime();
+        if (createContext)
+            createJAXBContext();
+        try {
+            WarmUp.exercise(serializer, WarmUp.createError(), WarmUp.ITERATIONS);
+            WarmUp.exercise(receiptSerializer, WarmUp.createReceipt(), WarmUp.ITERATIONS);
+        } catch (IOException | RuntimeException | LinkageError warmUpFailure) {
+            // Not a reason to stop, the problem will show up again when a Signal is delivered
+            log.warn("Could not warm up the serializers : {}", warmUpFailure.getMessage());
+            return;
+        }
+        log.debug("Warmed up the serializers in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
 	 /**
      * Helper method that checks if the specified path for delivery of the Signals is a writable directory or if the
      * path does not exist a directory can be created.
@@ -121,9 +536,132 @@ public class NotifyOperation implements IDeliveryMethod {
     
 	@Override
 	public boolean supportsAsyncDelivery() {
-		return false;
+		return asyncDelivery;
 	}
 
+    /**
+     * Delivers the signal message asynchronously. The signal is queued for delivery by one of the workers and the
+     * result is reported to the given callback. When the delivery method is not configured for asynchronous delivery
+     * the signal is delivered directly.
+     *
+     * @param rcvdMsgUnit   The signal message to be delivered to the business application
+     * @param callback      The callback to report the result of the delivery to
+     * @throws MessageDeliveryException When the signal could not be queued because the queue is full
+     */
+    @Override
+    public void deliver(IMessageUnit rcvdMsgUnit, IDeliveryCallback callback) throws MessageDeliveryException {
+        if (batchWriter != null) {
+            final ISignalMessage signal = checkSignal(rcvdMsgUnit);
+            final DeliveredSignalCache.Entry reservation = reserve(signal);
+            if (reservation == SKIP) {
+                callback.success();
+                return;
+            }
+            try {
+                batchWriter.submit(signal, reservation == null ? callback : new IDeliveryCallback() {
+                    @Override
+                    public void success() {
+                        callback.success();
+                    }
+
+                    @Override
+                    public void failed(final MessageDeliveryException failure) {
+                        deliveredSignals.release(reservation);
+                        callback.failed(failure);
+                    }
+                });
+            } catch (MessageDeliveryException | RuntimeException submitFailure) {
+                if (reservation != null)
+                    deliveredSignals.release(reservation);
+                throw submitFailure;
+            }
+        } else if (pipeline != null)
+            pipeline.submit(rcvdMsgUnit, callback);
+        else {
+            try {
+                deliver(rcvdMsgUnit);
+                callback.success();
+            } catch (MessageDeliveryException deliveryFailure) {
+                callback.failed(deliveryFailure);
+            }
+        }
+    }
+
+    /**
+     * Shuts down the delivery method. In asynchronous mode the Signals already queued are still delivered.
+     */
+    public void shutdown() {
+        if (metrics != null) {
+            metrics.unregister();
+            metrics = null;
+        }
+        if (pipeline != null) {
+            log.debug("Shutting down delivery pipeline, {} Signals queued", pipeline.getQueueDepth());
+            pipeline.shutdown(SHUTDOWN_TIMEOUT);
+            pipeline = null;
+        }
+        if (batchWriter != null) {
+            log.debug("Shutting down batch writer, {} Signals waiting", batchWriter.getPending());
+            batchWriter.shutdown(SHUTDOWN_TIMEOUT);
+            batchWriter = null;
+        }
+        if (writeLimiter != null) {
+            writeLimiter.release();
+            writeLimiter = null;
+        }
+    }
+
+    /**
+     * @return  The latency statistics of the deliveries done by this delivery method
+     */
+    public DeliveryStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return  The number of Signals waiting for delivery, always 0 in synchronous mode without batching
+     */
+    public int getQueueDepth() {
+        return pipeline != null ? pipeline.getQueueDepth() : batchWriter != null ? batchWriter.getPending() : 0;
+    }
+
+    /**
+     * @return  The time in milliseconds it took until the delivery method was ready for delivery after the start of
+     *          the initialisation, -1 while it is not ready yet
+     */
+    public long getStartupTime() {
+        return startupTime;
+    }
+
+    /**
+     * @return  The time in milliseconds it took to deliver the first Signal, including the time waiting for the
+     *          initialisation to complete, -1 while no Signal has been delivered yet
+     */
+    public long getFirstDeliveryLatency() {
+        return firstDeliveryLatency.get();
+    }
+
+    /**
+     * @return  The limiter of concurrent writes, <code>null</code> when writes are not limited
+     */
+    WriteLimiter getWriteLimiter() {
+        return writeLimiter;
+    }
+
+    /**
+     * @return  The cache of delivered Signals, <code>null</code> when duplicates are not detected
+     */
+    DeliveredSignalCache getDeliveredSignals() {
+        return deliveredSignals;
+    }
+
+    /**
+     * @return  The number of Signals currently being delivered by the workers, always 0 in synchronous mode
+     */
+    public int getInFlight() {
+        return pipeline != null ? pipeline.getInFlight() : 0;
+    }
+
 	/**
      * Does the actual delivery of the signal message to the business application.
      *
@@ -133,47 +671,164 @@ public class NotifyOperation implements IDeliveryMethod {
      */
     @Override
     public void deliver(IMessageUnit rcvdMsgUnit) throws MessageDeliveryException {
-        String sigType = rcvdMsgUnit.getClass().getSimpleName();
-        String sigMsgId = rcvdMsgUnit.getMessageId();
+        final ISignalMessage signal = checkSignal(rcvdMsgUnit);
+        final DeliveredSignalCache.Entry reservation = reserve(signal);
+        if (reservation == SKIP)
+            return;
+        try {
+            if (batchWriter != null)
+                // Result is recorded by the batch writer
+                batchWriter.deliver(signal);
+            else {
+                try {
+                    writeSMD(signal, fileWriter.getDurability(), false);
+                } catch (MessageDeliveryException | RuntimeException deliveryFailure) {
+                    statistics.recordFailure(DeliveryStatistics.typeOf(signal));
+                    throw deliveryFailure;
+                }
+                statistics.recordSuccess(DeliveryStatistics.typeOf(signal));
+            }
+        } catch (MessageDeliveryException | RuntimeException deliveryFailure) {
+            if (reservation != null)
+                deliveredSignals.release(reservation);
+            throw deliveryFailure;
+        }
+    }
 
-        log.debug("Create SMD for " + sigType + ", msgId= " + sigMsgId);
-        SignalMessage smd;
-        if (rcvdMsgUnit instanceof IReceipt)
-            smd = SMDFactory.createSMD((IReceipt) rcvdMsgUnit, includeReceiptContent);
-        else if (rcvdMsgUnit instanceof IErrorMessage)
-            smd = SMDFactory.createSMD((IErrorMessage) rcvdMsgUnit);
-        else {
+    /**
+     * Helper method to reserve the signal for delivery when duplicates are detected. When the delivery method is still
+     * warming up, this method waits until it is ready so all Signals already delivered are known.
+     *
+     * @param signal    The signal message to be delivered
+     * @return          The reservation of the signal, <code>null</code> when duplicates are not detected, or
+     *                  {@link #SKIP} when the signal was already delivered
+     * @throws MessageDeliveryException When the initialisation in the background failed
+     */
+    private DeliveredSignalCache.Entry reserve(final ISignalMessage signal) throws MessageDeliveryException {
+        if (deliveredSignals == null)
+            return null;
+        awaitReady();
+        final DeliveredSignalCache.Entry reservation = deliveredSignals.reserve(signal);
+        if (reservation != null)
+            return reservation;
+        log.info("{} (msgId= {}) was already delivered, skipping it", signal.getClass().getSimpleName(),
+                 signal.getMessageId());
+        return SKIP;
+    }
+
+    /**
+     * Helper method to check that the message unit to deliver is a Signal.
+     *
+     * @param rcvdMsgUnit   The message unit to be delivered
+     * @return              The message unit as {@link ISignalMessage}
+     * @throws MessageDeliveryException When the message unit is not a Signal
+     */
+    private ISignalMessage checkSignal(final IMessageUnit rcvdMsgUnit) throws MessageDeliveryException {
+        if (!(rcvdMsgUnit instanceof ISignalMessage)) {
             log.warn("This delivery method can not be used for delivery of User Messages!");
             throw new MessageDeliveryException("This delivery method can not be used for User messages!");
         }
+        return (ISignalMessage) rcvdMsgUnit;
+    }
 
-        // Check that SMD document could be created
-        if (smd == null) {
-            log.error("Failed to create the SMD for " + sigType + ", msgId= " + sigMsgId);
-            throw new MessageDeliveryException("Could not create meta-data document for Signal message");
+    /**
+     * Helper method that creates the SMD for the signal and writes it to file, using the serializer configured for the
+     * type of signal. When the delivery method is still warming up, this method waits until it is ready.
+     *
+     * @param signal        The signal message to be delivered
+     * @param durability    The durability level to apply when writing the file
+     * @param deferDirSync  Indicates that the caller will sync the directory
+     * @return              Path of the written SMD file
+     * @throws MessageDeliveryException When the signal meta-data document can not be created or written to file.
+     */
+    private Path writeSMD(final ISignalMessage signal, final SMDFileWriter.Durability durability,
+                          final boolean deferDirSync) throws MessageDeliveryException {
+        final long start = System.nanoTime();
+        awaitReady();
+        final Path file = signal instanceof IReceipt ? writeSMD(signal, receiptSerializer, durability, deferDirSync)
+                                                     : writeSMD(signal, serializer, durability, deferDirSync);
+        if (firstDeliveryLatency.get() < 0) {
+            final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (firstDeliveryLatency.compareAndSet(-1, latency))
+                log.info("Delivered first Signal to {} in {} ms", deliveryDir, latency);
         }
+        return file;
+    }
 
-        // Create the filename for the SMD file based on message id of signal
-        Path file = null;
+    /**
+     * Helper method that waits until the delivery method is ready for delivery.
+     *
+     * @throws MessageDeliveryException When the initialisation in the background failed
+     */
+    private void awaitReady() throws MessageDeliveryException {
+        if (ready.isDone() && !ready.isCompletedExceptionally())
+            return;
+        log.debug("Waiting for initialisation to complete");
         try {
-            file = FileUtils.createFileWithUniqueName(deliveryDir + sigMsgId.replaceAll("[^a-zA-Z0-9.-]", "_") + ".smd.xml");
-        } catch (IOException ex) {
-            log.error("Can not create a file in output directory {} to write Signal meta-data (msgId={})",
-                        deliveryDir, sigMsgId);
-            throw new MessageDeliveryException("Could not create file for delivery of Signal", ex);
+            ready.join();
+        } catch (CompletionException initFailure) {
+            final Throwable cause = initFailure.getCause() != null ? initFailure.getCause() : initFailure;
+            throw new MessageDeliveryException(cause.getMessage(), cause);
         }
-        log.debug("Write SMD for {} (msgId= {}) to {}", sigType, sigMsgId, file.toString());
+    }
+
+    /**
+     * Helper method that creates the SMD for the signal using the given serializer and writes it to file.
+     *
+     * @param signal        The signal message to be delivered
+     * @param smdSerializer The serializer to use for writing the SMD
+     * @param durability    The durability level to apply when writing the file
+     * @param deferDirSync  Indicates that the caller will sync the directory
+     * @return              Path of the written SMD file
+     * @throws MessageDeliveryException When the signal meta-data document can not be created or written to file.
+     */
+    private <T> Path writeSMD(final ISignalMessage signal, final ISMDSerializer<T> smdSerializer,
+                              final SMDFileWriter.Durability durability, final boolean deferDirSync)
+                                                                                    throws MessageDeliveryException {
+        String sigType = signal.getClass().getSimpleName();
+        String sigMsgId = signal.getMessageId();
+
+        log.debug("Create SMD for " + sigType + ", msgId= " + sigMsgId);
+        final long start = System.nanoTime();
+        T smd;
+        try {
+            smd = smdSerializer.createSMD(signal);
+        } catch (IOException smdFailure) {
+            log.error("Failed to create the SMD for " + sigType + ", msgId= " + sigMsgId);
+            throw new MessageDeliveryException("Could not create meta-data document for Signal message", smdFailure);
+        }
+        final long created = System.nanoTime();
+        statistics.record(DeliveryStatistics.Stage.CREATE, created - start);
 
+        // Create the filename for the SMD file based on the configured pattern
+        final String baseName = fileNamer.getName(signal);
+        final SMDFileWriter.ContentWriter content = os -> smdSerializer.write(smd, os);
+        final String extension = fileSuffix.isEmpty() ? smdSerializer.getFileExtension()
+                                                      : smdSerializer.getFileExtension() + fileSuffix;
+        final WriteLimiter.FileWrite write = () -> {
+            final Path dir = sharder.getDirectory(signal);
+            try {
+                return fileWriter.prepare(dir, baseName, extension, content, durability, deferDirSync);
+            } catch (NoSuchFileException dirRemoved) {
+                // The sub directory may have been removed by the back-end, so create it again and retry
+                log.debug("Delivery directory {} was removed, creating it again", dir);
+                sharder.invalidate(dir);
+                return fileWriter.prepare(sharder.getDirectory(signal), baseName, extension, content, durability,
+                                          deferDirSync);
+            }
+        };
+        Path file;
         try {
-            JAXBContext jbCtx = JAXBContext.newInstance(SignalMessage.class.getPackage().getName());
-            Marshaller jbMarshaller = jbCtx.createMarshaller();
-            JAXBElement<SignalMessage> smdDoc = new ObjectFactory().createSignalMessage(smd);
-            jbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            jbMarshaller.marshal(smdDoc, file.toFile());
-        } catch (JAXBException e) {
-            log.error("Could not write SMD for " + sigType + "(msgId= " + sigMsgId + ")! Details: "
-                        + e.getErrorCode() + " - " + e.getMessage());
+            file = writeLimiter != null ? writeLimiter.write(write, writeTimeout) : write.prepare().publish();
+        } catch (IOException e) {
+            log.error("Could not write SMD for " + sigType + "(msgId= " + sigMsgId + ") to " + deliveryDir
+                        + "! Details: " + e.getMessage());
             throw new MessageDeliveryException("Could not write the SMD file!", e);
         }
+        log.debug("Wrote SMD for {} (msgId= {}) to {}", sigType, sigMsgId, file.toString());
+        final long written = System.nanoTime();
+        statistics.record(DeliveryStatistics.Stage.WRITE, written - created);
+        statistics.record(DeliveryStatistics.Stage.TOTAL, written - start);
+        return file;
     }   
 }
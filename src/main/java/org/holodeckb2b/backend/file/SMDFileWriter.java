@@ -0,0 +1,468 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the SMD files to the target directory of the {@link NotifyOperation}.
+ * <p>Files are always created exclusively, i.e. creation fails when a file with the same name already exists, so no
+ * separate check whether the name is already in use is needed. When the name is in use a sequence number is added to
+ * it.
+ * <p>By default the file is created with its final name and the SMD is written directly into it. When <i>atomic</i>
+ * writes are enabled the SMD is first written to a hidden temporary file in the same directory which is then published
+ * under its final name in one atomic operation. This ensures that the back-end never sees a partially written file
+ * and that a crash does not leave truncated SMD files behind. The file is published by creating a hard link with the
+ * final name, which fails when a file with that name already exists, so existing files are never overwritten. When the
+ * file system does not support hard links the final name is first reserved by exclusively creating an empty file with
+ * it, which is then atomically replaced by the temporary file. On such file systems the back-end may therefore briefly
+ * see an empty file.
+ * <p>The {@link Durability} level determines whether the written file is synced to disk before it is published.
+ * <p>The content is written through a buffer of configurable size, so a complete SMD can be written to the file in one
+ * call, and can optionally be compressed using gzip.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class SMDFileWriter {
+    private static final Logger log = LogManager.getLogger(SMDFileWriter.class);
+
+    /**
+     * The durability levels of the written files
+     */
+    enum Durability {
+        /**
+         * The file is not explicitly synced, it is left to the OS when the data is written to disk
+         */
+        NONE,
+        /**
+         * The content of the file is synced to disk (the equivalent of <code>fdatasync</code>)
+         */
+        FDATASYNC,
+        /**
+         * Both the content and meta-data of the file are synced to disk and the directory containing it is synced as
+         * well (the equivalent of <code>fsync</code> on both file and directory)
+         */
+        FSYNC
+    }
+
+    /**
+     * The compression algorithms that can be applied to the content of the files
+     */
+    enum Compression {
+        /**
+         * The content is not compressed
+         */
+        NONE,
+        /**
+         * The content is compressed using gzip
+         */
+        GZIP
+    }
+
+    /**
+     * Writes the content of the file
+     */
+    interface ContentWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A file of which the content has been written but that is not yet published under its final name. Either {@link
+     * #publish()} or {@link #discard()} must be called.
+     */
+    interface PreparedFile {
+        /**
+         * Publishes the file under its final name.
+         *
+         * @return              The path of the published file
+         * @throws IOException  When the file could not be published, the written content is then removed
+         */
+        Path publish() throws IOException;
+
+        /**
+         * Removes the written content without publishing it.
+         */
+        void discard();
+    }
+
+    /**
+     * Default size of the buffer used for writing the files
+     */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Default compression level
+     */
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /**
+     * Suffix of the temporary files
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Minimum age in milliseconds of a temporary file before it is considered orphaned. As the target directory can be
+     * shared with other nodes, or another delivery method instance may still be writing to it, younger files may still
+     * be in use.
+     */
+    static final long ORPHAN_AGE = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Sequence used to create unique names for the temporary files
+     */
+    private static final AtomicLong TEMP_SEQ = new AtomicLong(System.currentTimeMillis());
+
+    private final boolean               atomic;
+    private final Durability            durability;
+    private final int                   bufferSize;
+    private final Compression           compression;
+    private final int                   compressionLevel;
+    private final DeliveryStatistics    statistics;
+
+    /**
+     * Indicates whether the file system supports hard links, set to <code>false</code> after the first failure
+     */
+    private volatile boolean    useHardLinks = true;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param atomic        Indicates whether files should be written atomically
+     * @param durability    The durability level of the written files
+     * @param statistics    The statistics to record the time spent creating and writing the files in
+     */
+    SMDFileWriter(final boolean atomic, final Durability durability, final DeliveryStatistics statistics) {
+        this(atomic, durability, DEFAULT_BUFFER_SIZE, Compression.NONE, DEFAULT_COMPRESSION_LEVEL, statistics);
+    }
+
+    /**
+     * Creates a new writer that uses the given buffer size and compression.
+     *
+     * @param atomic            Indicates whether files should be written atomically
+     * @param durability        The durability level of the written files
+     * @param bufferSize        The size of the buffer used for writing the files
+     * @param compression       The compression to apply to the content of the files
+     * @param compressionLevel  The compression level, from 1 (fastest) to 9 (smallest)
+     * @param statistics        The statistics to record the time spent creating and writing the files in
+     */
+    SMDFileWriter(final boolean atomic, final Durability durability, final int bufferSize,
+                  final Compression compression, final int compressionLevel, final DeliveryStatistics statistics) {
+        this.atomic = atomic;
+        this.durability = durability;
+        this.bufferSize = bufferSize;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return  Indicates whether files are written atomically
+     */
+    boolean isAtomic() {
+        return atomic;
+    }
+
+    /**
+     * @return  The compression applied to the content of the files
+     */
+    Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return  The configured durability level
+     */
+    Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Writes a new file. When a file with the given name already exists a sequence number is added to the name to
+     * make it unique.
+     *
+     * @param directory     The directory to write the file to
+     * @param baseName      The name of the file without extension
+     * @param extension     The file name extension
+     * @param content       Writes the content of the file
+     * @param level         The durability level to apply
+     * @param deferDirSync  Indicates that the caller will sync the directory, so it should not be synced here even if
+     *                      the durability level requires it
+     * @return              The path of the written file
+     * @throws IOException  When the file could not be written
+     */
+    Path write(final Path directory, final String baseName, final String extension, final ContentWriter content,
+               final Durability level, final boolean deferDirSync) throws IOException {
+        return prepare(directory, baseName, extension, content, level, deferDirSync).publish();
+    }
+
+    /**
+     * Writes the content of a new file without publishing it yet. With atomic writes the content is written to a
+     * temporary file, so the back-end does not see the file until it is published. Otherwise the file is written with
+     * its final name and publishing it only completes the directory sync when required.
+     *
+     * @param directory     The directory to write the file to
+     * @param baseName      The name of the file without extension
+     * @param extension     The file name extension
+     * @param content       Writes the content of the file
+     * @param level         The durability level to apply
+     * @param deferDirSync  Indicates that the caller will sync the directory, so it should not be synced here even if
+     *                      the durability level requires it
+     * @return              The written file that still must be published or discarded
+     * @throws IOException  When the file could not be written
+     */
+    PreparedFile prepare(final Path directory, final String baseName, final String extension,
+                         final ContentWriter content, final Durability level, final boolean deferDirSync)
+                                                                                                throws IOException {
+        final long start = System.nanoTime();
+        Path written;
+        FileChannel ch;
+        if (atomic) {
+            final String tempPrefix = "." + baseName + extension + ".";
+            do {
+                written = directory.resolve(tempPrefix + TEMP_SEQ.incrementAndGet() + TEMP_SUFFIX);
+            } while ((ch = createNew(written)) == null);
+        } else {
+            int i = 0;
+            do {
+                written = directory.resolve(i == 0 ? baseName + extension : baseName + "-" + i + extension);
+                i++;
+            } while ((ch = createNew(written)) == null);
+        }
+        final long fileTime = System.nanoTime() - start;
+        writeContent(written, ch, content, level);
+        final Path file = written;
+        return new PreparedFile() {
+            @Override
+            public Path publish() throws IOException {
+                final long publishStart = System.nanoTime();
+                final Path published = atomic ? SMDFileWriter.this.publish(file, directory, baseName, extension)
+                                              : file;
+                statistics.record(DeliveryStatistics.Stage.FILE, fileTime + System.nanoTime() - publishStart);
+                if (level == Durability.FSYNC && !deferDirSync)
+                    FileSync.syncDirectory(published.getParent());
+                return published;
+            }
+
+            @Override
+            public void discard() {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException removeFailure) {
+                    log.warn("Could not remove discarded SMD file {}", file);
+                }
+            }
+        };
+    }
+
+    /**
+     * Removes the temporary files left behind in the target directory and its sub directories, for example because of
+     * a crash. Only files that were last modified at least {@link #ORPHAN_AGE} ago are removed, so temporary files that
+     * are still being written, by this or another node, are left alone.
+     *
+     * @param directory The target directory
+     * @param depth     The maximum depth of sub directories to check
+     */
+    static void sweepTempFiles(final Path directory, final int depth) {
+        sweepTempFiles(directory, depth, ORPHAN_AGE);
+    }
+
+    /**
+     * Removes the temporary files that were last modified at least the given time ago from the target directory and
+     * its sub directories.
+     *
+     * @param directory The target directory
+     * @param depth     The maximum depth of sub directories to check
+     * @param minAge    The minimum age in milliseconds of the files to remove
+     */
+    static void sweepTempFiles(final Path directory, final int depth, final long minAge) {
+        final long modifiedBefore = System.currentTimeMillis() - minAge;
+        try (Stream<Path> files = Files.walk(directory, depth + 1)) {
+            files.filter(f -> {
+                final String name = f.getFileName().toString();
+                return name.startsWith(".") && name.endsWith(TEMP_SUFFIX) && Files.isRegularFile(f)
+                       && lastModified(f) <= modifiedBefore;
+            }).forEach(orphan -> {
+                log.info("Removing orphaned temporary SMD file {}", orphan);
+                try {
+                    Files.deleteIfExists(orphan);
+                } catch (IOException removeFailure) {
+                    log.warn("Could not remove orphaned temporary SMD file {}", orphan);
+                }
+            });
+        } catch (IOException | UncheckedIOException sweepFailure) {
+            log.warn("Could not remove orphaned temporary SMD files from {} : {}", directory,
+                     sweepFailure.getMessage());
+        }
+    }
+
+    /**
+     * @return  The time the given file was last modified, or {@link Long#MAX_VALUE} if it cannot be determined, e.g.
+     *          because it was removed in the meantime
+     */
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException unknown) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Creates the given file for writing, failing if it already exists.
+     *
+     * @return  The channel to write to the new file, or <code>null</code> when the file already exists
+     */
+    private static FileChannel createNew(final Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException inUse) {
+            // Can happen when another node writes to the same directory, caller will try another name
+            return null;
+        }
+    }
+
+    /**
+     * Writes the content to the given file and syncs it as required by the durability level. The channel is closed
+     * when done. When writing fails the file is removed.
+     */
+    private void writeContent(final Path file, final FileChannel channel, final ContentWriter content,
+                                     final Durability level) throws IOException {
+        GzipStream gzip = null;
+        try (FileChannel ch = channel) {
+            final long start = System.nanoTime();
+            final OutputStream os = new BufferedOutputStream(Channels.newOutputStream(ch), bufferSize);
+            if (compression == Compression.GZIP) {
+                gzip = new GzipStream(os, bufferSize, compressionLevel);
+                content.write(gzip);
+                gzip.finish();
+            } else
+                content.write(os);
+            os.flush();
+            statistics.record(DeliveryStatistics.Stage.MARSHAL, System.nanoTime() - start);
+            statistics.recordBytesWritten(ch.position());
+            if (level != Durability.NONE)
+                ch.force(level == Durability.FSYNC);
+        } catch (IOException | RuntimeException writeFailure) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException removeFailure) {
+                log.warn("Could not remove incomplete SMD file {}", file);
+            }
+            throw writeFailure;
+        } finally {
+            if (gzip != null)
+                gzip.release();
+        }
+    }
+
+    /**
+     * Gzip output stream using the given compression level. The stream is not closed after writing as that would also
+     * close the file channel, so the native resources of the compressor must be released explicitly.
+     */
+    private static final class GzipStream extends GZIPOutputStream {
+        GzipStream(final OutputStream out, final int size, final int level) throws IOException {
+            super(out, size);
+            def.setLevel(level);
+        }
+
+        void release() {
+            def.end();
+        }
+    }
+
+    /**
+     * Publishes the temporary file under its final name, adding a sequence number to the name when a file with the
+     * same name already exists.
+     */
+    private Path publish(final Path temp, final Path directory, final String baseName, final String extension)
+                                                                                                throws IOException {
+        try {
+            for (int i = 0; ; i++) {
+                final Path target = directory.resolve(i == 0 ? baseName + extension
+                                                             : baseName + "-" + i + extension);
+                if (useHardLinks) {
+                    boolean linked = false;
+                    try {
+                        Files.createLink(target, temp);
+                        linked = true;
+                    } catch (FileAlreadyExistsException exists) {
+                        continue;
+                    } catch (UnsupportedOperationException noLinks) {
+                        log.debug("Hard links not supported in {}, using rename instead", directory);
+                        useHardLinks = false;
+                    } catch (FileSystemException linkFailure) {
+                        if (!isNotSupported(linkFailure))
+                            throw linkFailure;
+                        log.debug("Hard links not supported in {} ({}), using rename instead", directory,
+                                  linkFailure.getReason());
+                        useHardLinks = false;
+                    }
+                    if (linked) {
+                        try {
+                            Files.delete(temp);
+                        } catch (IOException removeFailure) {
+                            // The file is published, the temporary one will be removed on next start up
+                            log.warn("Could not remove temporary SMD file {}", temp);
+                        }
+                        return target;
+                    }
+                }
+                // Reserve the name so the rename, which replaces existing files, cannot overwrite another file
+                final FileChannel placeholder = createNew(target);
+                if (placeholder == null)
+                    continue;
+                placeholder.close();
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException | RuntimeException moveFailure) {
+                    Files.deleteIfExists(target);
+                    throw moveFailure;
+                }
+                return target;
+            }
+        } catch (IOException publishFailure) {
+            Files.deleteIfExists(temp);
+            throw publishFailure;
+        }
+    }
+
+    /**
+     * Checks whether the failure to create a hard link indicates that the file system does not support them, i.e.
+     * the operation is not supported or permitted or the link would cross file systems.
+     */
+    private static boolean isNotSupported(final FileSystemException linkFailure) {
+        final String reason = linkFailure.getReason();
+        return reason != null && (reason.contains("not supported") || reason.contains("not permitted")
+                                  || reason.contains("cross-device") || reason.contains("Incorrect function"));
+    }
+}
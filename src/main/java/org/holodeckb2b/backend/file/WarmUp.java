@@ -0,0 +1,204 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.om.OMNamespace;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Contains the helper methods used by the {@link NotifyOperation} to warm up on initialisation. Creating the first SMD
+ * is slow because the JAXB, XML and date-time classes still have to be loaded and the code still runs interpreted.
+ * The warm-up therefore writes the SMDs of a synthetic Error and Receipt a number of times to a stream that discards
+ * all data, so this is done before the first real Signal is delivered. It also checks that files can be written to the
+ * target directory by writing and removing a hidden temporary file.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+final class WarmUp {
+
+    /**
+     * Number of times the SMD of each synthetic Signal is written, which is enough for the JIT compiler to compile
+     * the most used methods
+     */
+    static final int ITERATIONS = 500;
+
+    /**
+     * Output stream that discards all data written to it
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private WarmUp() {}
+
+    /**
+     * Writes the SMD of the given Signal the given number of times using the serializer.
+     *
+     * @param serializer    The serializer to warm up
+     * @param signal        The Signal to write the SMD for
+     * @param iterations    The number of times to write the SMD
+     * @throws IOException  When the SMD could not be written
+     */
+    static <T> void exercise(final ISMDSerializer<T> serializer, final ISignalMessage signal, final int iterations)
+                                                                                                throws IOException {
+        for (int i = 0; i < iterations; i++)
+            serializer.write(serializer.createSMD(signal), DISCARD);
+    }
+
+    /**
+     * Checks that the SMD files can be written to the given directory by writing the SMD of a synthetic Error to a
+     * hidden temporary file and removing it again. Should the file not be removed, it is removed the next time the
+     * temporary files are cleaned up.
+     *
+     * @param directory     The directory to write to
+     * @param fileWriter    The writer used for delivery
+     * @param serializer    The serializer to create the SMD
+     * @throws IOException  When the file could not be written or removed
+     */
+    static <T> void probe(final Path directory, final SMDFileWriter fileWriter, final ISMDSerializer<T> serializer)
+                                                                                                throws IOException {
+        // Use separate statistics so the probe is not counted as delivery
+        final SMDFileWriter probeWriter = new SMDFileWriter(fileWriter.isAtomic(), SMDFileWriter.Durability.NONE,
+                                                            new DeliveryStatistics());
+        final T smd = serializer.createSMD(createError());
+        Files.delete(probeWriter.write(directory, ".warm-up", SMDFileWriter.TEMP_SUFFIX,
+                                       os -> serializer.write(smd, os), SMDFileWriter.Durability.NONE, false));
+    }
+
+    /**
+     * Runs the given task on a new daemon thread.
+     *
+     * @param name  The name of the thread
+     * @param task  The task to run
+     * @return      Future that completes when the task is done
+     */
+    static CompletableFuture<Void> runInBackground(final String name, final Callable<?> task) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Thread t = new Thread(() -> {
+            try {
+                task.call();
+                result.complete(null);
+            } catch (Throwable failure) {
+                result.completeExceptionally(failure);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return result;
+    }
+
+    /**
+     * @return  A synthetic Error Signal with one error
+     */
+    static IErrorMessage createError() {
+        final Map<String, Object> d = new HashMap<>();
+        d.put("getText", "Warm-up of the delivery method");
+        d.put("getLanguage", "en");
+        final Map<String, Object> e = new HashMap<>();
+        e.put("getCategory", "Content");
+        e.put("getErrorCode", "EBMS:0004");
+        e.put("getOrigin", "ebMS");
+        e.put("getSeverity", IEbmsError.Severity.failure);
+        e.put("getMessage", "Other");
+        e.put("getErrorDetail", "Warm-up of the delivery method");
+        e.put("getRefToMessageInError", "warm-up@holodeck-b2b.org");
+        e.put("getDescription", proxy(IDescription.class, d));
+        final Map<String, Object> sig = signalProperties();
+        sig.put("getErrors", Collections.singletonList(proxy(IEbmsError.class, e)));
+        return proxy(IErrorMessage.class, sig);
+    }
+
+    /**
+     * @return  A synthetic Receipt Signal containing an ebMS <i>UserMessage</i> element
+     */
+    static IReceipt createReceipt() {
+        final OMFactory f = OMAbstractFactory.getOMFactory();
+        final OMNamespace eb = f.createOMNamespace("http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/",
+                                                   "eb");
+        final OMElement um = f.createOMElement("UserMessage", eb);
+        final OMElement mi = f.createOMElement("MessageInfo", eb, um);
+        f.createOMElement("Timestamp", eb, mi).setText("2023-06-01T10:15:30.123Z");
+        f.createOMElement("MessageId", eb, mi).setText("warm-up@holodeck-b2b.org");
+        final Map<String, Object> sig = signalProperties();
+        sig.put("getContent", Collections.singletonList(um));
+        return proxy(IReceipt.class, sig);
+    }
+
+    /**
+     * @return  The properties common to the synthetic Signals
+     */
+    private static Map<String, Object> signalProperties() {
+        final Map<String, Object> sig = new HashMap<>();
+        sig.put("getMessageId", "warm-up-signal@holodeck-b2b.org");
+        sig.put("getRefToMessageId", "warm-up@holodeck-b2b.org");
+        sig.put("getTimestamp", new Date());
+        return sig;
+    }
+
+    /**
+     * Creates a proxy implementing the given interface that returns the value from the given map for each method,
+     * using the method name as key. For methods without a value <code>null</code> or zero is returned.
+     */
+    private static <T> T proxy(final Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(WarmUp.class.getClassLoader(), new Class<?>[] { type },
+            (p, m, args) -> {
+                switch (m.getName()) {
+                case "equals" :
+                    return p == args[0];
+                case "hashCode" :
+                    return System.identityHashCode(p);
+                case "toString" :
+                    return type.getSimpleName() + values;
+                default:
+                }
+                final Object v = values.get(m.getName());
+                final Class<?> rt = m.getReturnType();
+                if (v != null || !rt.isPrimitive() || rt == void.class)
+                    return v;
+                else if (rt == boolean.class)
+                    return Boolean.FALSE;
+                else if (rt == long.class)
+                    return 0L;
+                else
+                    return 0;
+            }));
+    }
+}
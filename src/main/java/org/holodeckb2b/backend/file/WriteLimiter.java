@@ -0,0 +1,358 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+
+/**
+ * Limits the number of SMD files that are written concurrently to a target directory and the time a delivery waits for
+ * the file to be written, so a slow file system, for example an overloaded network share, does not block all threads
+ * of the Holodeck B2B Core. When the maximum number of files is being written or the write does not complete in time
+ * the delivery fails immediately. As the failure is not permanent the Core will retry the delivery later.
+ * <p>The limit adapts to the observed write latency using an additive increase, multiplicative decrease (AIMD)
+ * algorithm. It starts at the configured maximum. When a write takes longer than the target latency or times out the
+ * limit is decreased by a factor, at most once per target latency period so a burst of slow writes does not collapse
+ * the limit at once. For every write that completes in time while the limit is being used, the limit is increased
+ * so it grows by about one each time the limit number of writes completed, up to the maximum.
+ * <p>When a write timeout is used the files are written by a pool of threads and the delivery only waits the given
+ * time for the write to complete. A write that times out still counts against the limit until it actually completes.
+ * A write is done in two steps, first the content is written to a temporary file and then the file is published under
+ * its final name. Before publishing, the write claims the delivery, so it is either published while the delivery waits
+ * for it or discarded when the delivery has already failed. The retry of the delivery therefore does not create a
+ * second file and the back-end never sees a file of a failed delivery. As this requires the content to be written to
+ * a temporary file first, the delivery method only allows a write timeout together with atomic writes.
+ * <p>The limiter is shared by all delivery method instances writing to the same target directory. The settings of the
+ * first instance are used.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class WriteLimiter {
+    private static final Logger log = LogManager.getLogger(WriteLimiter.class);
+
+    /**
+     * Default maximum number of files written concurrently when only a write timeout is configured
+     */
+    static final int DEFAULT_MAX_CONCURRENT = 16;
+
+    /**
+     * Default target latency in milliseconds of a write
+     */
+    static final long DEFAULT_LATENCY_TARGET = 500;
+
+    /**
+     * Factor by which the limit is decreased when writes are too slow
+     */
+    private static final double BACKOFF_RATIO = 0.5;
+
+    /**
+     * The limiters in use, by target directory
+     */
+    private static final ConcurrentHashMap<Path, WriteLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * Writes a SMD file
+     */
+    @FunctionalInterface
+    interface FileWrite {
+        /**
+         * @return  The written file, not yet published
+         * @throws IOException  When the file could not be written
+         */
+        SMDFileWriter.PreparedFile prepare() throws IOException;
+    }
+
+    private final Path              directory;
+    private final int               maxLimit;
+    private final long              latencyTarget;
+    private final ExecutorService   executor;
+
+    /**
+     * Guards the limit and the number of writes in progress
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private double              limit;
+    private int                 inProgress;
+    private long                lastDecrease;
+
+    /**
+     * The number of delivery method instances using this limiter, guarded by the map of limiters
+     */
+    private int users;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Gets the limiter for the given target directory, creating it when it does not exist yet. The limiter must be
+     * released when no longer used.
+     *
+     * @param directory     The target directory
+     * @param maxLimit      The maximum number of files written concurrently
+     * @param latencyTarget The target latency of a write in milliseconds
+     * @return              The limiter for the directory
+     */
+    static WriteLimiter acquire(final Path directory, final int maxLimit, final long latencyTarget) {
+        return LIMITERS.compute(directory.toAbsolutePath().normalize(), (dir, current) -> {
+            final WriteLimiter l = current != null ? current : new WriteLimiter(dir, maxLimit, latencyTarget);
+            if (l.maxLimit != maxLimit || l.latencyTarget != TimeUnit.MILLISECONDS.toNanos(latencyTarget))
+                log.warn("Write limiter for {} already in use with different settings, using max {} and target {} ms",
+                         dir, l.maxLimit, TimeUnit.NANOSECONDS.toMillis(l.latencyTarget));
+            l.users++;
+            return l;
+        });
+    }
+
+    /**
+     * Releases the limiter. When it is not used anymore its threads are stopped.
+     */
+    void release() {
+        LIMITERS.computeIfPresent(directory, (dir, l) -> {
+            if (--l.users > 0)
+                return l;
+            l.executor.shutdown();
+            return null;
+        });
+    }
+
+    private WriteLimiter(final Path directory, final int maxLimit, final long latencyTarget) {
+        this.directory = directory;
+        this.maxLimit = maxLimit;
+        this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(latencyTarget);
+        this.limit = maxLimit;
+        this.lastDecrease = System.nanoTime() - this.latencyTarget;
+        // The number of threads is bounded by the limit as a write is only started when within the limit
+        this.executor = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "smd-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Writes a file when the limit has not been reached and waits at most the given time for the write to complete.
+     *
+     * @param write     The write to execute
+     * @param timeout   The maximum time in milliseconds to wait for the write to complete, 0 to wait until done
+     * @return          The path of the written file
+     * @throws MessageDeliveryException When the limit has been reached or the write did not complete in time
+     * @throws IOException  When the file could not be written
+     */
+    Path write(final FileWrite write, final long timeout) throws MessageDeliveryException, IOException {
+        if (!tryStart()) {
+            rejected.increment();
+            log.debug("Limit of concurrent writes to {} reached", directory);
+            throw new MessageDeliveryException("Too many SMD files being written to " + directory
+                                                + ", try again later");
+        }
+        final long start = System.nanoTime();
+        if (timeout <= 0) {
+            boolean completed = false;
+            try {
+                final Path file = write.prepare().publish();
+                completed = true;
+                return file;
+            } finally {
+                complete(System.nanoTime() - start, !completed);
+            }
+        }
+
+        // 0 = in progress, 1 = being published, 2 = abandoned by the caller
+        final AtomicInteger state = new AtomicInteger();
+        final Future<Path> result;
+        try {
+            result = executor.submit(() -> {
+                boolean completed = false;
+                try {
+                    final SMDFileWriter.PreparedFile prepared = write.prepare();
+                    if (!state.compareAndSet(0, 1)) {
+                        // The delivery already failed, so the file must not become visible
+                        completed = true;
+                        prepared.discard();
+                        log.info("Discarded SMD file for {} that was written after the delivery timed out", directory);
+                        return null;
+                    }
+                    final Path file = prepared.publish();
+                    completed = true;
+                    return file;
+                } finally {
+                    complete(System.nanoTime() - start, !completed);
+                }
+            });
+        } catch (RejectedExecutionException shutdown) {
+            complete(0, true);
+            throw new MessageDeliveryException("The delivery method is shut down");
+        }
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException writeTooSlow) {
+            if (!state.compareAndSet(0, 2))
+                // Being published, which is quick, so wait for it
+                return getCompleted(result);
+            timedOut.increment();
+            decrease();
+            log.warn("Writing SMD file to {} did not complete within {} ms", directory, timeout);
+            throw new MessageDeliveryException("Writing the SMD file to " + directory + " did not complete in time");
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            if (!state.compareAndSet(0, 2))
+                return getCompleted(result);
+            throw new MessageDeliveryException("Interrupted while waiting for the SMD file to be written");
+        } catch (ExecutionException writeFailure) {
+            throw unwrap(writeFailure);
+        }
+    }
+
+    /**
+     * @return  The current limit of files written concurrently
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of files currently being written, including writes that timed out
+     */
+    int getInProgress() {
+        lock.lock();
+        try {
+            return inProgress;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of writes rejected because the limit was reached
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return  The number of writes that did not complete in time
+     */
+    long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Starts a write if the limit has not been reached.
+     */
+    private boolean tryStart() {
+        lock.lock();
+        try {
+            if (inProgress >= (int) limit)
+                return false;
+            inProgress++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the completion of a write and adapts the limit to its latency.
+     *
+     * @param latency   The latency of the write in nanoseconds
+     * @param failed    Indicates whether the write failed, in which case the limit is not changed
+     */
+    private void complete(final long latency, final boolean failed) {
+        lock.lock();
+        try {
+            final boolean used = inProgress * 2 >= limit;
+            inProgress--;
+            if (failed)
+                return;
+            if (latency > latencyTarget)
+                decrease();
+            else if (used && limit < maxLimit)
+                limit = Math.min(maxLimit, limit + 1 / limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decreases the limit, unless it was already decreased within the last target latency period.
+     */
+    private void decrease() {
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            if (now - lastDecrease < latencyTarget)
+                return;
+            lastDecrease = now;
+            limit = Math.max(1, limit * BACKOFF_RATIO);
+            log.debug("Writes to {} are slow, decreased limit to {}", directory, (int) limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the result of a write that was being published when the caller tried to abandon it.
+     */
+    private static Path getCompleted(final Future<Path> result) throws MessageDeliveryException, IOException {
+        boolean interrupted = false;
+        try {
+            while (true)
+                try {
+                    return result.get();
+                } catch (InterruptedException ignored) {
+                    // The write has completed, so the result is available right away
+                    interrupted = true;
+                } catch (ExecutionException writeFailure) {
+                    throw unwrap(writeFailure);
+                }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the exception thrown by the write.
+     */
+    private static IOException unwrap(final ExecutionException writeFailure) throws MessageDeliveryException {
+        final Throwable cause = writeFailure.getCause();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        else if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        else
+            throw new MessageDeliveryException("Error writing the SMD file", cause);
+    }
+}
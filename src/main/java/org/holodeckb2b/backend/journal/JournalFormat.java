@@ -0,0 +1,214 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Defines the layout of the journal files and contains the helper methods shared by the {@link JournalWriter} and
+ * {@link JournalReader}.
+ * <p>The journal consists of segment files named by the offset of their first record, padded to 20 digits and with
+ * extension <i>.journal</i>. Each segment starts with a header of {@value #SEGMENT_HEADER_SIZE} bytes containing the
+ * magic number, the version of the format and the base offset of the segment. The header is followed by the records,
+ * each aligned on 8 bytes. All numbers are written in big-endian byte order. A record consists of:<ol>
+ * <li>the length of the record, excluding the length and CRC fields and the padding (4 bytes)</li>
+ * <li>the CRC32 checksum calculated over the same bytes as the length (4 bytes)</li>
+ * <li>the time stamp of the Signal in milliseconds since the epoch (8 bytes)</li>
+ * <li>the type of Signal, see {@link JournalRecord.Type} (1 byte)</li>
+ * <li>the format of the SMD, see {@link JournalRecord.Format} (1 byte)</li>
+ * <li>the length of the message id (2 bytes)</li>
+ * <li>the message id of the Signal, UTF-8 encoded</li>
+ * <li>the SMD</li></ol>
+ * The remaining space of a segment is filled with zeros, so a zero length indicates the end of the records. The length
+ * field is written last, after the rest of the record and the CRC, so a record only becomes visible when complete. The
+ * CRC is used to detect records that were only partially written to disk when the system crashed.
+ * <p>Before a new segment is started the writer closes the current segment by writing {@value #END_OF_SEGMENT} as
+ * length directly after its last record, unless there is no space left in the segment. This allows a reader to detect
+ * that the writer has moved on to a new segment without reading the directory.
+ * <p>The offset of a record is the base offset of its segment plus its position in the segment after the header. When
+ * a new segment is started its base offset is the offset directly after the last record of the previous segment, so
+ * the offset after a record is always the offset of the next record.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+final class JournalFormat {
+
+    /**
+     * Magic number at the start of each segment, the ASCII characters "HBJ1"
+     */
+    static final int MAGIC = 0x48424A31;
+    /**
+     * Version of the journal format
+     */
+    static final int VERSION = 1;
+    /**
+     * Size of the segment header
+     */
+    static final int SEGMENT_HEADER_SIZE = 16;
+    /**
+     * Size of the length and CRC fields that precede the checked part of a record
+     */
+    static final int PREFIX_SIZE = 8;
+    /**
+     * Size of the fixed part of a record, i.e. all fields except the message id and SMD
+     */
+    static final int RECORD_HEADER_SIZE = PREFIX_SIZE + 12;
+    /**
+     * Value of the length field that marks the end of a segment to which no more records will be appended
+     */
+    static final int END_OF_SEGMENT = -1;
+    /**
+     * Maximum length in bytes of the UTF-8 encoded message id
+     */
+    static final int MAX_MESSAGE_ID_LENGTH = 0xffff;
+    /**
+     * Extension of the segment files
+     */
+    static final String SEGMENT_EXTENSION = ".journal";
+    /**
+     * Name of the file locked by the writer of the journal, to ensure there is only one writer for a journal
+     */
+    static final String LOCK_FILE = ".writer.lock";
+
+    private JournalFormat() {}
+
+    /**
+     * Gets the name of the segment file with the given base offset.
+     *
+     * @param baseOffset    The offset of the first record in the segment
+     * @return              The file name of the segment
+     */
+    static String segmentName(final long baseOffset) {
+        final String offset = Long.toString(baseOffset);
+        final StringBuilder name = new StringBuilder(20 + SEGMENT_EXTENSION.length());
+        for (int i = offset.length(); i < 20; i++)
+            name.append('0');
+        return name.append(offset).append(SEGMENT_EXTENSION).toString();
+    }
+
+    /**
+     * Gets the segment files in the given directory.
+     *
+     * @param directory The journal directory
+     * @return          The segment files sorted on their base offset
+     * @throws IOException  When the directory can not be read
+     */
+    static TreeMap<Long, Path> listSegments(final Path directory) throws IOException {
+        final TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_EXTENSION)) {
+            for (Path f : files) {
+                final String name = f.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), f);
+                } catch (NumberFormatException notASegment) {
+                    // Not a segment file, ignore
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Aligns the given size on 8 bytes.
+     */
+    static int align(final int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Gets the size a record with the given message id and SMD occupies in the segment.
+     *
+     * @param idLength      The length of the UTF-8 encoded message id
+     * @param contentLength The length of the SMD
+     * @return              The size of the record including padding
+     */
+    static int recordSize(final int idLength, final int contentLength) {
+        return align(RECORD_HEADER_SIZE + idLength + contentLength);
+    }
+
+    /**
+     * Checks whether the segment is closed at the given position, i.e. whether it has the end of segment marker at the
+     * position or has no space left for a record.
+     *
+     * @param segment   The segment
+     * @param position  The position to check
+     * @return          <code>true</code> when no more records will be appended at the position, <code>false</code> if
+     *                  they may be
+     */
+    static boolean isEndOfSegment(final ByteBuffer segment, final int position) {
+        return position > segment.limit() - RECORD_HEADER_SIZE || segment.getInt(position) == END_OF_SEGMENT;
+    }
+
+    /**
+     * Checks whether a complete and valid record starts at the given position in the segment.
+     *
+     * @param segment   The segment
+     * @param position  The position to check
+     * @param crc       The checksum to use, will be reset
+     * @return          The size of the record including padding when a valid record starts at the position, 0 when
+     *                  there is no record at the position or -1 when the data at the position is not a valid record
+     */
+    static int checkRecord(final ByteBuffer segment, final int position, final CRC32 crc) {
+        if (position > segment.limit() - RECORD_HEADER_SIZE)
+            return position <= segment.limit() - 4 && segment.getInt(position) != 0 ? -1 : 0;
+        final int length = segment.getInt(position);
+        if (length == 0)
+            return 0;
+        else if (length < RECORD_HEADER_SIZE - PREFIX_SIZE || length > segment.limit() - position - PREFIX_SIZE)
+            return -1;
+        final ByteBuffer checked = segment.duplicate();
+        checked.limit(position + PREFIX_SIZE + length).position(position + PREFIX_SIZE);
+        crc.reset();
+        crc.update(checked);
+        if ((int) crc.getValue() != segment.getInt(position + 4)
+            || (segment.getShort(position + 18) & 0xffff) > length - (RECORD_HEADER_SIZE - PREFIX_SIZE))
+            return -1;
+        return align(PREFIX_SIZE + length);
+    }
+
+    /**
+     * Reads the record at the given position in the segment. The record must have been checked using {@link
+     * #checkRecord(ByteBuffer, int, CRC32)}.
+     *
+     * @param segment   The segment
+     * @param position  The position of the record
+     * @param offset    The offset of the record
+     * @param size      The size of the record as returned by the check
+     * @return          The record
+     */
+    static JournalRecord readRecord(final ByteBuffer segment, final int position, final long offset,
+                                    final int size) {
+        final int length = segment.getInt(position);
+        final long timestamp = segment.getLong(position + 8);
+        final JournalRecord.Type type = JournalRecord.Type.fromCode(segment.get(position + 16));
+        final JournalRecord.Format format = JournalRecord.Format.fromCode(segment.get(position + 17));
+        final int idLength = segment.getShort(position + 18) & 0xffff;
+        final ByteBuffer data = segment.duplicate();
+        data.position(position + RECORD_HEADER_SIZE);
+        final byte[] id = new byte[idLength];
+        data.get(id);
+        final byte[] content = new byte[length - (RECORD_HEADER_SIZE - PREFIX_SIZE) - idLength];
+        data.get(content);
+        return new JournalRecord(offset, offset + size, type, format, new String(id, StandardCharsets.UTF_8),
+                                 timestamp, content);
+    }
+}
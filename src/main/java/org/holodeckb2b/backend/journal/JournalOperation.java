@@ -0,0 +1,233 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.commons.util.Utils;
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.Settings;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.interfaces.delivery.IDeliveryMethod;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IMessageUnit;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is a {@link IDeliveryMethod} implementation that notifies the business application about received <i>Signal
+ * Messages</i> by appending the signal meta-data (SMD) to a journal instead of writing a file per Signal. The journal
+ * consists of segment files that are memory mapped, so appending a Signal only requires copying its SMD into memory.
+ * The back-end reads the journal using the {@link JournalReader}. See {@link JournalFormat} for the layout of the
+ * journal files.
+ * <p>The delivery method takes the following parameters:<ol>
+ * <li><i>targetDirectory</i> : the path to the directory where the journal should be written. Only one delivery method
+ * may write to a directory, initialisation fails when the journal is already opened by another one.</li>
+ * <li><i>includeReceiptContent</i> : a boolean that indicate whether the complete Receipt content from the ebMS message
+ * should be included (<i>"true"</i>) or only the first child element (<i>"false"</i>). Default is <i>false</i>.</li>
+ * <li><i>format</i> : the format of the SMD, either <i>"xml"</i>, <i>"json"</i> or <i>"cbor"</i>. The XML document is
+ * written using the {@link StAXSerializer}. Default is <i>"xml"</i>.</li>
+ * <li><i>segmentSize</i> : the size of the segment files in bytes. A new segment is started when a Signal does not fit
+ * in the current segment. Default is {@value #DEFAULT_SEGMENT_SIZE}.</li>
+ * <li><i>segmentMaxAge</i> : the maximum time in milliseconds Signals are appended to the same segment. When the first
+ * Signal after this time is delivered a new segment is started. Default is 0, i.e. no maximum.</li>
+ * <li><i>durability</i> : the level of durability of the journal, one of <i>"none"</i> (the OS decides when data is
+ * written to disk), <i>"fdatasync"</i> (the segment is synced to disk after each Signal) or <i>"fsync"</i> (as
+ * <i>fdatasync</i> and the directory is also synced when a new segment is created). Default is <i>"none"</i>.</li>
+ * </ol>
+ * <p>NOTE: This delivery method can only be used for Signals!
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class JournalOperation implements IDeliveryMethod {
+    private final Logger log = LogManager.getLogger(JournalOperation.class);
+
+    /**
+     * Default size of the segment files
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Minimum size of the segment files
+     */
+    private static final int MIN_SEGMENT_SIZE = 4096;
+
+    /**
+     * Gives access to the internal buffer of the output stream, so the SMD does not need to be copied
+     */
+    private static final class ContentBuffer extends ByteArrayOutputStream {
+        ContentBuffer() {
+            super(2048);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * The serializer used to write the SMD documents
+     */
+    private ISMDSerializer<?> serializer;
+
+    /**
+     * The format of the SMD documents
+     */
+    private JournalRecord.Format format;
+
+    /**
+     * The writer of the journal, <code>null</code> when not initialised or shut down
+     */
+    private volatile JournalWriter writer;
+
+    /**
+     * Initializes the delivery method. Ensures that the specified directory is available and opens the journal in it,
+     * recovering the end of the journal when the previous run did not end cleanly.
+     *
+     * @param settings  The settings to use for the journal. MUST contain at least on entry with key
+     *                  <code>targetDirectory</code> holding the path to the journal directory.
+     * @throws MessageDeliveryException When the specified directory is not available or the journal could not be
+     *                                  opened, for example because another delivery method is writing to it
+     */
+    @Override
+    public void init(final Map<String, ?> settings) throws MessageDeliveryException {
+        if (writer != null) {
+            log.warn("Delivery method is initialised again without being shut down, shutting down first");
+            shutdown();
+        }
+        final String targetDir = Settings.get(settings, "targetDirectory");
+        if (Utils.isNullOrEmpty(targetDir))
+            throw new MessageDeliveryException("Configuration error! No target directory specified!");
+        final Path directory = Paths.get(targetDir);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException | SecurityException dirFailure) {
+            throw new MessageDeliveryException("Configuration error! Specified directory [" + targetDir
+                                                + "] is not available!");
+        }
+        if (!Files.isWritable(directory))
+            throw new MessageDeliveryException("Configuration error! Specified directory [" + targetDir
+                                                + "] is not available!");
+
+        final boolean includeReceiptContent = Utils.isTrue(Settings.get(settings, "includeReceiptContent"));
+        final String formatName = Settings.get(settings, "format");
+        if (Utils.isNullOrEmpty(formatName) || "xml".equalsIgnoreCase(formatName)) {
+            format = JournalRecord.Format.XML;
+            serializer = new StAXSerializer(includeReceiptContent);
+        } else if ("json".equalsIgnoreCase(formatName)) {
+            format = JournalRecord.Format.JSON;
+            serializer = new JSONSerializer(includeReceiptContent);
+        } else if ("cbor".equalsIgnoreCase(formatName)) {
+            format = JournalRecord.Format.CBOR;
+            serializer = new CBORSerializer(includeReceiptContent);
+        } else
+            throw new MessageDeliveryException("Configuration error! Unknown format specified: " + formatName);
+
+        final String durability = Settings.get(settings, "durability");
+        final JournalWriter.Durability level;
+        try {
+            level = Utils.isNullOrEmpty(durability) ? JournalWriter.Durability.NONE
+                                                    : JournalWriter.Durability.valueOf(durability.toUpperCase());
+        } catch (IllegalArgumentException unknownLevel) {
+            throw new MessageDeliveryException("Configuration error! Unknown durability level specified: "
+                                                + durability);
+        }
+        final int segmentSize = Settings.getInt(settings, "segmentSize", DEFAULT_SEGMENT_SIZE, MIN_SEGMENT_SIZE);
+        final int maxAge = Settings.getInt(settings, "segmentMaxAge", 0, 0);
+        try {
+            writer = new JournalWriter(directory, segmentSize, maxAge, level);
+        } catch (IOException openFailure) {
+            throw new MessageDeliveryException("Could not open the journal in " + targetDir + " : "
+                                                + openFailure.getMessage(), openFailure);
+        }
+        log.debug("Opened journal in {}, next record at offset {}", targetDir, writer.getEndOffset());
+    }
+
+    @Override
+    public boolean supportsAsyncDelivery() {
+        return false;
+    }
+
+    /**
+     * Appends the SMD of the signal message to the journal.
+     *
+     * @param rcvdMsgUnit   The signal message to be delivered to the business application
+     * @throws MessageDeliveryException When the given message unit is not a signal or when the signal meta-data
+     *                                  document can not be created or appended to the journal.
+     */
+    @Override
+    public void deliver(final IMessageUnit rcvdMsgUnit) throws MessageDeliveryException {
+        if (!(rcvdMsgUnit instanceof ISignalMessage)) {
+            log.warn("This delivery method can not be used for delivery of User Messages!");
+            throw new MessageDeliveryException("This delivery method can not be used for User messages!");
+        }
+        final JournalWriter journal = writer;
+        if (journal == null)
+            throw new MessageDeliveryException("The journal is not opened");
+        final ISignalMessage signal = (ISignalMessage) rcvdMsgUnit;
+        final ContentBuffer content = new ContentBuffer();
+        try {
+            write(serializer, signal, content);
+        } catch (IOException smdFailure) {
+            log.error("Failed to create the SMD for {}, msgId= {}", signal.getClass().getSimpleName(),
+                      signal.getMessageId());
+            throw new MessageDeliveryException("Could not create meta-data document for Signal message", smdFailure);
+        }
+        final Date timestamp = signal.getTimestamp();
+        try {
+            final long offset = journal.append(signal instanceof IReceipt ? JournalRecord.Type.RECEIPT
+                                                                         : JournalRecord.Type.ERROR,
+                                              format, signal.getMessageId(),
+                                              timestamp != null ? timestamp.getTime() : System.currentTimeMillis(),
+                                              content.buffer(), content.size());
+            log.debug("Appended SMD for {} (msgId= {}) at offset {}", signal.getClass().getSimpleName(),
+                      signal.getMessageId(), offset);
+        } catch (IOException e) {
+            log.error("Could not append SMD for {} (msgId= {}) to journal! Details: {}",
+                      signal.getClass().getSimpleName(), signal.getMessageId(), e.getMessage());
+            throw new MessageDeliveryException("Could not append the SMD to the journal!", e);
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    @Override
+    public void shutdown() {
+        final JournalWriter journal = writer;
+        if (journal != null) {
+            writer = null;
+            journal.close();
+        }
+    }
+
+    /**
+     * Helper method that creates the SMD using the given serializer and writes it to the buffer.
+     */
+    private static <T> void write(final ISMDSerializer<T> smdSerializer, final ISignalMessage signal,
+                                  final ContentBuffer content) throws IOException {
+        smdSerializer.write(smdSerializer.createSMD(signal), content);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the records from the signal journal written by the {@link JournalOperation}. The back-end keeps track of the
+ * offset up to which it has processed the records and uses {@link #poll(long, int)} to get the records written after
+ * it. As the offset of a record directly translates to a segment and position in it, no directory scans are needed to
+ * find new records. The list of segments is only read again when the end of a segment is reached, which the writer
+ * marks in the segment itself, so polling at the end of the journal does not access the directory.
+ * <p>The segment being read is memory mapped, so the reader sees the records as soon as they are appended by the
+ * writer, also when the writer runs in another process. A record is only returned when its checksum is correct, so
+ * records that are still being written are never returned.
+ * <p>Segments that only contain records that have been processed can be removed using {@link #release(long)}.
+ * <p>The reader is not thread-safe.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class JournalReader implements Closeable {
+    private static final Logger log = LogManager.getLogger(JournalReader.class);
+
+    private final Path      directory;
+    private final CRC32     crc = new CRC32();
+
+    /**
+     * The segments known to the reader
+     */
+    private TreeMap<Long, Path> segments;
+
+    /**
+     * The segment currently mapped
+     */
+    private MappedByteBuffer    segment;
+    private long                segmentBase = -1;
+    private boolean             closed;
+
+    /**
+     * Creates a new reader for the journal in the given directory.
+     *
+     * @param directory The journal directory
+     * @throws IOException  When the journal directory can not be read
+     */
+    public JournalReader(final Path directory) throws IOException {
+        this.directory = directory;
+        this.segments = JournalFormat.listSegments(directory);
+    }
+
+    /**
+     * Gets the offset of the first record available in the journal, i.e. the base offset of the oldest segment.
+     *
+     * @return  The offset of the first available record
+     * @throws IOException  When the journal directory can not be read
+     */
+    public long getStartOffset() throws IOException {
+        checkOpen();
+        segments = JournalFormat.listSegments(directory);
+        return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+
+    /**
+     * Gets the offset directly after the last complete record in the journal, i.e. the offset where the next record
+     * will be written. A back-end that is only interested in new records can start reading from this offset.
+     *
+     * @return  The offset after the last record
+     * @throws IOException  When the journal can not be read
+     */
+    public long getEndOffset() throws IOException {
+        checkOpen();
+        segments = JournalFormat.listSegments(directory);
+        if (segments.isEmpty())
+            return 0;
+        final Map.Entry<Long, Path> last = segments.lastEntry();
+        if (!map(last.getKey(), last.getValue()))
+            return last.getKey();
+        int pos = JournalFormat.SEGMENT_HEADER_SIZE;
+        int size;
+        while ((size = JournalFormat.checkRecord(segment, pos, crc)) > 0)
+            pos += size;
+        return segmentBase + pos - JournalFormat.SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Gets the records starting at the given offset. When no records are available at the offset yet, an empty list is
+     * returned. To continue reading, the next call should use the {@link JournalRecord#getNextOffset() next offset}
+     * of the last returned record.
+     *
+     * @param offset        The offset to start reading from, must be either the offset of a record or the offset
+     *                      returned by {@link #getStartOffset()} or {@link #getEndOffset()}
+     * @param maxRecords    The maximum number of records to return
+     * @return              The records starting at the given offset, in the order they were written
+     * @throws IOException  When the journal can not be read
+     * @throws IllegalArgumentException When the offset is before the start of the journal
+     */
+    public List<JournalRecord> poll(final long offset, final int maxRecords) throws IOException {
+        checkOpen();
+        if (maxRecords < 1)
+            return Collections.emptyList();
+        final List<JournalRecord> records = new ArrayList<>(Math.min(maxRecords, 64));
+        long current = offset;
+        while (records.size() < maxRecords) {
+            if (!mapSegmentFor(current))
+                break;
+            final int pos = (int) (current - segmentBase) + JournalFormat.SEGMENT_HEADER_SIZE;
+            final boolean endOfSegment = JournalFormat.isEndOfSegment(segment, pos);
+            int size = endOfSegment ? 0 : JournalFormat.checkRecord(segment, pos, crc);
+            if (size < 0 && segment.limit() < Files.size(segments.get(segmentBase))) {
+                // The writer has extended the segment for a large record
+                map(segmentBase, segments.get(segmentBase));
+                size = JournalFormat.checkRecord(segment, pos, crc);
+            }
+            if (size > 0) {
+                records.add(JournalFormat.readRecord(segment, pos, current, size));
+                current += size;
+                continue;
+            }
+            // There is no complete record at the offset, check whether the writer has moved on to a new segment. As
+            // the writer marks the end of the segment, the directory only needs to be read when the end is reached.
+            Map.Entry<Long, Path> next = segments.higherEntry(segmentBase);
+            if (next == null && size == 0 && !endOfSegment)
+                // No new records written yet
+                break;
+            if (next == null) {
+                segments = JournalFormat.listSegments(directory);
+                next = segments.higherEntry(segmentBase);
+            }
+            if (next == null)
+                break;
+            // The record may have been completed just before the writer started the new segment
+            if (!endOfSegment && (size = JournalFormat.checkRecord(segment, pos, crc)) > 0)
+                continue;
+            if (size < 0 || next.getKey() != current)
+                log.warn("Skipping invalid data in journal segment {} at offset {}, continuing at offset {}",
+                         segments.get(segmentBase), current, next.getKey());
+            current = next.getKey();
+        }
+        return records;
+    }
+
+    /**
+     * Removes the segments that only contain records before the given offset. The segment currently written to is
+     * never removed.
+     *
+     * @param offset    The offset up to which the records have been processed by the back-end
+     * @return          The number of removed segments
+     * @throws IOException  When a segment could not be removed
+     */
+    public int release(final long offset) throws IOException {
+        checkOpen();
+        segments = JournalFormat.listSegments(directory);
+        int removed = 0;
+        Map.Entry<Long, Path> s = segments.firstEntry();
+        Map.Entry<Long, Path> next;
+        while (s != null && (next = segments.higherEntry(s.getKey())) != null && next.getKey() <= offset) {
+            if (s.getKey() == segmentBase) {
+                segment = null;
+                segmentBase = -1;
+            }
+            Files.deleteIfExists(s.getValue());
+            log.debug("Removed journal segment {}", s.getValue());
+            removed++;
+            s = next;
+        }
+        if (removed > 0)
+            segments = JournalFormat.listSegments(directory);
+        return removed;
+    }
+
+    /**
+     * Closes the reader.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        segment = null;
+        segments = null;
+    }
+
+    /**
+     * Ensures the segment containing the given offset is mapped.
+     *
+     * @return  <code>true</code> when the segment is mapped, <code>false</code> when there is no segment for the offset
+     *          (yet)
+     * @throws IllegalArgumentException When the offset is before the start of the journal
+     */
+    private boolean mapSegmentFor(final long offset) throws IOException {
+        if (segment != null && offset >= segmentBase) {
+            final Long next = segments.higherKey(segmentBase);
+            if (next == null || offset < next)
+                return true;
+        }
+        Map.Entry<Long, Path> s = segments.floorEntry(offset);
+        if (s == null || segments.higherKey(s.getKey()) == null) {
+            // The offset may be in a segment created since the list was read
+            segments = JournalFormat.listSegments(directory);
+            s = segments.floorEntry(offset);
+        }
+        if (s == null) {
+            if (segments.isEmpty())
+                return false;
+            throw new IllegalArgumentException("Offset " + offset + " is no longer available in the journal");
+        }
+        return map(s.getKey(), s.getValue());
+    }
+
+    /**
+     * Maps the given segment.
+     *
+     * @return  <code>true</code> when the segment is mapped, <code>false</code> when the segment is still being created
+     */
+    private boolean map(final long base, final Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = ch.size() & ~7;
+            if (size < JournalFormat.SEGMENT_HEADER_SIZE)
+                return false;
+            segment = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE & ~7));
+        } catch (NoSuchFileException removed) {
+            segments = JournalFormat.listSegments(directory);
+            return false;
+        }
+        segmentBase = base;
+        return true;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Reader is closed");
+    }
+}
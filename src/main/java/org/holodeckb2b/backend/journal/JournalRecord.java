@@ -0,0 +1,124 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import java.util.Date;
+
+/**
+ * Is a record read from the signal journal by the {@link JournalReader}. It contains the SMD of a Signal together with
+ * the meta-data from the record header.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class JournalRecord {
+
+    /**
+     * The types of Signals
+     */
+    public enum Type {
+        RECEIPT, ERROR;
+
+        byte code() {
+            return (byte) (ordinal() + 1);
+        }
+
+        static Type fromCode(final byte code) {
+            return code == 1 ? RECEIPT : ERROR;
+        }
+    }
+
+    /**
+     * The formats of the SMD
+     */
+    public enum Format {
+        XML, JSON, CBOR;
+
+        byte code() {
+            return (byte) (ordinal() + 1);
+        }
+
+        static Format fromCode(final byte code) {
+            return code == 2 ? JSON : code == 3 ? CBOR : XML;
+        }
+    }
+
+    private final long      offset;
+    private final long      nextOffset;
+    private final Type      type;
+    private final Format    format;
+    private final String    messageId;
+    private final long      timestamp;
+    private final byte[]    content;
+
+    JournalRecord(final long offset, final long nextOffset, final Type type, final Format format,
+                  final String messageId, final long timestamp, final byte[] content) {
+        this.offset = offset;
+        this.nextOffset = nextOffset;
+        this.type = type;
+        this.format = format;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+        this.content = content;
+    }
+
+    /**
+     * @return  The offset of this record in the journal
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return  The offset of the record following this record, i.e. the offset to continue reading from
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return  The type of Signal
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return  The format of the SMD
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return  The message id of the Signal
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return  The time stamp of the Signal
+     */
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    /**
+     * @return  The SMD of the Signal
+     */
+    public byte[] getContent() {
+        return content;
+    }
+}
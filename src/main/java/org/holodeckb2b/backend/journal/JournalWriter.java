@@ -0,0 +1,386 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Appends records to the signal journal. The segment currently written to is memory mapped in full, so appending a
+ * record only copies it into the mapped buffer. A new segment is started when the record does not fit in the current
+ * segment anymore or when the current segment has reached its maximum age. See {@link JournalFormat} for the layout
+ * of the segments and records.
+ * <p>When opened the last segment is scanned to find the end of the written records. A record that was only partially
+ * written because of a crash is discarded and the remainder of the segment is cleared, so new records can safely be
+ * appended after the last complete record.
+ * <p>When the durability level requires syncing, only the pages containing the appended record are synced when running
+ * on Java 13 or later, which added {@link MappedByteBuffer}<code>.force(int, int)</code>. On older versions the whole
+ * segment must be synced. This still only writes the modified pages to disk, but the OS has to check all pages of the
+ * segment, so the cost of each append then grows with the segment size and a smaller segment size should be used.
+ * <p>The writer is thread-safe, records are appended one at a time. There must be only one writer for a journal, which
+ * is enforced by holding an exclusive lock on the {@link JournalFormat#LOCK_FILE} in the journal directory until the
+ * writer is closed. Opening a second writer for the same journal therefore fails, also when it is in another process.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class JournalWriter {
+    private static final Logger log = LogManager.getLogger(JournalWriter.class);
+
+    /**
+     * The durability levels of the appended records
+     */
+    enum Durability {
+        /**
+         * The records are not explicitly synced, it is left to the OS when the data is written to disk
+         */
+        NONE,
+        /**
+         * The segment is synced to disk after each record is appended
+         */
+        FDATASYNC,
+        /**
+         * The segment is synced to disk after each record is appended and the directory is synced when a new segment
+         * is created
+         */
+        FSYNC
+    }
+
+    /**
+     * Indicates whether directories can be synced, which is not possible on Windows as directories can not be opened
+     */
+    private static final boolean DIR_SYNC_SUPPORTED = File.separatorChar == '/';
+
+    /**
+     * Handle to <code>MappedByteBuffer.force(int, int)</code> to sync only a part of the segment, <code>null</code>
+     * when running on a Java version before 13
+     */
+    private static final MethodHandle FORCE_RANGE = findForceRange();
+
+    private final Path          directory;
+    private final int           segmentSize;
+    private final long          maxSegmentAge;
+    private final Durability    durability;
+    private final CRC32         crc = new CRC32();
+    /**
+     * The lock on the journal directory held by this writer
+     */
+    private final FileLock      lock;
+
+    /**
+     * The segment currently written to
+     */
+    private MappedByteBuffer    segment;
+    private long                baseOffset;
+    private long                segmentOpened;
+    /**
+     * The position in the current segment where the next record is written
+     */
+    private int                 position;
+    private boolean             closed;
+
+    /**
+     * Opens the journal in the given directory for writing, recovering the end of the last segment.
+     *
+     * @param directory     The journal directory, must exist
+     * @param segmentSize   The size of the segments in bytes
+     * @param maxSegmentAge The maximum time in milliseconds a segment is written to, 0 if not limited
+     * @param durability    The durability level of the appended records
+     * @throws IOException  When the journal could not be opened, for example because it is already opened by another
+     *                      writer
+     */
+    JournalWriter(final Path directory, final int segmentSize, final long maxSegmentAge,
+                  final Durability durability) throws IOException {
+        this.directory = directory;
+        this.segmentSize = JournalFormat.align(segmentSize);
+        this.maxSegmentAge = maxSegmentAge;
+        this.durability = durability;
+
+        this.lock = lock(directory);
+        try {
+            final Map.Entry<Long, Path> last = JournalFormat.listSegments(directory).lastEntry();
+            if (last == null)
+                createSegment(0, this.segmentSize);
+            else
+                recoverSegment(last.getKey(), last.getValue());
+        } catch (IOException | RuntimeException openFailure) {
+            release();
+            throw openFailure;
+        }
+    }
+
+    /**
+     * Acquires the exclusive lock on the journal in the given directory.
+     *
+     * @param directory     The journal directory
+     * @return              The acquired lock
+     * @throws IOException  When the lock file could not be opened or the lock is held by another writer
+     */
+    private static FileLock lock(final Path directory) throws IOException {
+        final FileChannel ch = FileChannel.open(directory.resolve(JournalFormat.LOCK_FILE), StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE);
+        FileLock acquired = null;
+        try {
+            acquired = ch.tryLock();
+        } catch (OverlappingFileLockException heldByThisProcess) {
+            // Another writer in this process has the journal opened
+        } finally {
+            if (acquired == null)
+                ch.close();
+        }
+        if (acquired == null)
+            throw new IOException("Journal in " + directory + " is already opened by another writer");
+        return acquired;
+    }
+
+    /**
+     * Releases the lock on the journal directory and closes the lock file.
+     */
+    private void release() {
+        try {
+            lock.channel().close();
+        } catch (IOException closeFailure) {
+            log.warn("Could not release the lock on journal {} : {}", directory, closeFailure.getMessage());
+        }
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param type          The type of Signal
+     * @param format        The format of the SMD
+     * @param messageId     The message id of the Signal
+     * @param timestamp     The time stamp of the Signal
+     * @param content       The buffer containing the SMD
+     * @param contentLength The length of the SMD
+     * @return              The offset of the appended record
+     * @throws IOException  When the record could not be appended
+     */
+    synchronized long append(final JournalRecord.Type type, final JournalRecord.Format format, final String messageId,
+                             final long timestamp, final byte[] content, final int contentLength) throws IOException {
+        if (closed)
+            throw new IOException("Journal is closed");
+        final byte[] id = messageId != null ? messageId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (id.length > JournalFormat.MAX_MESSAGE_ID_LENGTH)
+            throw new IOException("Message id is too long to be stored in the journal");
+        final int size = JournalFormat.recordSize(id.length, contentLength);
+        if (position > JournalFormat.SEGMENT_HEADER_SIZE
+            && (size > segment.capacity() - position
+                || (maxSegmentAge > 0 && System.currentTimeMillis() - segmentOpened >= maxSegmentAge)))
+            roll(size);
+        else if (size > segment.capacity() - position)
+            // The record is larger than an empty segment, so extend the segment
+            growSegment(size);
+
+        final int length = JournalFormat.RECORD_HEADER_SIZE - JournalFormat.PREFIX_SIZE + id.length + contentLength;
+        segment.putLong(position + 8, timestamp);
+        segment.put(position + 16, type.code());
+        segment.put(position + 17, format.code());
+        segment.putShort(position + 18, (short) id.length);
+        segment.position(position + JournalFormat.RECORD_HEADER_SIZE);
+        segment.put(id);
+        segment.put(content, 0, contentLength);
+        segment.limit(position + JournalFormat.PREFIX_SIZE + length).position(position + JournalFormat.PREFIX_SIZE);
+        crc.reset();
+        crc.update(segment);
+        segment.clear();
+        segment.putInt(position + 4, (int) crc.getValue());
+        // Writing the length publishes the record
+        segment.putInt(position, length);
+        if (durability != Durability.NONE)
+            force(position, size);
+
+        final long offset = baseOffset + position - JournalFormat.SEGMENT_HEADER_SIZE;
+        position += size;
+        return offset;
+    }
+
+    /**
+     * @return  The offset where the next record will be written
+     */
+    synchronized long getEndOffset() {
+        return baseOffset + position - JournalFormat.SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Closes the journal, syncing the current segment to disk when required by the durability level.
+     */
+    synchronized void close() {
+        if (closed)
+            return;
+        try {
+            if (durability != Durability.NONE)
+                segment.force();
+        } finally {
+            closed = true;
+            segment = null;
+            release();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one that is at least large enough for the given record size.
+     */
+    private void roll(final int recordSize) throws IOException {
+        if (position <= segment.capacity() - 4) {
+            // Mark the end of the segment, so readers know they can continue in the new segment
+            segment.putInt(position, JournalFormat.END_OF_SEGMENT);
+            if (durability != Durability.NONE)
+                force(position, 4);
+        }
+        final long next = baseOffset + position - JournalFormat.SEGMENT_HEADER_SIZE;
+        log.debug("Closing journal segment {}, starting new segment at offset {}", baseOffset, next);
+        createSegment(next, Math.max(segmentSize, JournalFormat.SEGMENT_HEADER_SIZE + recordSize));
+    }
+
+    /**
+     * Extends the current, empty segment so it is large enough for the given record size.
+     */
+    private void growSegment(final int recordSize) throws IOException {
+        try (FileChannel ch = FileChannel.open(directory.resolve(JournalFormat.segmentName(baseOffset)),
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = ch.map(FileChannel.MapMode.READ_WRITE, 0, JournalFormat.SEGMENT_HEADER_SIZE + recordSize);
+        }
+    }
+
+    /**
+     * Creates a new segment with the given base offset and size and makes it the current segment.
+     */
+    private void createSegment(final long base, final int size) throws IOException {
+        final Path file = directory.resolve(JournalFormat.segmentName(base));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            // The mapping remains valid after the channel is closed
+            segment = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segment.putInt(0, JournalFormat.MAGIC);
+        segment.putInt(4, JournalFormat.VERSION);
+        segment.putLong(8, base);
+        if (durability == Durability.FSYNC) {
+            segment.force();
+            syncDirectory();
+        }
+        baseOffset = base;
+        position = JournalFormat.SEGMENT_HEADER_SIZE;
+        segmentOpened = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens the given existing segment and scans it to find the end of the complete records. When a partially written
+     * record is found, it and the rest of the segment are cleared.
+     */
+    private void recoverSegment(final long base, final Path file) throws IOException {
+        final long fileSize = Files.size(file);
+        if (fileSize < JournalFormat.SEGMENT_HEADER_SIZE) {
+            // The segment was being created when the system crashed
+            log.warn("Replacing incomplete journal segment {}", file);
+            Files.delete(file);
+            createSegment(base, segmentSize);
+            return;
+        } else if (fileSize > Integer.MAX_VALUE)
+            throw new IOException("Journal segment " + file + " is too large");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = ch.map(FileChannel.MapMode.READ_WRITE, 0, fileSize & ~7);
+        }
+        final int magic = segment.getInt(0);
+        if (magic == 0 && segment.getLong(8) == 0) {
+            // The header was not written yet when the system crashed
+            segment.putInt(0, JournalFormat.MAGIC);
+            segment.putInt(4, JournalFormat.VERSION);
+            segment.putLong(8, base);
+        } else if (magic != JournalFormat.MAGIC || segment.getInt(4) != JournalFormat.VERSION
+                   || segment.getLong(8) != base)
+            throw new IOException(file + " is not a valid journal segment");
+        baseOffset = base;
+        segmentOpened = System.currentTimeMillis();
+
+        int pos = JournalFormat.SEGMENT_HEADER_SIZE;
+        int size;
+        while ((size = JournalFormat.checkRecord(segment, pos, crc)) > 0)
+            pos += size;
+        position = pos;
+        if (size < 0 && segment.getInt(pos) == JournalFormat.END_OF_SEGMENT)
+            // The system crashed before the next segment was created, so continue in this segment
+            log.debug("Re-opening closed journal segment {}", file);
+        else if (size < 0)
+            log.warn("Discarding partially written record at offset {} in journal segment {}",
+                     base + pos - JournalFormat.SEGMENT_HEADER_SIZE, file);
+        // Clear any data left after the last complete record, so it can not be mistaken for a record later
+        boolean dirty = false;
+        for (int i = pos; i < segment.limit() && !dirty; i += 8)
+            dirty = segment.getLong(i) != 0;
+        if (dirty) {
+            for (int i = pos; i < segment.limit(); i += 8)
+                segment.putLong(i, 0);
+            segment.force();
+        }
+        log.debug("Opened journal segment {}, next record at offset {}", file, getEndOffset());
+    }
+
+    /**
+     * Syncs the given part of the current segment to disk.
+     */
+    private void force(final int index, final int length) throws IOException {
+        if (FORCE_RANGE == null) {
+            segment.force();
+            return;
+        }
+        try {
+            final MappedByteBuffer synced = (MappedByteBuffer) FORCE_RANGE.invokeExact(segment, index, length);
+        } catch (RuntimeException | Error syncFailure) {
+            throw syncFailure;
+        } catch (Throwable syncFailure) {
+            throw new IOException("Could not sync the journal segment", syncFailure);
+        }
+    }
+
+    /**
+     * Gets the handle to <code>MappedByteBuffer.force(int, int)</code> if available.
+     */
+    private static MethodHandle findForceRange() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force", MethodType.methodType(
+                                                                        MappedByteBuffer.class, int.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException notAvailable) {
+            return null;
+        }
+    }
+
+    /**
+     * Syncs the journal directory so the creation of a new segment is durable.
+     */
+    private void syncDirectory() throws IOException {
+        if (!DIR_SYNC_SUPPORTED)
+            return;
+        try (FileChannel ch = FileChannel.open(directory, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+}
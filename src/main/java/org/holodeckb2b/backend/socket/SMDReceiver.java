@@ -0,0 +1,197 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Is a simple implementation of the back-end side of the protocol used by the {@link SocketOperation}. It accepts
+ * connections from delivery methods, passes the received SMDs to a {@link Listener} and acknowledges them. Frames that
+ * are received again after a re-connect are acknowledged without passing them to the listener again. It can be used
+ * as a starting point for the integration in a back-end or as stand-in for the back-end when testing.
+ * <p>When started from the command line it prints the received SMDs, e.g. <code>java -cp ...
+ * org.holodeckb2b.backend.socket.SMDReceiver unix:/tmp/smd.sock</code>.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class SMDReceiver implements Closeable {
+    private static final Logger log = LogManager.getLogger(SMDReceiver.class);
+
+    /**
+     * Is the component that processes the received SMDs
+     */
+    public interface Listener {
+        /**
+         * Processes a received SMD.
+         *
+         * @param type      The type of Signal, either <i>"receipt"</i> or <i>"error"</i>
+         * @param format    The format of the SMD, either <i>"xml"</i>, <i>"json"</i> or <i>"cbor"</i>
+         * @param smd       The SMD
+         * @throws Exception    When the SMD could not be processed, the SMD is then rejected
+         */
+        void received(String type, String format, byte[] smd) throws Exception;
+    }
+
+    private final SocketAddress         address;
+    private final Listener              listener;
+    private final ServerSocketChannel   server;
+    private final Thread                acceptor;
+
+    /**
+     * The last sequence number processed per session
+     */
+    private final Map<Long, Long>   lastProcessed = new ConcurrentHashMap<>();
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean        running = true;
+
+    /**
+     * Creates a new receiver and starts listening on the given address.
+     *
+     * @param address   The address to listen on, using the same syntax as the delivery method
+     * @param listener  The listener to pass the received SMDs to
+     * @throws IOException  When the receiver can not listen on the address
+     */
+    public SMDReceiver(final String address, final Listener listener) throws IOException {
+        this.address = StreamProtocol.parseAddress(address);
+        this.listener = listener;
+        if (!(this.address instanceof InetSocketAddress))
+            // Remove the socket file left behind by a previous run
+            Files.deleteIfExists(Paths.get(address.substring(5)));
+        this.server = StreamProtocol.openServerChannel(this.address);
+        this.acceptor = new Thread(this::accept, "smd-receiver");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * Stops the receiver and closes all connections.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException closeFailure) {
+            log.warn("Error closing the receiver : {}", closeFailure.getMessage());
+        }
+        for (SocketChannel c : connections)
+            try {
+                c.close();
+            } catch (IOException closeFailure) {
+                // Nothing to do
+            }
+    }
+
+    /**
+     * Accepts the connections and starts a thread to handle each of them.
+     */
+    private void accept() {
+        while (running) {
+            try {
+                final SocketChannel ch = server.accept();
+                connections.add(ch);
+                final Thread handler = new Thread(() -> handle(ch), "smd-receiver-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException acceptFailure) {
+                if (running)
+                    log.error("Error accepting connection on {} : {}", address, acceptFailure.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the frames from the connection, passes them to the listener and sends the acknowledgements.
+     */
+    private void handle(final SocketChannel ch) {
+        try (SocketChannel c = ch) {
+            final ByteBuffer hello = ByteBuffer.allocate(StreamProtocol.HELLO_SIZE);
+            if (!StreamProtocol.readFully(c, hello) || hello.getInt(0) != StreamProtocol.MAGIC) {
+                log.warn("Closing connection from unknown client");
+                return;
+            }
+            final long session = hello.getLong(4);
+            log.debug("Accepted connection for session {}", session);
+            final ByteBuffer header = ByteBuffer.allocate(StreamProtocol.FRAME_HEADER_SIZE);
+            final ByteBuffer ack = ByteBuffer.allocate(StreamProtocol.ACK_SIZE);
+            while (running && StreamProtocol.readFully(c, header)) {
+                final int length = header.getInt(0);
+                final long seq = header.getLong(4);
+                if (length < StreamProtocol.FRAME_HEADER_SIZE - 4 || length > StreamProtocol.MAX_FRAME_SIZE)
+                    throw new IOException("Invalid frame length " + length);
+                final ByteBuffer smd = ByteBuffer.allocate(length - (StreamProtocol.FRAME_HEADER_SIZE - 4));
+                if (!StreamProtocol.readFully(c, smd))
+                    throw new IOException("Connection closed in the middle of a frame");
+                byte status = StreamProtocol.STATUS_ACCEPTED;
+                final Long last = lastProcessed.get(session);
+                if (last == null || seq > last)
+                    try {
+                        listener.received(header.get(12) == StreamProtocol.TYPE_RECEIPT ? "receipt" : "error",
+                                          header.get(13) == StreamProtocol.FORMAT_JSON ? "json"
+                                                : header.get(13) == StreamProtocol.FORMAT_CBOR ? "cbor" : "xml",
+                                          smd.array());
+                        lastProcessed.put(session, seq);
+                    } catch (Exception processingFailure) {
+                        log.warn("Rejected SMD {} of session {} : {}", seq, session, processingFailure.getMessage());
+                        status = StreamProtocol.STATUS_REJECTED;
+                    }
+                header.clear();
+                ack.clear();
+                ack.putLong(seq).put(status).flip();
+                StreamProtocol.writeFully(c, ack);
+            }
+        } catch (IOException connectionFailure) {
+            if (running)
+                log.warn("Error on connection : {}", connectionFailure.getMessage());
+        } finally {
+            connections.remove(ch);
+        }
+    }
+
+    /**
+     * Starts a receiver that prints the received SMDs.
+     *
+     * @param args  The address to listen on
+     * @throws Exception    When the receiver could not be started
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: SMDReceiver unix:<path> | tcp:[<host>:]<port>");
+            System.exit(1);
+        }
+        final SMDReceiver receiver = new SMDReceiver(args[0], (type, format, smd) ->
+                System.out.println("Received " + type + " (" + format + ", " + smd.length + " bytes)"
+                                   + ("cbor".equals(format) ? "" : ":\n" + new String(smd, StandardCharsets.UTF_8))));
+        System.out.println("Listening on " + args[0] + ", press Enter to stop");
+        System.in.read();
+        receiver.close();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.commons.util.Utils;
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.Settings;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.IDeliveryMethod;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IMessageUnit;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is a {@link IDeliveryMethod} implementation that notifies the business application about received <i>Signal
+ * Messages</i> by streaming the signal meta-data (SMD) over a persistent socket connection to a back-end running on the
+ * same host. This avoids the latency of writing files and the polling of the directory by the back-end.
+ * <p>The SMDs are sent as frames over a Unix domain socket, which requires Java 16 or later, or a TCP connection. The
+ * back-end acknowledges each frame after it has processed the SMD. A Signal is only successfully delivered when its
+ * SMD has been acknowledged. Frames are sent without waiting for the acknowledgement of previous frames, so multiple
+ * Signals can be in transit at the same time. When the connection is lost it is re-established automatically and the
+ * SMDs that were not acknowledged are sent again. As an SMD may therefore be received more than once, the back-end
+ * must ignore frames it already processed. See {@link StreamProtocol} for a description of the protocol and {@link
+ * SMDReceiver} for a sample implementation of the back-end side.
+ * <p>The delivery method takes the following parameters:<ol>
+ * <li><i>address</i> : the address of the back-end, either <i>"unix:</i>path<i>"</i> for a Unix domain socket or
+ * <i>"tcp:</i>[host:]port<i>"</i> for a TCP connection. When no host is specified the loopback address is used.</li>
+ * <li><i>includeReceiptContent</i> : a boolean that indicate whether the complete Receipt content from the ebMS message
+ * should be included (<i>"true"</i>) or only the first child element (<i>"false"</i>). Default is <i>false</i>.</li>
+ * <li><i>format</i> : the format of the SMD, either <i>"xml"</i>, <i>"json"</i> or <i>"cbor"</i>. The XML document is
+ * written using the {@link StAXSerializer}. Default is <i>"xml"</i>.</li>
+ * <li><i>maxPending</i> : the maximum number of SMDs waiting for acknowledgement, including the ones buffered while
+ * the connection is down. Default is {@value #DEFAULT_MAX_PENDING}.</li>
+ * <li><i>ackTimeout</i> : the maximum time in milliseconds to wait for the acknowledgement of an SMD. When no
+ * acknowledgement is received in time the delivery fails and will be retried by the Holodeck B2B Core, also when the
+ * result is reported asynchronously. This is also the maximum time to wait for space when the maximum number of SMDs
+ * is waiting and the maximum time writing an SMD to the connection may take before the connection is re-established.
+ * Default is {@value #DEFAULT_ACK_TIMEOUT}.</li>
+ * <li><i>reconnectInterval</i> : the time in milliseconds to wait before re-connecting after the connection was lost.
+ * The interval is doubled after each failed attempt, up to 30 seconds. Default is {@value
+ * #DEFAULT_RECONNECT_INTERVAL}.</li>
+ * <li><i>asyncDelivery</i> : a boolean that indicates whether the Holodeck B2B Core should be notified of the result
+ * of the delivery asynchronously, so it does not need to wait for the acknowledgement. Default is <i>false</i>.</li>
+ * </ol>
+ * <p>NOTE: This delivery method can only be used for Signals!
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class SocketOperation implements IDeliveryMethod {
+    private final Logger log = LogManager.getLogger(SocketOperation.class);
+
+    /**
+     * Default maximum number of SMDs waiting for acknowledgement
+     */
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    /**
+     * Default maximum time in milliseconds to wait for the acknowledgement of an SMD
+     */
+    public static final long DEFAULT_ACK_TIMEOUT = 5000;
+
+    /**
+     * Default time in milliseconds to wait before re-connecting
+     */
+    public static final long DEFAULT_RECONNECT_INTERVAL = 500;
+
+    /**
+     * Maximum time in milliseconds to wait for the acknowledgement of the sent SMDs when the delivery method is shut
+     * down
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
+    /**
+     * Output stream that reserves space for the frame header before the SMD, so the frame can be sent without copying
+     * the SMD
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(2048);
+            count = StreamProtocol.FRAME_HEADER_SIZE;
+        }
+
+        ByteBuffer toFrame(final byte type, final byte format) {
+            final ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - 4);
+            frame.put(12, type);
+            frame.put(13, format);
+            return frame;
+        }
+    }
+
+    /**
+     * Callback used for synchronous delivery, which waits for the acknowledgement of the SMD
+     */
+    private static final class WaitingCallback implements IDeliveryCallback {
+        private final CountDownLatch    done = new CountDownLatch(1);
+        private MessageDeliveryException failure;
+
+        @Override
+        public void success() {
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final MessageDeliveryException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        boolean await(final long timeout) throws MessageDeliveryException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS))
+                    return false;
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new MessageDeliveryException("Interrupted while waiting for acknowledgement");
+            }
+            if (failure != null)
+                throw failure;
+            return true;
+        }
+    }
+
+    /**
+     * The serializer used to write the SMD documents
+     */
+    private ISMDSerializer<?> serializer;
+
+    /**
+     * The format of the SMD documents
+     */
+    private byte format;
+
+    /**
+     * The connection to the back-end, <code>null</code> when not initialised or shut down
+     */
+    private volatile StreamConnection connection;
+
+    private long    ackTimeout;
+    private boolean asyncDelivery;
+
+    /**
+     * Initializes the delivery method and starts connecting to the back-end. The back-end does not need to be
+     * available yet, SMDs are buffered until the connection is established.
+     *
+     * @param settings  The settings to use for the delivery. MUST contain at least on entry with key
+     *                  <code>address</code> holding the address of the back-end.
+     * @throws MessageDeliveryException When the settings are invalid
+     */
+    @Override
+    public void init(final Map<String, ?> settings) throws MessageDeliveryException {
+        if (connection != null) {
+            log.warn("Delivery method is initialised again without being shut down, shutting down first");
+            shutdown();
+        }
+        final String address = Settings.get(settings, "address");
+        if (Utils.isNullOrEmpty(address))
+            throw new MessageDeliveryException("Configuration error! No address specified!");
+
+        final boolean includeReceiptContent = Utils.isTrue(Settings.get(settings, "includeReceiptContent"));
+        final String formatName = Settings.get(settings, "format");
+        if (Utils.isNullOrEmpty(formatName) || "xml".equalsIgnoreCase(formatName)) {
+            format = StreamProtocol.FORMAT_XML;
+            serializer = new StAXSerializer(includeReceiptContent);
+        } else if ("json".equalsIgnoreCase(formatName)) {
+            format = StreamProtocol.FORMAT_JSON;
+            serializer = new JSONSerializer(includeReceiptContent);
+        } else if ("cbor".equalsIgnoreCase(formatName)) {
+            format = StreamProtocol.FORMAT_CBOR;
+            serializer = new CBORSerializer(includeReceiptContent);
+        } else
+            throw new MessageDeliveryException("Configuration error! Unknown format specified: " + formatName);
+
+        final int maxPending = Settings.getInt(settings, "maxPending", DEFAULT_MAX_PENDING, 1);
+        ackTimeout = Settings.getInt(settings, "ackTimeout", (int) DEFAULT_ACK_TIMEOUT, 1);
+        final long reconnectInterval = Settings.getInt(settings, "reconnectInterval",
+                                                       (int) DEFAULT_RECONNECT_INTERVAL, 1);
+        asyncDelivery = Utils.isTrue(Settings.get(settings, "asyncDelivery"));
+        try {
+            connection = new StreamConnection(StreamProtocol.parseAddress(address), maxPending, reconnectInterval,
+                                              ackTimeout);
+        } catch (IllegalArgumentException invalidAddress) {
+            throw new MessageDeliveryException("Configuration error! Invalid address specified: " + address + " ("
+                                                + invalidAddress.getMessage() + ")");
+        }
+        log.debug("Streaming SMDs to {}", address);
+    }
+
+    @Override
+    public boolean supportsAsyncDelivery() {
+        return asyncDelivery;
+    }
+
+    /**
+     * Sends the SMD of the signal message to the back-end and waits for its acknowledgement.
+     *
+     * @param rcvdMsgUnit   The signal message to be delivered to the business application
+     * @throws MessageDeliveryException When the given message unit is not a signal, the signal meta-data document can
+     *                                  not be created or was not acknowledged in time or rejected by the back-end
+     */
+    @Override
+    public void deliver(final IMessageUnit rcvdMsgUnit) throws MessageDeliveryException {
+        final WaitingCallback callback = new WaitingCallback();
+        final StreamConnection conn = connection;
+        final long seq = send(conn, rcvdMsgUnit, callback);
+        if (!callback.await(ackTimeout)) {
+            if (conn.abandon(seq)) {
+                log.warn("No acknowledgement received for {} (msgId= {}) within {} ms",
+                         rcvdMsgUnit.getClass().getSimpleName(), rcvdMsgUnit.getMessageId(), ackTimeout);
+                throw new MessageDeliveryException("The SMD was not acknowledged in time");
+            }
+            // The acknowledgement was received just after the time out and is being reported, which should be quick
+            if (!callback.await(ackTimeout)) {
+                log.error("Result of delivery of {} (msgId= {}) not reported within {} ms after acknowledgement",
+                          rcvdMsgUnit.getClass().getSimpleName(), rcvdMsgUnit.getMessageId(), ackTimeout);
+                throw new MessageDeliveryException("The result of the delivery was not reported in time");
+            }
+        }
+    }
+
+    /**
+     * Sends the SMD of the signal message to the back-end. The result is reported to the callback when the
+     * acknowledgement is received.
+     *
+     * @param rcvdMsgUnit   The signal message to be delivered to the business application
+     * @param callback      The callback to report the result of the delivery to
+     * @throws MessageDeliveryException When the given message unit is not a signal, the signal meta-data document can
+     *                                  not be created or too many SMDs are waiting for acknowledgement
+     */
+    @Override
+    public void deliver(final IMessageUnit rcvdMsgUnit, final IDeliveryCallback callback)
+                                                                                    throws MessageDeliveryException {
+        send(connection, rcvdMsgUnit, callback);
+    }
+
+    /**
+     * Closes the connection to the back-end after waiting for the acknowledgement of the SMDs already sent.
+     */
+    @Override
+    public void shutdown() {
+        final StreamConnection conn = connection;
+        if (conn != null) {
+            connection = null;
+            log.debug("Closing connection, {} SMDs waiting for acknowledgement", conn.getPending());
+            conn.close(SHUTDOWN_TIMEOUT);
+        }
+    }
+
+    /**
+     * @return  The number of SMDs waiting for acknowledgement
+     */
+    public int getPending() {
+        final StreamConnection conn = connection;
+        return conn != null ? conn.getPending() : 0;
+    }
+
+    /**
+     * @return  Indicates whether there currently is a connection with the back-end
+     */
+    public boolean isConnected() {
+        final StreamConnection conn = connection;
+        return conn != null && conn.isConnected();
+    }
+
+    /**
+     * Helper method that creates the frame for the signal and sends it to the back-end.
+     *
+     * @param conn          The connection to send the frame on, <code>null</code> when shut down
+     * @param rcvdMsgUnit   The signal message to be delivered
+     * @param callback      The callback to report the result of the delivery to
+     * @return              The sequence number of the frame
+     * @throws MessageDeliveryException When the given message unit is not a signal, the signal meta-data document can
+     *                                  not be created, too many SMDs are waiting for acknowledgement or the delivery
+     *                                  method is shut down
+     */
+    private long send(final StreamConnection conn, final IMessageUnit rcvdMsgUnit, final IDeliveryCallback callback)
+                                                                                    throws MessageDeliveryException {
+        if (conn == null)
+            throw new MessageDeliveryException("Connection is closed");
+        if (!(rcvdMsgUnit instanceof ISignalMessage)) {
+            log.warn("This delivery method can not be used for delivery of User Messages!");
+            throw new MessageDeliveryException("This delivery method can not be used for User messages!");
+        }
+        final ISignalMessage signal = (ISignalMessage) rcvdMsgUnit;
+        final FrameBuffer frame = new FrameBuffer();
+        try {
+            write(serializer, signal, frame);
+        } catch (IOException smdFailure) {
+            log.error("Failed to create the SMD for {}, msgId= {}", signal.getClass().getSimpleName(),
+                      signal.getMessageId());
+            throw new MessageDeliveryException("Could not create meta-data document for Signal message", smdFailure);
+        }
+        final long seq = conn.send(frame.toFrame(signal instanceof IReceipt ? StreamProtocol.TYPE_RECEIPT
+                                                                            : StreamProtocol.TYPE_ERROR,
+                                                 format),
+                                   callback, ackTimeout);
+        log.debug("Sent SMD for {} (msgId= {}) as frame {}", signal.getClass().getSimpleName(), signal.getMessageId(),
+                  seq);
+        return seq;
+    }
+
+    /**
+     * Helper method that creates the SMD using the given serializer and writes it to the frame.
+     */
+    private static <T> void write(final ISMDSerializer<T> smdSerializer, final ISignalMessage signal,
+                                  final FrameBuffer frame) throws IOException {
+        smdSerializer.write(smdSerializer.createSMD(signal), frame);
+    }
+}
@@ -0,0 +1,471 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+
+/**
+ * Manages the persistent connection to the back-end used by the {@link SocketOperation}. Frames are written to the
+ * connection as soon as they are sent, without waiting for the acknowledgement of the previous frames. The
+ * acknowledgements are read by a separate thread which reports the result to the callback of the frame.
+ * <p>Frames are kept until they are acknowledged. When the connection is lost a background thread re-connects,
+ * waiting longer between attempts while the back-end is unavailable, and sends the frames that were not acknowledged
+ * again. While disconnected new frames are only buffered. The number of frames waiting for acknowledgement is limited,
+ * when the limit is reached senders wait at most the given time for space to become available.
+ * <p>A frame that is not acknowledged within the acknowledgement timeout is failed, so also the result of frames sent
+ * asynchronously is always reported. As the frames are written while holding a lock, a back-end that stops reading
+ * would block all senders. When writing a frame takes longer than the acknowledgement timeout the connection is
+ * therefore closed, which ends the write, and re-established. Both are checked by a watchdog thread.
+ * <p>See {@link StreamProtocol} for the protocol used on the connection.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+class StreamConnection {
+    private static final Logger log = LogManager.getLogger(StreamConnection.class);
+
+    /**
+     * Maximum time in milliseconds to wait between attempts to connect
+     */
+    private static final long MAX_RECONNECT_INTERVAL = 30000;
+
+    /**
+     * Minimum interval in milliseconds of the checks by the watchdog
+     */
+    private static final long MIN_WATCH_INTERVAL = 10;
+
+    /**
+     * A frame waiting for acknowledgement
+     */
+    private static final class Pending {
+        final ByteBuffer        frame;
+        final IDeliveryCallback callback;
+        final long              sent = System.nanoTime();
+
+        Pending(final ByteBuffer frame, final IDeliveryCallback callback) {
+            this.frame = frame;
+            this.callback = callback;
+        }
+    }
+
+    private final SocketAddress address;
+    private final long          reconnectInterval;
+    private final long          ackTimeout;
+    private final long          sessionId = ThreadLocalRandom.current().nextLong();
+    private final Semaphore     capacity;
+
+    /**
+     * Guards the writing to the connection, ensuring the frames are written in order of their sequence number
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long                nextSeq = 1;
+
+    /**
+     * Guards the frames waiting for acknowledgement
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition     drained = lock.newCondition();
+    private final LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+
+    private final Thread            connector;
+    private final Thread            watchdog;
+    private volatile SocketChannel  channel;
+    private volatile boolean        running = true;
+
+    /**
+     * The channel currently being written to and the time the write started, <code>null</code> when not writing
+     */
+    private volatile SocketChannel  writingTo;
+    private volatile long           writeStart;
+
+    /**
+     * Creates a new connection and starts connecting to the back-end in the background.
+     *
+     * @param address           The address of the back-end
+     * @param maxPending        The maximum number of frames waiting for acknowledgement
+     * @param reconnectInterval The time in milliseconds to wait before the first attempt to re-connect
+     * @param ackTimeout        The maximum time in milliseconds to wait for the acknowledgement of a frame
+     */
+    StreamConnection(final SocketAddress address, final int maxPending, final long reconnectInterval,
+                     final long ackTimeout) {
+        this.address = address;
+        this.capacity = new Semaphore(maxPending);
+        this.reconnectInterval = reconnectInterval;
+        this.ackTimeout = TimeUnit.MILLISECONDS.toNanos(ackTimeout);
+        this.connector = new Thread(this::run, "smd-stream-connector");
+        this.connector.setDaemon(true);
+        this.connector.start();
+        this.watchdog = new Thread(this::watch, "smd-stream-watchdog");
+        this.watchdog.setDaemon(true);
+        this.watchdog.start();
+    }
+
+    /**
+     * Sends a frame to the back-end. The frame is written directly when connected and otherwise buffered until the
+     * connection is re-established.
+     *
+     * @param frame     The frame to send, the sequence number will be set
+     * @param callback  The callback to report the acknowledgement of the frame to
+     * @param timeout   The maximum time in milliseconds to wait when the maximum number of frames are waiting for
+     *                  acknowledgement
+     * @return          The sequence number of the frame
+     * @throws MessageDeliveryException When the frame could not be sent because too many frames are waiting for
+     *                                  acknowledgement or the connection is closed
+     */
+    long send(final ByteBuffer frame, final IDeliveryCallback callback, final long timeout)
+                                                                                    throws MessageDeliveryException {
+        try {
+            if (!capacity.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new MessageDeliveryException("Too many SMDs waiting for acknowledgement, try again later");
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new MessageDeliveryException("Interrupted while waiting to send SMD");
+        }
+        writeLock.lock();
+        try {
+            if (!running) {
+                capacity.release();
+                throw new MessageDeliveryException("Connection is closed");
+            }
+            final long seq = nextSeq++;
+            frame.putLong(4, seq);
+            lock.lock();
+            try {
+                pending.put(seq, new Pending(frame, callback));
+            } finally {
+                lock.unlock();
+            }
+            final SocketChannel ch = channel;
+            if (ch != null)
+                try {
+                    write(ch, frame.duplicate());
+                } catch (IOException writeFailure) {
+                    // The frame will be sent again when the connection is re-established
+                    log.warn("Lost connection to {} : {}", address, writeFailure.getMessage());
+                    // Buffer the next frames instead of writing them to the closed channel until re-connected
+                    channel = null;
+                    closeQuietly(ch);
+                }
+            return seq;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stops waiting for the acknowledgement of the given frame, for example because the sender has given up. When the
+     * frame was not written yet, it will not be sent anymore.
+     *
+     * @param seq   The sequence number of the frame
+     * @return      <code>true</code> when the frame was still waiting for acknowledgement, <code>false</code> if not
+     */
+    boolean abandon(final long seq) {
+        return complete(seq) != null;
+    }
+
+    /**
+     * @return  The number of frames waiting for acknowledgement
+     */
+    int getPending() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  Indicates whether there currently is a connection with the back-end
+     */
+    boolean isConnected() {
+        return channel != null;
+    }
+
+    /**
+     * Closes the connection after waiting for the acknowledgement of the frames already sent. Frames that are not
+     * acknowledged within the given time are reported as failed.
+     *
+     * @param timeout   The maximum time in milliseconds to wait for the acknowledgements
+     */
+    void close(final long timeout) {
+        writeLock.lock();
+        try {
+            running = false;
+        } finally {
+            writeLock.unlock();
+        }
+        final List<Pending> failed = new ArrayList<>();
+        lock.lock();
+        try {
+            long wait = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!pending.isEmpty() && wait > 0)
+                wait = drained.awaitNanos(wait);
+            failed.addAll(pending.values());
+            pending.clear();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        connector.interrupt();
+        watchdog.interrupt();
+        final SocketChannel ch = channel;
+        if (ch != null)
+            closeQuietly(ch);
+        if (!failed.isEmpty())
+            log.warn("Closed connection to {} with {} SMDs not acknowledged", address, failed.size());
+        for (Pending p : failed)
+            p.callback.failed(new MessageDeliveryException("Connection closed before the SMD was acknowledged"));
+    }
+
+    /**
+     * Keeps the connection with the back-end. After connecting the acknowledgements are read until the connection is
+     * lost, after which a new connection is made.
+     */
+    private void run() {
+        long interval = reconnectInterval;
+        while (running) {
+            final SocketChannel ch;
+            try {
+                ch = connect();
+            } catch (IOException connectFailure) {
+                log.debug("Could not connect to {}, retrying in {} ms : {}", address, interval,
+                          connectFailure.getMessage());
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException interrupted) {
+                    // Closed
+                }
+                interval = Math.min(interval * 2, MAX_RECONNECT_INTERVAL);
+                continue;
+            }
+            interval = reconnectInterval;
+            log.info("Connected to {}", address);
+            final Thread ackReader = new Thread(() -> readAcknowledgements(ch), "smd-stream-acks");
+            ackReader.setDaemon(true);
+            ackReader.start();
+            resend(ch);
+            try {
+                ackReader.join();
+            } catch (InterruptedException interrupted) {
+                // Closed, the channel is closed by close() which ends the reader
+            }
+            writeLock.lock();
+            try {
+                if (channel == ch)
+                    channel = null;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens the connection and sends the hello.
+     */
+    private SocketChannel connect() throws IOException {
+        final SocketChannel ch = SocketChannel.open(address);
+        try {
+            if (address instanceof InetSocketAddress)
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            final ByteBuffer hello = ByteBuffer.allocate(StreamProtocol.HELLO_SIZE);
+            hello.putInt(StreamProtocol.MAGIC).putLong(sessionId).flip();
+            StreamProtocol.writeFully(ch, hello);
+            return ch;
+        } catch (IOException helloFailure) {
+            closeQuietly(ch);
+            throw helloFailure;
+        }
+    }
+
+    /**
+     * Sends the frames waiting for acknowledgement on the new connection and makes it the current connection.
+     */
+    private void resend(final SocketChannel ch) {
+        writeLock.lock();
+        try {
+            final List<Pending> unacked;
+            lock.lock();
+            try {
+                unacked = new ArrayList<>(pending.values());
+            } finally {
+                lock.unlock();
+            }
+            if (!unacked.isEmpty())
+                log.debug("Re-sending {} SMDs to {}", unacked.size(), address);
+            for (Pending p : unacked)
+                write(ch, p.frame.duplicate());
+            if (running)
+                channel = ch;
+            else
+                closeQuietly(ch);
+        } catch (IOException writeFailure) {
+            log.warn("Lost connection to {} : {}", address, writeFailure.getMessage());
+            closeQuietly(ch);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel, registering the write so the watchdog can end it when it takes too long. Must
+     * be called while holding the write lock.
+     */
+    private void write(final SocketChannel ch, final ByteBuffer buffer) throws IOException {
+        writeStart = System.nanoTime();
+        writingTo = ch;
+        try {
+            StreamProtocol.writeFully(ch, buffer);
+        } finally {
+            writingTo = null;
+        }
+    }
+
+    /**
+     * Main loop of the watchdog, which fails the frames that are not acknowledged in time and closes the connection
+     * when a write is blocked because the back-end does not read.
+     */
+    private void watch() {
+        final long interval = Math.max(MIN_WATCH_INTERVAL, TimeUnit.NANOSECONDS.toMillis(ackTimeout) / 10);
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException interrupted) {
+                // Closed
+                return;
+            }
+            final long now = System.nanoTime();
+            final SocketChannel ch = writingTo;
+            if (ch != null && now - writeStart > ackTimeout) {
+                log.warn("Writing to {} blocked for more than {} ms, closing the connection", address,
+                         TimeUnit.NANOSECONDS.toMillis(ackTimeout));
+                // Ends the blocked write, the connection is re-established by the connector
+                closeQuietly(ch);
+            }
+            expire(now);
+        }
+    }
+
+    /**
+     * Fails the frames that were sent longer than the acknowledgement timeout ago.
+     *
+     * @param now   The current time in nanoseconds
+     */
+    private void expire(final long now) {
+        final List<Pending> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            // The frames are kept in the order they were sent, so only the oldest ones need to be checked
+            final Iterator<Pending> frames = pending.values().iterator();
+            while (frames.hasNext()) {
+                final Pending p = frames.next();
+                if (now - p.sent <= ackTimeout)
+                    break;
+                frames.remove();
+                expired.add(p);
+            }
+            if (!expired.isEmpty() && pending.isEmpty())
+                drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (expired.isEmpty())
+            return;
+        capacity.release(expired.size());
+        log.warn("{} SMDs sent to {} were not acknowledged within {} ms", expired.size(), address,
+                 TimeUnit.NANOSECONDS.toMillis(ackTimeout));
+        for (Pending p : expired)
+            try {
+                p.callback.failed(new MessageDeliveryException("The SMD was not acknowledged in time"));
+            } catch (RuntimeException callbackFailure) {
+                log.error("Error in reporting the failed delivery of an SMD : {}", callbackFailure.toString());
+            }
+    }
+
+    /**
+     * Reads the acknowledgements from the connection until it is closed and reports them to the callbacks.
+     */
+    private void readAcknowledgements(final SocketChannel ch) {
+        final ByteBuffer ack = ByteBuffer.allocate(StreamProtocol.ACK_SIZE);
+        try {
+            while (StreamProtocol.readFully(ch, ack)) {
+                ack.flip();
+                final long seq = ack.getLong();
+                final byte status = ack.get();
+                ack.clear();
+                final Pending p = complete(seq);
+                if (p == null)
+                    // Already acknowledged on a previous connection abandoned or expired
+                    continue;
+                if (status == StreamProtocol.STATUS_ACCEPTED)
+                    p.callback.success();
+                else
+                    p.callback.failed(new MessageDeliveryException("The back-end rejected the SMD"));
+            }
+            if (running)
+                log.warn("Connection closed by {}", address);
+        } catch (IOException readFailure) {
+            if (running)
+                log.warn("Lost connection to {} : {}", address, readFailure.getMessage());
+        } finally {
+            closeQuietly(ch);
+        }
+    }
+
+    /**
+     * Removes the frame from the frames waiting for acknowledgement.
+     */
+    private Pending complete(final long seq) {
+        final Pending p;
+        lock.lock();
+        try {
+            p = pending.remove(seq);
+            if (pending.isEmpty())
+                drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (p != null)
+            capacity.release();
+        return p;
+    }
+
+    private static void closeQuietly(final SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+            // Nothing to do
+        }
+    }
+}
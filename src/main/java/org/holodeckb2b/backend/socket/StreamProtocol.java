@@ -0,0 +1,171 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Defines the protocol used by the {@link SocketOperation} to stream the SMDs to the back-end and contains the helper
+ * methods shared by the delivery method and the {@link SMDReceiver}.
+ * <p>When the connection is established the delivery method sends a hello consisting of the magic number (4 bytes) and
+ * the session id (8 bytes). The session id identifies the delivery method instance and stays the same when the
+ * connection is re-established. Each SMD is then sent as a frame consisting of:<ol>
+ * <li>the length of the rest of the frame (4 bytes)</li>
+ * <li>the sequence number of the frame, starting at 1 for each session (8 bytes)</li>
+ * <li>the type of Signal, 1 for a Receipt and 2 for an Error (1 byte)</li>
+ * <li>the format of the SMD, 1 for XML, 2 for JSON and 3 for CBOR (1 byte)</li>
+ * <li>the SMD</li></ol>
+ * The back-end acknowledges each frame by sending its sequence number (8 bytes) and a status (1 byte), which is 0 when
+ * the SMD was accepted and 1 when it was rejected. Frames can be sent before the previous ones are acknowledged. When
+ * the connection is lost the frames that were not acknowledged are sent again on the new connection, using the same
+ * sequence numbers, so the back-end must ignore frames with a sequence number it already processed in the session.
+ * All numbers are written in big-endian byte order.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+final class StreamProtocol {
+
+    /**
+     * Magic number sent at the start of the connection, the ASCII characters "HBS1"
+     */
+    static final int MAGIC = 0x48425331;
+    /**
+     * Size of the hello message
+     */
+    static final int HELLO_SIZE = 12;
+    /**
+     * Size of the frame header, i.e. the length, sequence number, type and format fields
+     */
+    static final int FRAME_HEADER_SIZE = 14;
+    /**
+     * Size of an acknowledgement
+     */
+    static final int ACK_SIZE = 9;
+    /**
+     * Maximum size of a frame accepted by the receiver
+     */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    static final byte TYPE_RECEIPT = 1;
+    static final byte TYPE_ERROR = 2;
+
+    static final byte FORMAT_XML = 1;
+    static final byte FORMAT_JSON = 2;
+    static final byte FORMAT_CBOR = 3;
+
+    static final byte STATUS_ACCEPTED = 0;
+    static final byte STATUS_REJECTED = 1;
+
+    private StreamProtocol() {}
+
+    /**
+     * Parses the address of the back-end. The address is either <code>unix:<i>path</i></code> for a Unix domain socket
+     * or <code>tcp:<i>[host:]port</i></code> for a TCP connection. When no host is specified the loopback address is
+     * used.
+     *
+     * @param address   The address to parse
+     * @return          The socket address
+     * @throws IllegalArgumentException When the address is invalid or Unix domain sockets are used on a Java version
+     *                                  that does not support them
+     */
+    static SocketAddress parseAddress(final String address) {
+        if (address.startsWith("unix:")) {
+            if (address.length() == 5)
+                throw new IllegalArgumentException("No path specified");
+            try {
+                // Use reflection so the delivery method can still be used with TCP on Java versions before 16
+                return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+                                            .invoke(null, address.substring(5));
+            } catch (ReflectiveOperationException notSupported) {
+                throw new IllegalArgumentException("Unix domain sockets require Java 16 or later");
+            }
+        }
+        final String hostPort = address.startsWith("tcp:") ? address.substring(4) : address;
+        final int sep = hostPort.lastIndexOf(':');
+        final int port;
+        try {
+            port = Integer.parseInt(hostPort.substring(sep + 1));
+        } catch (NumberFormatException noPort) {
+            throw new IllegalArgumentException("Invalid port number");
+        }
+        if (port < 1 || port > 0xffff)
+            throw new IllegalArgumentException("Invalid port number");
+        return sep <= 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                        : new InetSocketAddress(hostPort.substring(0, sep), port);
+    }
+
+    /**
+     * Opens a server channel listening on the given address.
+     *
+     * @param address   The address to listen on
+     * @return          The server channel
+     * @throws IOException  When the channel could not be opened
+     */
+    static ServerSocketChannel openServerChannel(final SocketAddress address) throws IOException {
+        if (address instanceof InetSocketAddress)
+            return ServerSocketChannel.open().bind(address);
+        final ServerSocketChannel server;
+        try {
+            final ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                                                                    .invoke(null, unix);
+        } catch (ReflectiveOperationException | IllegalArgumentException notSupported) {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        }
+        return server.bind(address);
+    }
+
+    /**
+     * Writes the complete buffer to the channel.
+     *
+     * @param channel   The channel to write to
+     * @param buffer    The buffer to write
+     * @throws IOException  When writing fails
+     */
+    static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Reads from the channel until the buffer is full.
+     *
+     * @param channel   The channel to read from
+     * @param buffer    The buffer to fill
+     * @return          <code>true</code> when the buffer was filled, <code>false</code> when the channel was closed
+     *                  by the other side before any data was read
+     * @throws IOException  When reading fails or the channel was closed when the buffer was only partially filled
+     */
+    static boolean readFully(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == start)
+                    return false;
+                throw new EOFException("Connection closed in the middle of a message");
+            }
+        return true;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is the {@link ISMDSerializer} that writes the signal meta-data in the binary CBOR format (RFC 8949). The document
+ * has the same structure as the one created by the {@link JSONSerializer}, i.e. a map with the <i>messageInfo</i> map
+ * and either a <i>receipt</i> map or an <i>errors</i> array. All items are encoded with definite length. The time
+ * stamp is encoded as standard date/time string (tag 0) and the content of a Receipt is included as byte string
+ * containing the UTF-8 encoded XML.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class CBORSerializer implements ISMDSerializer<ISignalMessage> {
+
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+
+    /**
+     * Tag for a standard date/time string
+     */
+    private static final int TAG_DATE_TIME = 0;
+
+    /**
+     * Growable buffer in which the document is created before it is written to the output stream. As the document is
+     * small this is cheaper than writing each data item to the stream.
+     */
+    private static final class Buffer {
+        byte[]  data = new byte[512];
+        int     size;
+
+        void put(final int b) {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        void put(final byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void ensure(final int n) {
+            if (size + n > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+        }
+    }
+
+    /**
+     * Indicates whether the complete content of a Receipt should be included
+     */
+    private final boolean includeReceiptContent;
+
+    /**
+     * Creates a new serializer.
+     *
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included in the SMD
+     */
+    public CBORSerializer(final boolean includeReceiptContent) {
+        this.includeReceiptContent = includeReceiptContent;
+    }
+
+    /**
+     * As the SMD is written directly from the Signal this method only returns the given Signal.
+     */
+    @Override
+    public ISignalMessage createSMD(final ISignalMessage signal) throws IOException {
+        if (!(signal instanceof IReceipt) && !(signal instanceof IErrorMessage))
+            throw new IOException("Unsupported Signal type: " + signal.getClass().getSimpleName());
+        return signal;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".smd.cbor";
+    }
+
+    @Override
+    public void write(final ISignalMessage signal, final OutputStream os) throws IOException {
+        final Buffer out = new Buffer();
+        writeHead(out, MAJOR_MAP, 2);
+
+        writeText(out, "messageInfo");
+        final String timestamp = SMDFactory.formatDate(signal.getTimestamp());
+        writeHead(out, MAJOR_MAP, count(timestamp, signal.getMessageId(), signal.getRefToMessageId()));
+        if (timestamp != null) {
+            writeText(out, "timestamp");
+            writeHead(out, MAJOR_TAG, TAG_DATE_TIME);
+            writeText(out, timestamp);
+        }
+        writeProperty(out, "messageId", signal.getMessageId());
+        writeProperty(out, "refToMessageId", signal.getRefToMessageId());
+
+        if (signal instanceof IReceipt) {
+            writeText(out, "receipt");
+            final byte[] content = StAXSerializer.serializeContent(((IReceipt) signal).getContent(),
+                                                                   includeReceiptContent);
+            if (content.length > 0) {
+                writeHead(out, MAJOR_MAP, 1);
+                writeText(out, "content");
+                writeHead(out, MAJOR_BYTES, content.length);
+                out.put(content);
+            } else
+                writeHead(out, MAJOR_MAP, 0);
+        } else {
+            writeText(out, "errors");
+            final Collection<IEbmsError> errors = ((IErrorMessage) signal).getErrors();
+            writeHead(out, MAJOR_ARRAY, errors.size());
+            for (IEbmsError e : errors)
+                writeError(out, e);
+        }
+        os.write(out.data, 0, out.size);
+    }
+
+    /**
+     * Writes the map for an error.
+     *
+     * @param out   The buffer to write to
+     * @param error The error to write
+     */
+    private static void writeError(final Buffer out, final IEbmsError error) {
+        final String severity = error.getSeverity() != null ? error.getSeverity().name() : null;
+        final IDescription eDescr = error.getDescription();
+        final boolean hasDescription = eDescr != null && eDescr.getText() != null && !eDescr.getText().isEmpty();
+
+        writeHead(out, MAJOR_MAP, count(error.getCategory(), error.getErrorCode(), error.getOrigin(), severity,
+                                        error.getMessage(), error.getErrorDetail()) + (hasDescription ? 1 : 0));
+        writeProperty(out, "category", error.getCategory());
+        writeProperty(out, "errorCode", error.getErrorCode());
+        writeProperty(out, "origin", error.getOrigin());
+        writeProperty(out, "severity", severity);
+        writeProperty(out, "shortDescription", error.getMessage());
+        if (hasDescription) {
+            writeText(out, "description");
+            writeHead(out, MAJOR_MAP, count(eDescr.getLanguage(), eDescr.getText()));
+            writeProperty(out, "lang", eDescr.getLanguage());
+            writeProperty(out, "text", eDescr.getText());
+        }
+        writeProperty(out, "errorDetail", error.getErrorDetail());
+    }
+
+    /**
+     * Helper method to count the number of the given values that are not <code>null</code>.
+     */
+    private static int count(final String... values) {
+        int n = 0;
+        for (String v : values)
+            if (v != null)
+                n++;
+        return n;
+    }
+
+    /**
+     * Helper method to write a text property if it has a value.
+     */
+    private static void writeProperty(final Buffer out, final String name, final String value) {
+        if (value != null) {
+            writeText(out, name);
+            writeText(out, value);
+        }
+    }
+
+    /**
+     * Writes a text string. Strings containing only ASCII characters, which is the common case, are copied directly
+     * without encoding them first.
+     */
+    private static void writeText(final Buffer out, final String value) {
+        final int len = value.length();
+        int i = 0;
+        while (i < len && value.charAt(i) < 0x80)
+            i++;
+        if (i < len) {
+            final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeHead(out, MAJOR_TEXT, utf8.length);
+            out.put(utf8);
+        } else {
+            writeHead(out, MAJOR_TEXT, len);
+            out.ensure(len);
+            for (i = 0; i < len; i++)
+                out.data[out.size++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes the initial byte(s) of a data item with the given major type and argument, using the shortest encoding of
+     * the argument.
+     */
+    private static void writeHead(final Buffer out, final int majorType, final long argument) {
+        final int mt = majorType << 5;
+        if (argument < 24)
+            out.put(mt | (int) argument);
+        else if (argument < 0x100) {
+            out.put(mt | 24);
+            out.put((int) argument);
+        } else if (argument < 0x10000) {
+            out.put(mt | 25);
+            out.put((int) (argument >> 8));
+            out.put((int) argument);
+        } else if (argument < 0x100000000L) {
+            out.put(mt | 26);
+            for (int shift = 24; shift >= 0; shift -= 8)
+                out.put((int) (argument >> shift));
+        } else {
+            out.put(mt | 27);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.put((int) (argument >> shift));
+        }
+    }
+}
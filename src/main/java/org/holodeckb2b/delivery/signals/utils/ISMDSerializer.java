@@ -0,0 +1,59 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Defines the interface of the components that write the signal meta-data document for a Signal message unit.
+ * <p>Writing the document is done in two steps. First the SMD is created from the Signal which results in the
+ * serializer specific representation of the document. This representation is then written to the output stream.
+ * Implementations must be thread-safe.
+ *
+ * @param <T>   The type of the intermediate representation of the SMD used by the serializer
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public interface ISMDSerializer<T> {
+
+    /**
+     * Creates the serializer specific representation of the SMD for the given Signal.
+     *
+     * @param signal    The Signal message unit to create the SMD for
+     * @return          The representation of the SMD that can be passed to {@link #write(Object, OutputStream)}
+     * @throws IOException  When the SMD can not be created for the given Signal
+     */
+    T createSMD(ISignalMessage signal) throws IOException;
+
+    /**
+     * Writes the given SMD to the output stream. The output stream is not closed.
+     *
+     * @param smd   The SMD as created by {@link #createSMD(ISignalMessage)}
+     * @param out   The output stream to write the document to
+     * @throws IOException  When the SMD could not be written
+     */
+    void write(T smd, OutputStream out) throws IOException;
+
+    /**
+     * Gets the extension to use for the files containing the SMDs written by this serializer.
+     *
+     * @return  The file name extension, including the leading '.'. Default is <code>".smd.xml"</code>
+     */
+    default String getFileExtension() {
+        return ".smd.xml";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.holodeckb2b.delivery.signals.smd.ObjectFactory;
+import org.holodeckb2b.delivery.signals.smd.SignalMessage;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is the {@link ISMDSerializer} that uses JAXB to write the signal meta-data document. The SMD is first created as
+ * {@link SignalMessage} object using the {@link SMDFactory} and then marshalled using a marshaller from a {@link
+ * MarshallerPool}.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class JAXBSerializer implements ISMDSerializer<SignalMessage> {
+
+    private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+    /**
+     * Indicates whether the complete content of a Receipt should be included
+     */
+    private final boolean includeReceiptContent;
+
+    /**
+     * The pool of marshallers to use
+     */
+    private final MarshallerPool marshallers;
+
+    /**
+     * Creates a new serializer.
+     *
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included in the SMD
+     * @param marshallers           The pool of marshallers to use
+     */
+    public JAXBSerializer(final boolean includeReceiptContent, final MarshallerPool marshallers) {
+        this.includeReceiptContent = includeReceiptContent;
+        this.marshallers = marshallers;
+    }
+
+    @Override
+    public SignalMessage createSMD(final ISignalMessage signal) throws IOException {
+        final SignalMessage smd = signal instanceof IReceipt ?
+                                                        SMDFactory.createSMD((IReceipt) signal, includeReceiptContent)
+                                                      : SMDFactory.createSMD((IErrorMessage) signal);
+        if (smd == null)
+            throw new IOException("Could not create meta-data document for Signal message");
+        return smd;
+    }
+
+    @Override
+    public void write(final SignalMessage smd, final OutputStream out) throws IOException {
+        Marshaller jbMarshaller = null;
+        try {
+            jbMarshaller = marshallers.borrow();
+            jbMarshaller.marshal(OBJECT_FACTORY.createSignalMessage(smd), out);
+        } catch (JAXBException e) {
+            throw new IOException("Could not marshal the SMD! Details: " + e.getErrorCode() + " - " + e.getMessage(),
+                                  e);
+        } finally {
+            marshallers.release(jbMarshaller);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is the {@link ISMDSerializer} that writes the signal meta-data as a compact JSON document. The document contains the
+ * same information as the XML document, using the same names but starting with a lower case letter:
+ * <pre>
+ * {"messageInfo":{"timestamp":"...","messageId":"...","refToMessageId":"..."},
+ *  "receipt":{"content":"..."}}
+ * </pre>
+ * for a Receipt, where the content is the XML of the Receipt content as string, and
+ * <pre>
+ * {"messageInfo":{...},
+ *  "errors":[{"category":"...","errorCode":"...","origin":"...","severity":"...","shortDescription":"...",
+ *             "description":{"lang":"...","text":"..."},"errorDetail":"..."}]}
+ * </pre>
+ * for an Error. Properties without value are not included. The document is written without any whitespace.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class JSONSerializer implements ISMDSerializer<ISignalMessage> {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Indicates whether the complete content of a Receipt should be included
+     */
+    private final boolean includeReceiptContent;
+
+    /**
+     * Creates a new serializer.
+     *
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included in the SMD
+     */
+    public JSONSerializer(final boolean includeReceiptContent) {
+        this.includeReceiptContent = includeReceiptContent;
+    }
+
+    /**
+     * As the SMD is written directly from the Signal this method only returns the given Signal.
+     */
+    @Override
+    public ISignalMessage createSMD(final ISignalMessage signal) throws IOException {
+        if (!(signal instanceof IReceipt) && !(signal instanceof IErrorMessage))
+            throw new IOException("Unsupported Signal type: " + signal.getClass().getSimpleName());
+        return signal;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".smd.json";
+    }
+
+    @Override
+    public void write(final ISignalMessage signal, final OutputStream out) throws IOException {
+        // The document is small, so it is created in memory and encoded in one go
+        final StringBuilder w = new StringBuilder(512);
+        w.append("{\"messageInfo\":{");
+        boolean first = writeProperty(w, true, "timestamp", SMDFactory.formatDate(signal.getTimestamp()));
+        first = writeProperty(w, first, "messageId", signal.getMessageId());
+        writeProperty(w, first, "refToMessageId", signal.getRefToMessageId());
+        w.append('}');
+        if (signal instanceof IReceipt) {
+            w.append(",\"receipt\":{");
+            final byte[] content = StAXSerializer.serializeContent(((IReceipt) signal).getContent(),
+                                                                   includeReceiptContent);
+            if (content.length > 0)
+                writeProperty(w, true, "content", new String(content, StandardCharsets.UTF_8));
+            w.append('}');
+        } else {
+            w.append(",\"errors\":[");
+            boolean firstError = true;
+            for (IEbmsError e : ((IErrorMessage) signal).getErrors()) {
+                if (!firstError)
+                    w.append(',');
+                writeError(w, e);
+                firstError = false;
+            }
+            w.append(']');
+        }
+        w.append('}');
+        out.write(w.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the JSON object for an error.
+     *
+     * @param w     The buffer to write to
+     * @param error The error to write
+     */
+    private static void writeError(final StringBuilder w, final IEbmsError error) {
+        w.append('{');
+        boolean first = writeProperty(w, true, "category", error.getCategory());
+        first = writeProperty(w, first, "errorCode", error.getErrorCode());
+        first = writeProperty(w, first, "origin", error.getOrigin());
+        first = writeProperty(w, first, "severity", error.getSeverity() != null ? error.getSeverity().name() : null);
+        first = writeProperty(w, first, "shortDescription", error.getMessage());
+        final IDescription eDescr = error.getDescription();
+        if (eDescr != null && eDescr.getText() != null && !eDescr.getText().isEmpty()) {
+            if (!first)
+                w.append(',');
+            w.append("\"description\":{");
+            writeProperty(w, writeProperty(w, true, "lang", eDescr.getLanguage()), "text", eDescr.getText());
+            w.append('}');
+            first = false;
+        }
+        writeProperty(w, first, "errorDetail", error.getErrorDetail());
+        w.append('}');
+    }
+
+    /**
+     * Helper method to write a string property if it has a value.
+     *
+     * @param w     The buffer to write to
+     * @param first Indicates whether this is the first property of the object
+     * @param name  The name of the property
+     * @param value The value of the property, may be <code>null</code>
+     * @return      <code>true</code> if no property has been written to the object yet, <code>false</code> otherwise
+     */
+    private static boolean writeProperty(final StringBuilder w, final boolean first, final String name,
+                                         final String value) {
+        if (value == null)
+            return first;
+        if (!first)
+            w.append(',');
+        w.append('"');
+        w.append(name);
+        w.append("\":");
+        writeString(w, value);
+        return false;
+    }
+
+    /**
+     * Writes the given value as JSON string, escaping the characters as required. The line and paragraph separators
+     * are escaped as well, so the document can also be used as JavaScript.
+     */
+    private static void writeString(final StringBuilder w, final String value) {
+        w.append('"');
+        final int len = value.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+                continue;
+            w.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+            case '"' :
+                w.append("\\\"");
+                break;
+            case '\\' :
+                w.append("\\\\");
+                break;
+            case '\n' :
+                w.append("\\n");
+                break;
+            case '\r' :
+                w.append("\\r");
+                break;
+            case '\t' :
+                w.append("\\t");
+                break;
+            default :
+                w.append("\\u");
+                w.append(HEX[(c >> 12) & 0xf]);
+                w.append(HEX[(c >> 8) & 0xf]);
+                w.append(HEX[(c >> 4) & 0xf]);
+                w.append(HEX[c & 0xf]);
+            }
+        }
+        w.append(value, start, len);
+        w.append('"');
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.holodeckb2b.delivery.signals.smd.SignalMessage;
+
+/**
+ * Is a bounded, thread-safe pool of JAXB {@link Marshaller}s for the signal meta-data documents.
+ * <p>As creating the {@link JAXBContext} is expensive it is created only once and shared by all pools. The marshallers
+ * created from it are not thread-safe and therefore are handed out to one thread at a time. When the pool is empty a
+ * new marshaller is created, so callers never have to wait for one. A returned marshaller is only kept when there is
+ * room left in the pool, which limits the number of idle marshallers to the configured size.
+ * <p>Note that the pool only bounds the number of marshallers that are retained. The number of marshallers in use at
+ * the same time is not limited by the pool, it equals the number of threads serialising an SMD concurrently, which is
+ * limited by the number of threads delivering Signals.
+ * <p>The <code>MarshallerPoolBenchmark</code> in the <code>benchmarks</code> project compares the pool with creating
+ * a new context or marshaller for each SMD.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class MarshallerPool {
+    /**
+     * The default number of idle marshallers kept in the pool
+     */
+    public static final int DEFAULT_SIZE = 8;
+
+    /**
+     * The shared JAXB context, lazily created on first use. A failure to create it is not remembered, so a later
+     * attempt can still succeed when the failure was caused by a temporary class loading problem.
+     */
+    private static volatile JAXBContext context;
+
+    /**
+     * The idle marshallers
+     */
+    private final BlockingQueue<Marshaller> pool;
+
+    /**
+     * Indicates whether the marshallers create formatted output
+     */
+    private final boolean formatted;
+
+    /**
+     * Creates a new pool that keeps at most {@link #DEFAULT_SIZE} idle marshallers.
+     */
+    public MarshallerPool() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a new pool that keeps at most the given number of idle marshallers.
+     *
+     * @param size  The maximum number of idle marshallers, must be at least 1
+     */
+    public MarshallerPool(final int size) {
+        this(size, true);
+    }
+
+    /**
+     * Creates a new pool that keeps at most the given number of idle marshallers, which create formatted output or
+     * not.
+     *
+     * @param size      The maximum number of idle marshallers, must be at least 1
+     * @param formatted Indicates whether the marshallers should create formatted output
+     */
+    public MarshallerPool(final int size, final boolean formatted) {
+        if (size < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        pool = new ArrayBlockingQueue<>(size);
+        this.formatted = formatted;
+    }
+
+    /**
+     * Gets the JAXB context for the signal meta-data documents that is shared by all pools.
+     *
+     * @return  The shared {@link JAXBContext}
+     * @throws JAXBException  When the context could not be created
+     */
+    public static JAXBContext getContext() throws JAXBException {
+        JAXBContext ctx = context;
+        if (ctx == null)
+            synchronized (MarshallerPool.class) {
+                ctx = context;
+                if (ctx == null)
+                    context = ctx = JAXBContext.newInstance(SignalMessage.class.getPackage().getName());
+            }
+        return ctx;
+    }
+
+    /**
+     * Gets a marshaller from the pool or creates a new one when no idle marshaller is available, so the number of
+     * borrowed marshallers is not bounded by the size of the pool. The marshaller is configured to create formatted
+     * output, unless disabled for the pool. It must be returned to the pool using
+     * {@link #release(Marshaller)} when the caller is done with it.
+     *
+     * @return  A marshaller for exclusive use by the caller
+     * @throws JAXBException  When a new marshaller could not be created
+     */
+    public Marshaller borrow() throws JAXBException {
+        Marshaller m = pool.poll();
+        if (m == null) {
+            m = getContext().createMarshaller();
+            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formatted);
+        }
+        return m;
+    }
+
+    /**
+     * Returns a marshaller to the pool. When the pool is already full the marshaller is discarded.
+     *
+     * @param m  The marshaller to return
+     */
+    public void release(final Marshaller m) {
+        if (m != null)
+            pool.offer(m);
+    }
+}
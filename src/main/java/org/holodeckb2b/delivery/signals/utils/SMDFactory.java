@@ -13,6 +13,11 @@
 */ 
 package org.holodeckb2b.delivery.signals.utils;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
@@ -48,6 +53,42 @@ import org.w3c.dom.Element;
  * @author Sander Fieten <sander at holodeck-b2b.org>
  */
 public class SMDFactory {
+
+    /**
+     * The document builder used for creating the DOM representation of the Receipt content. As creating the builder
+     * is expensive and builders are not thread-safe it is cached per thread.
+     */
+    private static final ThreadLocal<DocumentBuilder> DOC_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException ex) {
+            return null;
+        }
+    });
+
+    /**
+     * The start of the Gregorian calendar in milliseconds since the epoch. Before it {@link GregorianCalendar} uses the
+     * Julian calendar, while <code>java.time</code> always uses the Gregorian calendar.
+     */
+    private static final long GREGORIAN_CUTOVER = new GregorianCalendar().getGregorianChange().getTime();
+
+    /**
+     * Holder of the shared {@link DatatypeFactory}, so it is only looked up on first use. As looking up the factory is
+     * expensive it is shared by all threads. The factory does not keep any state when creating calendars, so this is
+     * safe.
+     */
+    private static final class DatatypeFactoryHolder {
+        static final DatatypeFactory FACTORY;
+        static {
+            DatatypeFactory f;
+            try {
+                f = DatatypeFactory.newInstance();
+            } catch (DatatypeConfigurationException ex) {
+                f = null;
+            }
+            FACTORY = f;
+        }
+    }
     
     /**
      * Creates a new {@link SignalMessage} object based on the given Holodeck B2B Signal message. When the signal is a
@@ -132,6 +173,9 @@ public class SMDFactory {
     
     /**
      * Creates a new {@link SignalMessage} object based on the given Holodeck B2B Receipt signal message.
+     * <p>NOTE: When the complete content is included it is copied into a DOM representation, unless the Axiom
+     * elements already implement the DOM API. For large Receipts the {@link StAXSerializer} should be preferred as it
+     * streams the content directly from Axiom.
      * 
      * @param receipt               The meta-data about the signal message unit as a {@link IReceipt}
      * @param includeFullContent    Indicates whether the complete content from the Receipt as in the ebMS message
@@ -153,19 +197,16 @@ public class SMDFactory {
         List<Object>    content = rcpt.getAny();        
         List<OMElement> rcptContent = receipt.getContent();
         
-        DocumentBuilder builder;
-        try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch (ParserConfigurationException ex) {
+        DocumentBuilder builder = DOC_BUILDER.get();
+        if (builder == null)
             // We can not create a valid SMD if we can not create an element to contain in the Receipt element
             return null;
-        }
         Document doc = builder.newDocument();
         
         if (includeFullContent) {
-            // Copy all child elements of the Receipt
+            // Copy all child elements of the Receipt, unless the Axiom implementation already provides a DOM 
             for (OMElement e : rcptContent)
-                content.add(convertElement(e, doc, true));
+                content.add(e instanceof Element ? (Element) e : convertElement(e, doc, true));
         } else {
             // Only the first child element of the Receipt needs to be included
             content.add(convertElement(rcptContent.get(0), doc, false));            
@@ -184,13 +225,91 @@ public class SMDFactory {
      * @param date  The date to convert as {@link Date}
      * @return      The data as {@link XMLGregorianCalendar} if it could be converted, <code>null</code> otherwise
      */
-    private static XMLGregorianCalendar convertDate(final Date date) {
-        try {
-            GregorianCalendar c = new GregorianCalendar();
-            c.setTime(date);
-            return DatatypeFactory.newInstance().newXMLGregorianCalendar(c);
-        } catch (DatatypeConfigurationException ex) {
+    static XMLGregorianCalendar convertDate(final Date date) {
+        final DatatypeFactory factory = DatatypeFactoryHolder.FACTORY;
+        if (factory == null || date == null)
+            return null;
+        final ZonedDateTime t = date.toInstant().atZone(ZoneId.systemDefault());
+        if (useCalendar(date, t.getYear(), t.getOffset()))
+            return convertWithCalendar(factory, date);
+        return factory.newXMLGregorianCalendar(t.getYear(), t.getMonthValue(), t.getDayOfMonth(), t.getHour(),
+                                               t.getMinute(), t.getSecond(), t.getNano() / 1000000,
+                                               t.getOffset().getTotalSeconds() / 60);
+    }
+
+    /**
+     * Helper method to convert a {@link Date} object directly to its <code>xs:dateTime</code> lexical representation,
+     * i.e. without creating a {@link XMLGregorianCalendar} first. The result is the same as
+     * <code>convertDate(date).toXMLFormat()</code>. Dates that can not be written directly, see {@link
+     * #useCalendar(Date, int, ZoneOffset)}, are still formatted using the calendar.
+     *
+     * @param date  The date to convert as {@link Date}
+     * @return      The date as <code>xs:dateTime</code> string, <code>null</code> if no date is given
+     * @since 2.1.0
+     */
+    static String formatDate(final Date date) {
+        if (date == null)
             return null;
+        final Instant instant = date.toInstant();
+        final ZoneOffset offset = ZoneId.systemDefault().getRules().getOffset(instant);
+        final LocalDateTime t = LocalDateTime.ofEpochSecond(instant.getEpochSecond(), instant.getNano(), offset);
+        if (useCalendar(date, t.getYear(), offset)) {
+            final DatatypeFactory factory = DatatypeFactoryHolder.FACTORY;
+            return factory != null ? convertWithCalendar(factory, date).toXMLFormat() : null;
+        }
+
+        final int offsetSecs = offset.getTotalSeconds();
+        final char[] buf = new char[offsetSecs == 0 ? 24 : 29];
+        appendDigits(buf, 0, t.getYear(), 4);
+        buf[4] = '-';
+        appendDigits(buf, 5, t.getMonthValue(), 2);
+        buf[7] = '-';
+        appendDigits(buf, 8, t.getDayOfMonth(), 2);
+        buf[10] = 'T';
+        appendDigits(buf, 11, t.getHour(), 2);
+        buf[13] = ':';
+        appendDigits(buf, 14, t.getMinute(), 2);
+        buf[16] = ':';
+        appendDigits(buf, 17, t.getSecond(), 2);
+        buf[19] = '.';
+        appendDigits(buf, 20, t.getNano() / 1000000, 3);
+        if (offsetSecs == 0)
+            buf[23] = 'Z';
+        else {
+            final int offsetMins = Math.abs(offsetSecs) / 60;
+            buf[23] = offsetSecs < 0 ? '-' : '+';
+            appendDigits(buf, 24, offsetMins / 60, 2);
+            buf[26] = ':';
+            appendDigits(buf, 27, offsetMins % 60, 2);
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Helper method to check whether the given date must be converted using a {@link GregorianCalendar}, which is the
+     * case when it is before the start of the Gregorian calendar, its year has more than four digits or the offset of
+     * the time zone contains seconds.
+     */
+    private static boolean useCalendar(final Date date, final int year, final ZoneOffset offset) {
+        return date.getTime() < GREGORIAN_CUTOVER || year > 9999 || offset.getTotalSeconds() % 60 != 0;
+    }
+
+    /**
+     * Helper method to convert the given date to a {@link XMLGregorianCalendar} using a {@link GregorianCalendar}.
+     */
+    private static XMLGregorianCalendar convertWithCalendar(final DatatypeFactory factory, final Date date) {
+        final GregorianCalendar c = new GregorianCalendar();
+        c.setTime(date);
+        return factory.newXMLGregorianCalendar(c);
+    }
+
+    /**
+     * Helper method to write the given value as fixed number of decimal digits into the buffer.
+     */
+    private static void appendDigits(final char[] buf, final int pos, int value, final int digits) {
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
         }
     }
     
@@ -0,0 +1,73 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.util.Map;
+
+import org.holodeckb2b.commons.util.Utils;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+
+/**
+ * Contains the helper methods used by the delivery methods to read their parameters from the settings they are
+ * initialised with. Invalid values are reported as configuration error.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class Settings {
+
+    private Settings() {}
+
+    /**
+     * Gets the value of a parameter.
+     *
+     * @param settings  The settings of the delivery method, may be <code>null</code>
+     * @param name      The name of the parameter
+     * @return          The configured value, or <code>null</code> when not specified
+     * @throws MessageDeliveryException When the configured value is not a string
+     */
+    public static String get(final Map<String, ?> settings, final String name) throws MessageDeliveryException {
+        final Object value = settings != null ? settings.get(name) : null;
+        if (value == null || value instanceof String)
+            return (String) value;
+        else
+            throw new MessageDeliveryException("Configuration error! Invalid value specified for " + name);
+    }
+
+    /**
+     * Parses an integer parameter.
+     *
+     * @param settings      The settings of the delivery method, may be <code>null</code>
+     * @param name          The name of the parameter
+     * @param defaultValue  The value to use when the parameter is not specified
+     * @param minValue      The minimum allowed value
+     * @return              The parsed value or the default when not specified
+     * @throws MessageDeliveryException When the configured value is not a valid integer or less than the minimum
+     */
+    public static int getInt(final Map<String, ?> settings, final String name, final int defaultValue,
+                             final int minValue) throws MessageDeliveryException {
+        final String value = get(settings, name);
+        if (Utils.isNullOrEmpty(value))
+            return defaultValue;
+        try {
+            final int i = Integer.parseInt(value.trim());
+            if (i >= minValue)
+                return i;
+        } catch (NumberFormatException invalid) {
+            // Handled below
+        }
+        throw new MessageDeliveryException("Configuration error! Invalid value specified for " + name + ": "
+                                            + value);
+    }
+}
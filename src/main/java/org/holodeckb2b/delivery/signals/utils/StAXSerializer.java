@@ -0,0 +1,324 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.axiom.om.OMAttribute;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+
+/**
+ * Is the {@link ISMDSerializer} that writes the signal meta-data document directly from the Holodeck B2B Signal
+ * message unit using a StAX {@link XMLStreamWriter}, i.e. without creating the JAXB object model first. The content of
+ * a Receipt is streamed directly from the Axiom object model into the output without conversion to a DOM.
+ * <p>The document has the same structure and formatting as the one created by the {@link JAXBSerializer}. For Errors
+ * the documents are identical, except that tabs and line breaks in attribute values are not written as character
+ * references. For Receipts the documents are equivalent XML, but the Receipt content is written as received from
+ * Axiom, i.e. it is not re-indented, comments are kept and its namespaces may be declared on other elements than in
+ * the document created by JAXB. Formatting can be turned off to create a smaller document without line breaks and
+ * indentation.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class StAXSerializer implements ISMDSerializer<ISignalMessage> {
+    /**
+     * The namespace URI of the SMD document
+     */
+    public static final String SMD_NS_URI = "http://holodeck-b2b.org/schemas/2015/08/smd";
+
+    private static final byte[] XML_DECLARATION =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final char[] INDENT = "\n                ".toCharArray();
+
+    /**
+     * The factory for the stream writers, which is thread-safe once configured
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * Indicates whether the complete content of a Receipt should be included
+     */
+    private final boolean includeReceiptContent;
+
+    /**
+     * Indicates whether the document should be formatted
+     */
+    private final boolean formatted;
+
+    /**
+     * Creates a new serializer that writes formatted documents.
+     *
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included in the SMD
+     */
+    public StAXSerializer(final boolean includeReceiptContent) {
+        this(includeReceiptContent, true);
+    }
+
+    /**
+     * Creates a new serializer.
+     *
+     * @param includeReceiptContent Indicates whether the complete content of a Receipt should be included in the SMD
+     * @param formatted             Indicates whether the document should be formatted using line breaks and
+     *                              indentation
+     */
+    public StAXSerializer(final boolean includeReceiptContent, final boolean formatted) {
+        this.includeReceiptContent = includeReceiptContent;
+        this.formatted = formatted;
+    }
+
+    /**
+     * As the SMD is written directly from the Signal this method only returns the given Signal.
+     */
+    @Override
+    public ISignalMessage createSMD(final ISignalMessage signal) throws IOException {
+        if (!(signal instanceof IReceipt) && !(signal instanceof IErrorMessage))
+            throw new IOException("Unsupported Signal type: " + signal.getClass().getSimpleName());
+        return signal;
+    }
+
+    @Override
+    public void write(final ISignalMessage signal, final OutputStream out) throws IOException {
+        // Without formatting there is no line break after the declaration, like in JAXB's output
+        out.write(XML_DECLARATION, 0, formatted ? XML_DECLARATION.length : XML_DECLARATION.length - 1);
+        XMLStreamWriter w = null;
+        try {
+            w = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            w.setDefaultNamespace(SMD_NS_URI);
+            w.writeStartElement("", "SignalMessage", SMD_NS_URI);
+            w.writeDefaultNamespace(SMD_NS_URI);
+
+            indent(w, 1);
+            w.writeStartElement(SMD_NS_URI, "MessageInfo");
+            writeTextElement(w, 2, "Timestamp", SMDFactory.formatDate(signal.getTimestamp()));
+            writeTextElement(w, 2, "MessageId", signal.getMessageId());
+            writeTextElement(w, 2, "RefToMessageId", signal.getRefToMessageId());
+            indent(w, 1);
+            w.writeEndElement();
+
+            if (signal instanceof IReceipt)
+                writeReceipt(w, (IReceipt) signal);
+            else
+                for (IEbmsError e : ((IErrorMessage) signal).getErrors())
+                    writeError(w, e);
+
+            indent(w, 0);
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.flush();
+            if (formatted)
+                out.write('\n');
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write the SMD! Details: " + e.getMessage(), e);
+        } finally {
+            if (w != null)
+                try {
+                    w.close();
+                } catch (XMLStreamException ignored) {
+                    // Closing the writer does not close the stream, so nothing to handle
+                }
+        }
+    }
+
+    /**
+     * Writes the <code>Receipt</code> element. The content of the Receipt is serialized directly by Axiom into the
+     * stream writer.
+     *
+     * @param w         The stream writer
+     * @param receipt   The Receipt signal
+     * @throws XMLStreamException When writing the element fails
+     */
+    private void writeReceipt(final XMLStreamWriter w, final IReceipt receipt) throws XMLStreamException {
+        indent(w, 1);
+        w.writeStartElement(SMD_NS_URI, "Receipt");
+        final List<OMElement> content = receipt.getContent();
+        if (includeReceiptContent) {
+            for (OMElement e : content) {
+                indent(w, 2);
+                e.serialize(w);
+            }
+        } else if (!content.isEmpty()) {
+            indent(w, 2);
+            writeShallowElement(w, content.get(0));
+        }
+        indent(w, 1);
+        w.writeEndElement();
+    }
+
+    /**
+     * Serializes the content of a Receipt to XML. Used by the serializers for other formats to embed the content.
+     *
+     * @param content           The content of the Receipt
+     * @param includeContent    Indicates whether the complete content should be included or only the first child
+     *                          element without its children
+     * @return                  The content as UTF-8 encoded XML fragment, empty when there is no content
+     * @throws IOException      When the content could not be serialized
+     */
+    static byte[] serializeContent(final List<OMElement> content, final boolean includeContent) throws IOException {
+        if (content == null || content.isEmpty())
+            return new byte[0];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(includeContent ? 4096 : 256);
+        XMLStreamWriter w = null;
+        try {
+            w = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            if (includeContent)
+                for (OMElement e : content)
+                    e.serialize(w);
+            else
+                writeShallowElement(w, content.get(0));
+            w.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not serialize the Receipt content! Details: " + e.getMessage(), e);
+        } finally {
+            if (w != null)
+                try {
+                    w.close();
+                } catch (XMLStreamException ignored) {
+                    // Closing the writer does not close the stream, so nothing to handle
+                }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the given Axiom element without its child nodes, i.e. only the element itself and its attributes.
+     *
+     * @param w     The stream writer
+     * @param e     The element to write
+     * @throws XMLStreamException When writing the element fails
+     */
+    private static void writeShallowElement(final XMLStreamWriter w, final OMElement e) throws XMLStreamException {
+        final String nsURI = e.getNamespaceURI();
+        final String prefix = e.getPrefix() == null ? "" : e.getPrefix();
+        w.writeEmptyElement(prefix, e.getLocalName(), nsURI == null ? "" : nsURI);
+        if (nsURI != null && !nsURI.isEmpty())
+            declareNamespace(w, prefix, nsURI);
+        else if (prefix.isEmpty() && SMD_NS_URI.equals(w.getNamespaceContext().getNamespaceURI("")))
+            // Undeclare the SMD namespace which is the default namespace of the parent
+            w.writeDefaultNamespace("");
+        @SuppressWarnings("unchecked")
+        final Iterator<OMAttribute> attrs = e.getAllAttributes();
+        while (attrs.hasNext()) {
+            final OMAttribute a = attrs.next();
+            final OMNamespace ns = a.getNamespace();
+            if (ns != null && !ns.getNamespaceURI().isEmpty()) {
+                declareNamespace(w, ns.getPrefix(), ns.getNamespaceURI());
+                w.writeAttribute(ns.getPrefix(), ns.getNamespaceURI(), a.getLocalName(), a.getAttributeValue());
+            } else
+                w.writeAttribute(a.getLocalName(), a.getAttributeValue());
+        }
+    }
+
+    /**
+     * Helper method to write a namespace declaration on the current element when the prefix is not yet bound to the
+     * given namespace URI.
+     */
+    private static void declareNamespace(final XMLStreamWriter w, final String prefix, final String nsURI)
+                                                                                        throws XMLStreamException {
+        if (XMLConstants.XML_NS_URI.equals(nsURI) || nsURI.equals(w.getNamespaceContext().getNamespaceURI(prefix)))
+            return;
+        if (prefix.isEmpty())
+            w.writeDefaultNamespace(nsURI);
+        else
+            w.writeNamespace(prefix, nsURI);
+    }
+
+    /**
+     * Writes an <code>Error</code> element.
+     *
+     * @param w     The stream writer
+     * @param error The error to write
+     * @throws XMLStreamException When writing the element fails
+     */
+    private void writeError(final XMLStreamWriter w, final IEbmsError error) throws XMLStreamException {
+        final IDescription eDescr = error.getDescription();
+        final boolean hasDescription = eDescr != null && eDescr.getText() != null && !eDescr.getText().isEmpty();
+        final String errorDetail = error.getErrorDetail();
+
+        indent(w, 1);
+        if (hasDescription || errorDetail != null)
+            w.writeStartElement(SMD_NS_URI, "Error");
+        else
+            w.writeEmptyElement(SMD_NS_URI, "Error");
+        writeAttribute(w, "category", error.getCategory());
+        writeAttribute(w, "errorCode", error.getErrorCode());
+        writeAttribute(w, "origin", error.getOrigin());
+        writeAttribute(w, "severity", error.getSeverity() != null ? error.getSeverity().name() : null);
+        writeAttribute(w, "shortDescription", error.getMessage());
+
+        if (hasDescription) {
+            indent(w, 2);
+            w.writeStartElement(SMD_NS_URI, "Description");
+            if (eDescr.getLanguage() != null)
+                w.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang", eDescr.getLanguage());
+            w.writeCharacters(eDescr.getText());
+            w.writeEndElement();
+        }
+        if (errorDetail != null)
+            writeTextElement(w, 2, "ErrorDetail", errorDetail);
+        if (hasDescription || errorDetail != null) {
+            indent(w, 1);
+            w.writeEndElement();
+        }
+    }
+
+    /**
+     * Helper method to write an element with only text content. When the text is <code>null</code> the element is
+     * not written.
+     */
+    private void writeTextElement(final XMLStreamWriter w, final int level, final String name, final String text)
+                                                                                        throws XMLStreamException {
+        if (text == null)
+            return;
+        indent(w, level);
+        w.writeStartElement(SMD_NS_URI, name);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
+    /**
+     * Helper method to write an attribute if it has a value.
+     */
+    private static void writeAttribute(final XMLStreamWriter w, final String name, final String value)
+                                                                                        throws XMLStreamException {
+        if (value != null)
+            w.writeAttribute(name, value);
+    }
+
+    /**
+     * Helper method to start a new line with the indentation for the given nesting level, using the same indentation
+     * as JAXB's formatted output. Does nothing when the document is not formatted.
+     */
+    private void indent(final XMLStreamWriter w, final int level) throws XMLStreamException {
+        if (formatted)
+            w.writeCharacters(INDENT, 0, 1 + 4 * level);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IMessageUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the {@link AsyncDeliveryPipeline} always reports the result of a delivery to the callback.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class AsyncDeliveryPipelineTest {
+
+    private AsyncDeliveryPipeline pipeline;
+
+    @AfterEach
+    public void stop() {
+        if (pipeline != null)
+            pipeline.shutdown(1000);
+    }
+
+    private static IMessageUnit signal(final String msgId) {
+        return TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    @Test
+    public void errorInDeliveryFailsCallback() throws Exception {
+        pipeline = new AsyncDeliveryPipeline("test", 1, 1, 100, m -> {
+            throw new AssertionError("Unexpected error");
+        }, new DeliveryStatistics());
+
+        final Result result = new Result();
+        pipeline.submit(signal("error-1"), result);
+        assertEquals("Unexpected error in delivery of Signal", result.awaitFailure().getMessage());
+
+        // The pipeline keeps working after the error
+        final Result next = new Result();
+        pipeline.submit(signal("error-2"), next);
+        assertNotNull(next.awaitFailure());
+        // The worker only leaves the delivery after completing the callback
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getInFlight() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void shutdownWhileWaitingForQueueFailsCallback() throws Exception {
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch second = new CountDownLatch(1);
+        pipeline = new AsyncDeliveryPipeline("test", 1, 1, 5000, m -> {
+            try {
+                (m.getMessageId().equals("queued-1") ? first : second).await();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }, new DeliveryStatistics());
+
+        // One Signal being delivered, one in the queue and one waiting for space in the queue
+        final Result delivering = new Result();
+        pipeline.submit(signal("queued-1"), delivering);
+        final Result queued = new Result();
+        pipeline.submit(signal("queued-2"), queued);
+        final Result waiting = new Result();
+        final Thread submitter = new Thread(() -> {
+            try {
+                pipeline.submit(signal("queued-3"), waiting);
+            } catch (MessageDeliveryException rejected) {
+                waiting.failed(rejected);
+            }
+        });
+        submitter.start();
+        while (submitter.getState() != Thread.State.TIMED_WAITING && submitter.isAlive())
+            Thread.sleep(5);
+
+        pipeline.shutdown(0);
+        // Makes space in the queue for the waiting Signal, while the queued one is blocked
+        first.countDown();
+        assertEquals("Pipeline is shut down", waiting.awaitFailure().getMessage());
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+
+        second.countDown();
+        delivering.awaitSuccess();
+        queued.awaitSuccess();
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    /**
+     * Records the result of a delivery
+     */
+    private static final class Result implements IDeliveryCallback {
+        private final CountDownLatch                            done = new CountDownLatch(1);
+        private final AtomicReference<MessageDeliveryException> failure = new AtomicReference<>();
+
+        @Override
+        public void success() {
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final MessageDeliveryException failure) {
+            this.failure.set(failure);
+            done.countDown();
+        }
+
+        void awaitSuccess() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS), "No result reported");
+            assertNull(failure.get());
+        }
+
+        MessageDeliveryException awaitFailure() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS), "No result reported");
+            assertNotNull(failure.get(), "Delivery did not fail");
+            return failure.get();
+        }
+    }
+}
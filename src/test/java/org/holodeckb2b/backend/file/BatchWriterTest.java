@@ -0,0 +1,227 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the handling of failures by the {@link BatchWriter}.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class BatchWriterTest {
+
+    @TempDir
+    Path dir;
+
+    private BatchWriter writer;
+
+    @AfterEach
+    public void shutdown() {
+        if (writer != null)
+            writer.shutdown(1000);
+    }
+
+    private static ISignalMessage signal(final String msgId) {
+        return TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    @Test
+    public void writesBatch() throws Exception {
+        writer = new BatchWriter(2, 10, 10, 100, this::create,
+                                 new DeliveryStatistics());
+        writer.deliver(signal("ok-1"));
+        assertTrue(Files.exists(dir.resolve("ok-1")));
+    }
+
+    @Test
+    public void runtimeExceptionFailsBatchOnly() throws Exception {
+        writer = new BatchWriter(1, 0, 10, 100, s -> {
+                    if (s.getMessageId().startsWith("npe"))
+                        throw new NullPointerException("serializer bug");
+                    return create(s);
+                }, new DeliveryStatistics());
+
+        final MessageDeliveryException failure = assertThrows(MessageDeliveryException.class,
+                                                              () -> writer.deliver(signal("npe-1")));
+        assertTrue(failure.getCause() instanceof NullPointerException);
+        // The writer must still be running
+        writer.deliver(signal("ok-1"));
+        assertTrue(Files.exists(dir.resolve("ok-1")));
+    }
+
+    @Test
+    public void failedBatchRemovesWrittenFiles() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        writer = new BatchWriter(2, 1000, 10, 100, s -> {
+                    if (s.getMessageId().startsWith("fail"))
+                        throw new IllegalStateException("write failed");
+                    return create(s);
+                }, new DeliveryStatistics());
+        final AtomicReference<MessageDeliveryException> result = new AtomicReference<>();
+        writer.submit(signal("ok-1"), callback(result, blocked));
+        assertThrows(MessageDeliveryException.class, () -> writer.deliver(signal("fail-1")));
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        assertTrue(result.get() != null, "Other Signal in batch must fail too");
+        assertTrue(!Files.exists(dir.resolve("ok-1")), "File of failed batch must be removed");
+    }
+
+    @Test
+    public void errorStopsWriterAndFailsWaitingSignals() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        writer = new BatchWriter(1, 0, 10, 100, s -> {
+                    writing.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new StackOverflowError();
+                }, new DeliveryStatistics());
+
+        final AtomicReference<MessageDeliveryException> first = new AtomicReference<>();
+        final CountDownLatch firstDone = new CountDownLatch(1);
+        writer.submit(signal("error-1"), callback(first, firstDone));
+        assertTrue(writing.await(1, TimeUnit.SECONDS));
+        // Queued while the first batch is being written
+        final AtomicReference<MessageDeliveryException> second = new AtomicReference<>();
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        writer.submit(signal("waiting-1"), callback(second, secondDone));
+        proceed.countDown();
+
+        assertTrue(firstDone.await(1, TimeUnit.SECONDS));
+        assertTrue(first.get().getCause() instanceof StackOverflowError);
+        assertTrue(secondDone.await(1, TimeUnit.SECONDS), "Waiting Signal must be failed");
+        assertTrue(second.get() != null);
+        assertEquals(0, writer.getPending());
+        // New Signals are rejected immediately instead of waiting forever
+        assertThrows(MessageDeliveryException.class, () -> writer.deliver(signal("new-1")));
+    }
+
+    @Test
+    public void failingCallbackDoesNotStopWriter() throws Exception {
+        writer = new BatchWriter(1, 0, 10, 100, this::create,
+                                 new DeliveryStatistics());
+        writer.submit(signal("ok-1"), new IDeliveryCallback() {
+            @Override
+            public void success() {
+                throw new IllegalStateException("callback bug");
+            }
+
+            @Override
+            public void failed(final MessageDeliveryException failure) {
+            }
+        });
+        writer.deliver(signal("ok-2"));
+        assertTrue(Files.exists(dir.resolve("ok-2")));
+    }
+
+    @Test
+    public void waitsForSignalBeingWritten() throws Exception {
+        writer = new BatchWriter(1, 0, 10, 100, 50, s -> {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return create(s);
+                }, new DeliveryStatistics());
+
+        // Takes longer than the maximum write time, but the file is written so the delivery must not fail
+        writer.deliver(signal("slow-1"));
+        assertTrue(Files.exists(dir.resolve("slow-1")));
+    }
+
+    @Test
+    public void timedOutSignalIsNotWritten() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final DeliveryStatistics statistics = new DeliveryStatistics();
+        writer = new BatchWriter(1, 0, 10, 100, 50, s -> {
+                    if (s.getMessageId().startsWith("blocking")) {
+                        writing.countDown();
+                        try {
+                            proceed.await();
+                        } catch (InterruptedException interrupted) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return create(s);
+                }, statistics);
+        final AtomicReference<MessageDeliveryException> first = new AtomicReference<>();
+        final CountDownLatch firstDone = new CountDownLatch(1);
+        writer.submit(signal("blocking-1"), callback(first, firstDone));
+        assertTrue(writing.await(1, TimeUnit.SECONDS));
+
+        // Waits behind the blocked batch, so it is taken out of the queue and fails
+        assertThrows(MessageDeliveryException.class, () -> writer.deliver(signal("waiting-1")));
+        assertEquals(0, writer.getPending());
+        proceed.countDown();
+        assertTrue(firstDone.await(1, TimeUnit.SECONDS));
+        assertNull(first.get());
+        writer.deliver(signal("ok-1"));
+
+        assertTrue(Files.exists(dir.resolve("blocking-1")));
+        assertTrue(!Files.exists(dir.resolve("waiting-1")), "File of failed delivery must not be written");
+        assertTrue(Files.exists(dir.resolve("ok-1")));
+    }
+
+    private Path create(final ISignalMessage signal) throws MessageDeliveryException {
+        try {
+            return Files.createFile(dir.resolve(signal.getMessageId()));
+        } catch (IOException writeFailure) {
+            throw new MessageDeliveryException("Could not create file", writeFailure);
+        }
+    }
+
+    private static IDeliveryCallback callback(final AtomicReference<MessageDeliveryException> result,
+                                              final CountDownLatch done) {
+        return new IDeliveryCallback() {
+            @Override
+            public void success() {
+                assertNull(result.get());
+                done.countDown();
+            }
+
+            @Override
+            public void failed(final MessageDeliveryException failure) {
+                result.set(failure);
+                done.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,162 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.holodeckb2b.delivery.signals.utils.CBORSerializer;
+import org.holodeckb2b.delivery.signals.utils.ISMDSerializer;
+import org.holodeckb2b.delivery.signals.utils.JSONSerializer;
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the {@link DeliveredSignalCache}.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class DeliveredSignalCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private static ISignalMessage signal(final String msgId, final String refToMsgId) {
+        return TestSignals.error(msgId, refToMsgId,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    @Test
+    public void reservationIsExclusive() throws Exception {
+        final DeliveredSignalCache cache = new DeliveredSignalCache(100, 60);
+        final ISignalMessage signal = signal("concurrent-1", null);
+        final AtomicInteger reserved = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                if (cache.reserve(signal) != null)
+                    reserved.incrementAndGet();
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, reserved.get());
+        assertEquals(7, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void releaseAllowsRedelivery() {
+        final DeliveredSignalCache cache = new DeliveredSignalCache(100, 60);
+        final ISignalMessage signal = signal("failed-1", "ref-1");
+        final DeliveredSignalCache.Entry reservation = cache.reserve(signal);
+        assertNotNull(reservation);
+        assertNull(cache.reserve(signal));
+        cache.release(reservation);
+        assertNotNull(cache.reserve(signal));
+        // A different reference is another Signal
+        assertNotNull(cache.reserve(signal("failed-1", "ref-2")));
+    }
+
+    @Test
+    public void failedDeliveriesDoNotGrowCache() {
+        final DeliveredSignalCache cache = new DeliveredSignalCache(10, 60);
+        for (int i = 0; i < 5; i++)
+            assertNotNull(cache.reserve(signal("delivered-" + i, null)));
+        for (int i = 0; i < 10000; i++) {
+            final DeliveredSignalCache.Entry reservation = cache.reserve(signal("retried-" + (i % 20), null));
+            assertNotNull(reservation);
+            cache.release(reservation);
+        }
+
+        assertEquals(5, cache.getSize());
+        assertEquals(5, cache.getQueueLength());
+        // The delivered Signals were not pushed out by the failed ones
+        for (int i = 0; i < 5; i++)
+            assertNull(cache.reserve(signal("delivered-" + i, null)));
+    }
+
+    @Test
+    public void oldestSignalsAreRemoved() {
+        final DeliveredSignalCache cache = new DeliveredSignalCache(2, 60);
+        assertNotNull(cache.reserve(signal("first", null)));
+        assertNotNull(cache.reserve(signal("second", null)));
+        assertNotNull(cache.reserve(signal("third", null)));
+        assertEquals(2, cache.getSize());
+        assertEquals(2, cache.getQueueLength());
+        assertNotNull(cache.reserve(signal("first", null)));
+        assertNull(cache.reserve(signal("third", null)));
+    }
+
+    @Test
+    public void loadReadsAllFormats() throws IOException {
+        final String longId = new String(new char[300]).replace('\0', 'x') + "@example.org";
+        final ISignalMessage[] signals = {
+            signal("xml-1", null), signal("json-\"quoted\" -é", "ref-1"), signal("cbor-é-" + longId, "ref-2"),
+            signal("json-gz-1", null), signal("cbor-gz-1", "ref-3"), signal("xml-gz-1", "ref-4")
+        };
+        write("xml-1.smd.xml", new StAXSerializer(false), signals[0], false);
+        write("json-1.smd.json", new JSONSerializer(false), signals[1], false);
+        write("cbor-1.smd.cbor", new CBORSerializer(false), signals[2], false);
+        write("json-gz-1.smd.json.gz", new JSONSerializer(false), signals[3], true);
+        write("cbor-gz-1.smd.cbor.gz", new CBORSerializer(false), signals[4], true);
+        Files.createDirectories(dir.resolve("sub"));
+        write("sub/xml-gz-1.smd.xml.gz", new StAXSerializer(false), signals[5], true);
+        // Not an SMD
+        Files.write(dir.resolve("other.json"), "[1, 2]".getBytes());
+
+        final DeliveredSignalCache cache = new DeliveredSignalCache(100, 60);
+        cache.load(dir, 1, ".gz");
+
+        assertEquals(signals.length, cache.getSize());
+        assertEquals(signals.length, cache.getQueueLength());
+        for (ISignalMessage s : signals)
+            assertNull(cache.reserve(s), s.getMessageId());
+    }
+
+    private <T> void write(final String name, final ISMDSerializer<T> serializer, final ISignalMessage signal,
+                           final boolean compress) throws IOException {
+        try (OutputStream os = compress ? new GZIPOutputStream(Files.newOutputStream(dir.resolve(name)))
+                                        : Files.newOutputStream(dir.resolve(name))) {
+            serializer.write(serializer.createSMD(signal), os);
+        }
+    }
+}
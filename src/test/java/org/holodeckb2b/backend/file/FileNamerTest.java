@@ -0,0 +1,97 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link FileNamer}.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class FileNamerTest {
+
+    private static final String[] MESSAGE_IDS = {
+        "simple-id.1@example.org", "with space/and\\slash:colon", "accented-éè-中文",
+        "pair-😀-end", "two-pairs😀𝐀", "lone-high-\ud83d", "lone-high-\ud83dx",
+        "\udc00lone-low", "low-high-\ude00\ud83d", ""
+    };
+
+    @Test
+    public void sanitizeIsSameAsBaseline() {
+        for (String msgId : MESSAGE_IDS)
+            assertEquals(msgId.replaceAll("[^a-zA-Z0-9.-]", "_"),
+                         FileNamer.sanitize(msgId, new StringBuilder()).toString(), msgId);
+    }
+
+    @Test
+    public void defaultPatternUsesMessageId() {
+        assertEquals(TestSignals.MESSAGE_ID.replaceAll("[^a-zA-Z0-9.-]", "_"),
+                     new FileNamer(null, "node").getName(signal()));
+    }
+
+    @Test
+    public void sequenceIsIncremented() {
+        final FileNamer namer = new FileNamer("{seq}", "node");
+        final long first = Long.parseUnsignedLong(namer.getName(signal()), 16);
+        assertEquals(first + 1, Long.parseUnsignedLong(namer.getName(signal()), 16));
+    }
+
+    @Test
+    public void sequenceStartsAtRandomValue() {
+        final ISignalMessage signal = signal();
+        assertNotEquals(new FileNamer("{nodeId}-{seq}", "node").getName(signal),
+                        new FileNamer("{nodeId}-{seq}", "node").getName(signal));
+    }
+
+    @Test
+    public void patternStartingWithDotIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new FileNamer(".{msgId}", "node"));
+        assertThrows(IllegalArgumentException.class, () -> new FileNamer(".", "node"));
+        assertEquals("smd.", new FileNamer("smd.", "node").getName(signal()));
+    }
+
+    @Test
+    public void missingMessageIdIsReplaced() {
+        for (String msgId : new String[] { null, "" }) {
+            final ISignalMessage signal = TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                                            TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", null,
+                                                                                  "Other", null, null, null));
+            assertEquals(FileNamer.NO_MSG_ID, new FileNamer(null, "node").getName(signal));
+            assertEquals(FileNamer.NO_MSG_ID + "-error", new FileNamer("{msgId}-{type}", "node").getName(signal));
+        }
+    }
+
+    @Test
+    public void nameIsNeverHidden() {
+        final ISignalMessage signal = TestSignals.error(".hidden", null,
+                                                        TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", null,
+                                                                              "Other", null, null, null));
+        assertEquals("_.hidden", new FileNamer(null, "node").getName(signal));
+        // A missing value of another placeholder results in an empty name
+        assertEquals("_", new FileNamer("{refToMsgId}", "node").getName(signal));
+    }
+
+    private static ISignalMessage signal() {
+        return TestSignals.error(TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", null, "Other", null, null,
+                                                       null));
+    }
+}
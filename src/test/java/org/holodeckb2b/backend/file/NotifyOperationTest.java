@@ -0,0 +1,137 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.holodeckb2b.delivery.signals.utils.StAXSerializer;
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the initialisation of the {@link NotifyOperation}, including the warm-up in the background.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class NotifyOperationTest {
+
+    @TempDir
+    Path dir;
+
+    private NotifyOperation deliveryMethod;
+
+    @AfterEach
+    public void shutdown() {
+        if (deliveryMethod != null)
+            deliveryMethod.shutdown();
+    }
+
+    private static ISignalMessage signal(final String msgId) {
+        return TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    private Map<String, String> settings(final Path target) {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("targetDirectory", target.toString());
+        settings.put("serializer", "stax");
+        settings.put("warmUp", "true");
+        return settings;
+    }
+
+    @Test
+    public void warmUpChecksDirectoryOnInit() throws IOException {
+        final Path notADirectory = Files.write(dir.resolve("file"), new byte[] { 1 });
+        deliveryMethod = new NotifyOperation();
+
+        final MessageDeliveryException failure = assertThrows(MessageDeliveryException.class,
+                                                              () -> deliveryMethod.init(settings(notADirectory)));
+        assertTrue(failure.getMessage().startsWith("Configuration error!"));
+    }
+
+    @Test
+    public void writeTimeoutRequiresAtomicWrites() throws Exception {
+        final Map<String, String> settings = settings(dir);
+        settings.put("writeTimeout", "1000");
+        deliveryMethod = new NotifyOperation();
+
+        final MessageDeliveryException failure = assertThrows(MessageDeliveryException.class,
+                                                              () -> deliveryMethod.init(settings));
+        assertTrue(failure.getMessage().startsWith("Configuration error!"));
+
+        settings.put("atomicWrites", "true");
+        deliveryMethod.init(settings);
+        deliveryMethod.deliver(signal("timed-1"));
+        assertEquals(1, countSMDs());
+    }
+
+    @Test
+    public void hiddenFileNamePatternIsRejected() {
+        final Map<String, String> settings = settings(dir);
+        settings.put("fileNamePattern", ".{msgId}");
+        deliveryMethod = new NotifyOperation();
+
+        final MessageDeliveryException failure = assertThrows(MessageDeliveryException.class,
+                                                              () -> deliveryMethod.init(settings));
+        assertTrue(failure.getMessage().startsWith("Configuration error! Invalid file name pattern specified"));
+    }
+
+    @Test
+    public void warmUpPreparesDirectoryBeforeDelivery() throws Exception {
+        final Path orphan = Files.write(dir.resolve(".signal.xml.1" + SMDFileWriter.TEMP_SUFFIX), new byte[] { 1 });
+        Files.setLastModifiedTime(orphan,
+                                  FileTime.fromMillis(System.currentTimeMillis() - SMDFileWriter.ORPHAN_AGE - 1000));
+        final ISignalMessage delivered = signal("delivered-1");
+        final StAXSerializer serializer = new StAXSerializer(false);
+        try (OutputStream os = Files.newOutputStream(dir.resolve("delivered-1.xml"))) {
+            serializer.write(serializer.createSMD(delivered), os);
+        }
+        final Map<String, String> settings = settings(dir);
+        settings.put("deduplicate", "true");
+        deliveryMethod = new NotifyOperation();
+        deliveryMethod.init(settings);
+
+        deliveryMethod.deliver(delivered);
+        deliveryMethod.deliver(signal("new-1"));
+
+        assertTrue(deliveryMethod.getStartupTime() >= 0);
+        assertFalse(Files.exists(orphan));
+        assertEquals(2, countSMDs());
+    }
+
+    private long countSMDs() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> !f.getFileName().toString().startsWith(".")).count();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the {@link SMDFileWriter}.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class SMDFileWriterTest {
+
+    private static final byte[] CONTENT = "<smd/>".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void atomicWriteDoesNotOverwrite() throws IOException {
+        final SMDFileWriter writer = new SMDFileWriter(true, SMDFileWriter.Durability.NONE, new DeliveryStatistics());
+        final Path existing = Files.write(dir.resolve("signal.xml"), new byte[] { 1 });
+
+        final Path file = writer.write(dir, "signal", ".xml", os -> os.write(CONTENT), SMDFileWriter.Durability.NONE,
+                                       false);
+
+        assertEquals(dir.resolve("signal-1.xml"), file);
+        assertArrayEquals(CONTENT, Files.readAllBytes(file));
+        assertArrayEquals(new byte[] { 1 }, Files.readAllBytes(existing));
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void serializerFailureRemovesFile() throws IOException {
+        for (boolean atomic : new boolean[] { true, false }) {
+            final SMDFileWriter writer = new SMDFileWriter(atomic, SMDFileWriter.Durability.NONE,
+                                                           new DeliveryStatistics());
+            final IllegalStateException bug = new IllegalStateException("serializer bug");
+            assertSame(bug, assertThrows(IllegalStateException.class,
+                                         () -> writer.write(dir, "signal", ".xml", os -> {
+                                                                 os.write(CONTENT);
+                                                                 throw bug;
+                                                             }, SMDFileWriter.Durability.NONE, false)));
+            assertEquals(0, count(), "Partial file left behind with atomic=" + atomic);
+        }
+    }
+
+    @Test
+    public void sweepOnlyRemovesOldTempFiles() throws IOException {
+        final long old = System.currentTimeMillis() - SMDFileWriter.ORPHAN_AGE - 1000;
+        final Path orphan = Files.write(dir.resolve(".signal.xml.1" + SMDFileWriter.TEMP_SUFFIX), CONTENT);
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(old));
+        final Path inProgress = Files.write(dir.resolve(".signal.xml.2" + SMDFileWriter.TEMP_SUFFIX), CONTENT);
+        final Path probe = Files.write(dir.resolve(".warm-up.tmp.3" + SMDFileWriter.TEMP_SUFFIX), CONTENT);
+        final Path smd = Files.write(dir.resolve("signal.xml"), CONTENT);
+        Files.setLastModifiedTime(smd, FileTime.fromMillis(old));
+
+        SMDFileWriter.sweepTempFiles(dir, 0);
+
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(inProgress));
+        assertTrue(Files.exists(probe));
+        assertTrue(Files.exists(smd));
+    }
+
+    private long count() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.file;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the {@link WriteLimiter} using writes with injected latency.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class WriteLimiterTest {
+
+    private static final long LATENCY_TARGET = 50;
+
+    @TempDir
+    Path dir;
+
+    private WriteLimiter limiter;
+
+    private final SMDFileWriter fileWriter = new SMDFileWriter(true, SMDFileWriter.Durability.NONE,
+                                                               new DeliveryStatistics());
+
+    @AfterEach
+    public void release() {
+        if (limiter != null)
+            limiter.release();
+    }
+
+    /**
+     * Creates a write that takes the given time to write the content of a file with the given name.
+     */
+    private WriteLimiter.FileWrite write(final String name, final long latency) {
+        return () -> fileWriter.prepare(dir, name, ".xml", os -> {
+                                            try {
+                                                Thread.sleep(latency);
+                                            } catch (InterruptedException interrupted) {
+                                                Thread.currentThread().interrupt();
+                                            }
+                                            os.write(1);
+                                        }, SMDFileWriter.Durability.NONE, false);
+    }
+
+    /**
+     * Creates a write that signals it started and then waits until it may write the content of a file with the given
+     * name.
+     */
+    private WriteLimiter.FileWrite write(final String name, final CountDownLatch started,
+                                         final CountDownLatch proceed) {
+        return () -> fileWriter.prepare(dir, name, ".xml", os -> {
+                                            started.countDown();
+                                            try {
+                                                proceed.await();
+                                            } catch (InterruptedException interrupted) {
+                                                Thread.currentThread().interrupt();
+                                            }
+                                            os.write(1);
+                                        }, SMDFileWriter.Durability.NONE, false);
+    }
+
+    @Test
+    public void slowWritesDecreaseLimit() throws Exception {
+        limiter = WriteLimiter.acquire(dir, 8, LATENCY_TARGET);
+        assertEquals(8, limiter.getLimit());
+
+        limiter.write(write("slow-1", 2 * LATENCY_TARGET), 0);
+        assertEquals(4, limiter.getLimit());
+        limiter.write(write("slow-2", 2 * LATENCY_TARGET), 0);
+        assertEquals(2, limiter.getLimit());
+        limiter.write(write("slow-3", 2 * LATENCY_TARGET), 0);
+        limiter.write(write("slow-4", 2 * LATENCY_TARGET), 0);
+        assertEquals(1, limiter.getLimit(), "Limit must not go below one");
+    }
+
+    @Test
+    public void fastWritesIncreaseLimitWhenUsed() throws Exception {
+        limiter = WriteLimiter.acquire(dir, 4, LATENCY_TARGET);
+        limiter.write(write("slow-1", 2 * LATENCY_TARGET), 0);
+        limiter.write(write("slow-2", 2 * LATENCY_TARGET), 0);
+        assertEquals(1, limiter.getLimit());
+
+        // With a limit of one a single write uses the complete limit, so the limit increases by one
+        limiter.write(write("fast-1", 0), 0);
+        assertEquals(2, limiter.getLimit());
+        // From a limit of 2.5 a single write uses less than half of the limit, so it does not increase further
+        for (int i = 0; i < 10; i++)
+            limiter.write(write("fast-" + (i + 2), 0), 0);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInProgress());
+    }
+
+    @Test
+    public void rejectsWhenLimitReached() throws Exception {
+        limiter = WriteLimiter.acquire(dir, 2, 10 * LATENCY_TARGET);
+        final CountDownLatch writing = new CountDownLatch(2);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Thread[] writers = new Thread[2];
+        for (int i = 0; i < writers.length; i++) {
+            final String name = "blocked-" + i;
+            writers[i] = new Thread(() -> {
+                try {
+                    limiter.write(write(name, writing, proceed), 0);
+                } catch (Exception failure) {
+                    throw new IllegalStateException(failure);
+                }
+            });
+            writers[i].start();
+        }
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        assertThrows(MessageDeliveryException.class, () -> limiter.write(write("rejected", 0), 0));
+        assertEquals(1, limiter.getRejected());
+        assertFalse(Files.exists(dir.resolve("rejected.xml")));
+
+        proceed.countDown();
+        for (Thread t : writers)
+            t.join();
+        assertEquals(0, limiter.getInProgress());
+        assertTrue(Files.exists(limiter.write(write("accepted", 0), 0)));
+    }
+
+    @Test
+    public void lateFileIsDiscarded() throws Exception {
+        limiter = WriteLimiter.acquire(dir, 4, LATENCY_TARGET);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        assertThrows(MessageDeliveryException.class,
+                     () -> limiter.write(write("late", started, proceed), LATENCY_TARGET));
+        assertEquals(1, limiter.getTimedOut());
+        assertEquals(2, limiter.getLimit());
+        // The write still counts against the limit until it completes
+        assertEquals(1, limiter.getInProgress());
+
+        proceed.countDown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter.getInProgress() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, limiter.getInProgress());
+        assertEquals(0, started.getCount());
+        assertEquals(0, count(), "Late file or its temporary file left behind");
+    }
+
+    @Test
+    public void lateFileIsNeverPublished() throws Exception {
+        limiter = WriteLimiter.acquire(dir, 4, LATENCY_TARGET);
+        final AtomicInteger published = new AtomicInteger();
+        final AtomicInteger discarded = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch proceed = new CountDownLatch(1);
+            final WriteLimiter.FileWrite write = write("late", started, proceed);
+            // Record what happens with the written file, the final name only exists once it is published
+            final WriteLimiter.FileWrite recorded = () -> {
+                final SMDFileWriter.PreparedFile prepared = write.prepare();
+                return new SMDFileWriter.PreparedFile() {
+                    @Override
+                    public Path publish() throws IOException {
+                        published.incrementAndGet();
+                        return prepared.publish();
+                    }
+
+                    @Override
+                    public void discard() {
+                        discarded.incrementAndGet();
+                        prepared.discard();
+                    }
+                };
+            };
+            assertThrows(MessageDeliveryException.class, () -> limiter.write(recorded, 1));
+            proceed.countDown();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (limiter.getInProgress() > 0 && System.nanoTime() < deadline)
+                Thread.sleep(1);
+            assertEquals(0, limiter.getInProgress());
+        }
+        assertEquals(0, published.get(), "A file of a timed out write was published");
+        assertEquals(10, discarded.get());
+        assertFalse(Files.exists(dir.resolve("late.xml")));
+        assertEquals(0, count());
+    }
+
+    private long count() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the life cycle of the {@link JournalOperation} and reading the journal it writes.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class JournalOperationTest {
+
+    @TempDir
+    Path dir;
+
+    private Map<String, String> settings() {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("targetDirectory", dir.toString());
+        settings.put("segmentSize", "4096");
+        return settings;
+    }
+
+    private static ISignalMessage signal() {
+        return TestSignals.error(TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    private static ISignalMessage signal(final String msgId) {
+        return TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    @Test
+    public void onlyOneWriterPerDirectory() throws Exception {
+        final JournalOperation first = new JournalOperation();
+        first.init(settings());
+        try {
+            assertThrows(MessageDeliveryException.class, () -> new JournalOperation().init(settings()));
+            first.deliver(signal());
+        } finally {
+            first.shutdown();
+        }
+        // Once closed the journal can be opened again
+        final JournalOperation second = new JournalOperation();
+        second.init(settings());
+        try {
+            second.deliver(signal());
+        } finally {
+            second.shutdown();
+        }
+        try (JournalReader reader = new JournalReader(dir)) {
+            assertEquals(2, reader.poll(reader.getStartOffset(), 10).size());
+        }
+    }
+
+    @Test
+    public void readsAcrossSegments() throws Exception {
+        final Map<String, String> settings = settings();
+        settings.put("durability", "fdatasync");
+        final JournalOperation journal = new JournalOperation();
+        journal.init(settings);
+        try (JournalReader reader = new JournalReader(dir)) {
+            long offset = reader.getEndOffset();
+            int read = 0;
+            for (int i = 0; i < 50; i++) {
+                journal.deliver(signal("segment-" + i));
+                if (i % 7 == 0)
+                    for (JournalRecord r : reader.poll(offset, 5)) {
+                        assertEquals("segment-" + read++, r.getMessageId());
+                        offset = r.getNextOffset();
+                    }
+            }
+            List<JournalRecord> records;
+            while (!(records = reader.poll(offset, 5)).isEmpty())
+                for (JournalRecord r : records) {
+                    assertEquals("segment-" + read++, r.getMessageId());
+                    offset = r.getNextOffset();
+                }
+            assertEquals(50, read);
+            assertEquals(offset, reader.getEndOffset());
+        } finally {
+            journal.shutdown();
+        }
+        // All segments except the last one are closed with the end marker
+        final TreeMap<Long, Path> segments = JournalFormat.listSegments(dir);
+        assertTrue(segments.size() > 2);
+        for (Path segment : segments.headMap(segments.lastKey()).values()) {
+            final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segment));
+            int pos = JournalFormat.SEGMENT_HEADER_SIZE;
+            int size;
+            while ((size = JournalFormat.checkRecord(content, pos, new CRC32())) > 0)
+                pos += size;
+            assertTrue(JournalFormat.isEndOfSegment(content, pos));
+        }
+    }
+
+    @Test
+    public void reopensClosedSegment() throws Exception {
+        final JournalOperation journal = new JournalOperation();
+        journal.init(settings());
+        journal.deliver(signal("closed-1"));
+        journal.shutdown();
+        // Simulate a crash after the segment was closed, but before the new segment was created
+        final long endOffset;
+        try (JournalReader reader = new JournalReader(dir)) {
+            endOffset = reader.getEndOffset();
+        }
+        try (FileChannel ch = FileChannel.open(JournalFormat.listSegments(dir).lastEntry().getValue(),
+                                               StandardOpenOption.WRITE)) {
+            final ByteBuffer marker = ByteBuffer.allocate(4).putInt(0, JournalFormat.END_OF_SEGMENT);
+            ch.write(marker, JournalFormat.SEGMENT_HEADER_SIZE + endOffset);
+        }
+
+        journal.init(settings());
+        try {
+            journal.deliver(signal("closed-2"));
+        } finally {
+            journal.shutdown();
+        }
+        try (JournalReader reader = new JournalReader(dir)) {
+            final List<JournalRecord> records = reader.poll(reader.getStartOffset(), 10);
+            assertEquals(2, records.size());
+            assertEquals("closed-2", records.get(1).getMessageId());
+        }
+    }
+
+    @Test
+    public void reinitKeepsJournalUsable() throws Exception {
+        final JournalOperation journal = new JournalOperation();
+        journal.init(settings());
+        journal.init(settings());
+        try {
+            journal.deliver(signal());
+        } finally {
+            journal.shutdown();
+        }
+    }
+
+    @Test
+    public void deliverAfterShutdownFails() throws Exception {
+        final JournalOperation journal = new JournalOperation();
+        assertThrows(MessageDeliveryException.class, () -> journal.deliver(signal()));
+        journal.init(settings());
+        journal.shutdown();
+        assertThrows(MessageDeliveryException.class, () -> journal.deliver(signal()));
+        // Shutting down again must be harmless
+        journal.shutdown();
+    }
+}
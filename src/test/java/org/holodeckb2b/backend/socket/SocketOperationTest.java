@@ -0,0 +1,285 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.backend.socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.holodeckb2b.delivery.signals.utils.TestSignals;
+import org.holodeckb2b.interfaces.delivery.IDeliveryCallback;
+import org.holodeckb2b.interfaces.delivery.MessageDeliveryException;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link SocketOperation} against the {@link SMDReceiver} as stand-in for the back-end, using a TCP
+ * connection on the loopback interface.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class SocketOperationTest {
+
+    private String              address;
+    private SocketOperation     deliveryMethod;
+    private SMDReceiver         receiver;
+    private final List<String>  received = new CopyOnWriteArrayList<>();
+    private ServerSocket        silentBackend;
+    private volatile Socket     silentConnection;
+
+    @BeforeEach
+    public void selectPort() throws IOException {
+        try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            address = "tcp:" + free.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        if (deliveryMethod != null)
+            deliveryMethod.shutdown();
+        if (receiver != null)
+            receiver.close();
+        if (silentConnection != null)
+            silentConnection.close();
+        if (silentBackend != null)
+            silentBackend.close();
+    }
+
+    private void startReceiver() throws IOException {
+        receiver = new SMDReceiver(address, (type, format, smd) ->
+                                    received.add(type + "/" + format + "/" + new String(smd, StandardCharsets.UTF_8)));
+    }
+
+    private void startDeliveryMethod(final long ackTimeout) throws MessageDeliveryException {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("address", address);
+        settings.put("ackTimeout", Long.toString(ackTimeout));
+        settings.put("reconnectInterval", "20");
+        deliveryMethod = new SocketOperation();
+        deliveryMethod.init(settings);
+    }
+
+    private static ISignalMessage signal(final String msgId) {
+        return TestSignals.error(msgId, TestSignals.REF_TO_MESSAGE_ID,
+                                 TestSignals.ebmsError("Content", "EBMS:0004", "ebMS", IEbmsError.Severity.failure,
+                                                       "Other", null, null, null));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        startReceiver();
+        startDeliveryMethod(5000);
+
+        deliveryMethod.deliver(signal("round-trip-1"));
+        deliveryMethod.deliver(signal("round-trip-2"));
+
+        assertEquals(2, received.size());
+        assertTrue(received.get(0).startsWith("error/xml/"));
+        assertTrue(received.get(0).contains("round-trip-1"));
+        assertTrue(received.get(1).contains("round-trip-2"));
+        assertEquals(0, deliveryMethod.getPending());
+        assertTrue(deliveryMethod.isConnected());
+    }
+
+    @Test
+    public void resendsAfterReconnect() throws Exception {
+        // The back-end is not available yet, so the SMD is buffered
+        startDeliveryMethod(5000);
+        final Result first = new Result();
+        deliveryMethod.deliver(signal("buffered-1"), first);
+        assertFalse(deliveryMethod.isConnected());
+
+        startReceiver();
+        first.assertSuccess();
+        assertEquals(1, received.size());
+
+        // Lose the connection and send while the back-end is down
+        receiver.close();
+        awaitDisconnected();
+        final Result second = new Result();
+        deliveryMethod.deliver(signal("resent-1"), second);
+        assertEquals(1, deliveryMethod.getPending());
+
+        startReceiver();
+        second.assertSuccess();
+        assertEquals(2, received.size());
+        assertTrue(received.get(1).contains("resent-1"));
+    }
+
+    @Test
+    public void rejectedByBackend() throws Exception {
+        receiver = new SMDReceiver(address, (type, format, smd) -> {
+            throw new IllegalStateException("Cannot process");
+        });
+        startDeliveryMethod(5000);
+
+        assertThrows(MessageDeliveryException.class, () -> deliveryMethod.deliver(signal("rejected-1")));
+        assertEquals(0, deliveryMethod.getPending());
+    }
+
+    @Test
+    public void failsWhenNotAcknowledgedInTime() throws Exception {
+        startSilentBackend();
+        startDeliveryMethod(200);
+
+        final long start = System.nanoTime();
+        assertThrows(MessageDeliveryException.class, () -> deliveryMethod.deliver(signal("no-ack-1")));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertEquals(0, deliveryMethod.getPending());
+    }
+
+    @Test
+    public void asyncFailsWhenNotAcknowledgedInTime() throws Exception {
+        startSilentBackend();
+        startDeliveryMethod(200);
+
+        final Result result = new Result();
+        deliveryMethod.deliver(signal("no-ack-async-1"), result);
+        result.assertFailure();
+        assertEquals(0, deliveryMethod.getPending());
+    }
+
+    @Test
+    public void blockedWriteIsEnded() throws Exception {
+        startSilentBackend();
+        final StreamConnection connection = new StreamConnection(StreamProtocol.parseAddress(address), 10, 20,
+                                                                 200);
+        try {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!connection.isConnected() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(connection.isConnected());
+
+            // A frame far larger than the socket buffers, which cannot be written as the back-end does not read
+            final Result result = new Result();
+            final long start = System.nanoTime();
+            connection.send(ByteBuffer.allocate(64 * 1024 * 1024), result, 200);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+            result.assertFailure();
+            assertEquals(0, connection.getPending());
+        } finally {
+            connection.close(100);
+        }
+    }
+
+    @Test
+    public void initAgainClosesConnection() throws Exception {
+        startReceiver();
+        startDeliveryMethod(5000);
+        deliveryMethod.deliver(signal("first-init-1"));
+
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("address", address);
+        deliveryMethod.init(settings);
+        deliveryMethod.deliver(signal("second-init-1"));
+        assertEquals(2, received.size());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (countThreads("smd-stream-connector") > 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, countThreads("smd-stream-connector"));
+    }
+
+    @Test
+    public void deliverAfterShutdownFails() throws Exception {
+        startDeliveryMethod(5000);
+        deliveryMethod.shutdown();
+        assertThrows(MessageDeliveryException.class, () -> deliveryMethod.deliver(signal("closed-1")));
+        assertThrows(MessageDeliveryException.class, () -> deliveryMethod.deliver(signal("closed-2"), new Result()));
+    }
+
+    /**
+     * Starts a back-end that accepts one connection but never reads from it.
+     */
+    private void startSilentBackend() throws IOException {
+        final ServerSocket server = new ServerSocket(Integer.parseInt(address.substring(4)), 1,
+                                                     InetAddress.getLoopbackAddress());
+        silentBackend = server;
+        final Thread acceptor = new Thread(() -> {
+            try {
+                silentConnection = server.accept();
+            } catch (IOException closed) {
+                // Test ended
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static int countThreads(final String name) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (name.equals(t.getName()) && t.isAlive())
+                count++;
+        return count;
+    }
+
+    private void awaitDisconnected() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (deliveryMethod.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(deliveryMethod.isConnected());
+    }
+
+    /**
+     * Records the result of an asynchronous delivery
+     */
+    private static final class Result implements IDeliveryCallback {
+        private final CountDownLatch                            done = new CountDownLatch(1);
+        private final AtomicReference<MessageDeliveryException> failure = new AtomicReference<>();
+
+        @Override
+        public void success() {
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final MessageDeliveryException failure) {
+            this.failure.set(failure);
+            done.countDown();
+        }
+
+        void assertSuccess() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS), "No result reported");
+            assertNull(failure.get());
+        }
+
+        void assertFailure() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS), "No result reported");
+            assertNotNull(failure.get());
+        }
+    }
+}
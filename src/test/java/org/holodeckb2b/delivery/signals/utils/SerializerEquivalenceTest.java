@@ -0,0 +1,188 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import static org.holodeckb2b.delivery.signals.utils.TestSignals.ebmsError;
+import static org.holodeckb2b.delivery.signals.utils.TestSignals.error;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError.Severity;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.ISignalMessage;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Checks that the {@link StAXSerializer} writes the same SMD documents as the {@link JAXBSerializer}. The documents for
+ * Errors must be byte for byte identical. For Receipts the documents must be equivalent XML, because the streaming
+ * serializer does not re-indent the Receipt content and may declare its namespaces on other elements. The time stamps,
+ * which are formatted directly by the streaming serializer, must be identical to the ones of the calendar used before.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public class SerializerEquivalenceTest {
+
+    /**
+     * The files in the corpus containing the Receipt content
+     */
+    private static final String[] RECEIPT_CORPUS = { "receipt-user-message.xml", "receipt-nrr.xml",
+                                                     "receipt-multiple.xml" };
+
+    /**
+     * The time stamps to check the formatting of, including years with more than four digits, dates before the start
+     * of the Gregorian calendar and before the common era and dates on which the time zones used an offset in seconds
+     */
+    private static final long[] TIMESTAMP_CORPUS = { TestSignals.TIMESTAMP.getTime(), 0L, 1L, -1L, 999L,
+                                                     -2208988800000L, -1640995200000L, -12219292800001L,
+                                                     -12219292800000L, -62135596800000L, -62135596800001L,
+                                                     -62198755200000L, -65000000000000L, 253402300799999L,
+                                                     253402300800000L, 327000000000000L };
+    /**
+     * The time zones to check the formatting in, of which Europe/Amsterdam and Europe/Dublin used offsets in seconds
+     * in the early 20th century
+     */
+    private static final String[] TIMESTAMP_ZONES = { "UTC", "Europe/Amsterdam", "Europe/Dublin", "America/New_York",
+                                                      "Asia/Kolkata", "Pacific/Chatham" };
+
+    private static List<IErrorMessage> errorCorpus() {
+        return Arrays.asList(
+            // One error with all values
+            error(ebmsError("Content", "EBMS:0004", "ebMS", Severity.failure, "Other", "Something went wrong",
+                            "Extended description of the error", "en")),
+            // Errors with optional values missing
+            error(ebmsError(null, "EBMS:0001", null, Severity.warning, "ValueNotRecognized", null, null, null),
+                  ebmsError("Communication", "EBMS:0005", null, Severity.failure, "ConnectionFailure", null,
+                            "Only a description", "en"),
+                  ebmsError("Processing", "EBMS:0003", "security", Severity.failure, "ValueInconsistent",
+                            "Only the detail", null, null),
+                  ebmsError("Content", "EBMS:0002", "ebMS", Severity.failure, "FeatureNotSupported", null,
+                            "Description without language", null),
+                  ebmsError("Content", "EBMS:0006", "ebMS", Severity.warning, "EmptyMessagePartitionChannel", null,
+                            "", "en")),
+            // Characters that must be escaped and characters outside ASCII
+            error("msg<&>\"1\"@example.org", "ref 'ä' & \"ö\"@example.org",
+                  ebmsError("Content & <Processing>", "EBMS:0004", "\"ebMS\" & 'more'", Severity.failure,
+                            "Value \"x\" & <y> isn't valid", "Detail with & < > \" ' and Ünïcödé – €",
+                            "Beschrijving met \"tekens\" & <elementen> – ç", "nl")));
+    }
+
+    @Test
+    public void errorsAreIdentical() throws Exception {
+        for (boolean formatted : new boolean[] { true, false })
+            for (IErrorMessage signal : errorCorpus()) {
+                final String jaxb = new String(write(new JAXBSerializer(false, new MarshallerPool(1, formatted)),
+                                                     signal), StandardCharsets.UTF_8);
+                final String stax = new String(write(new StAXSerializer(false, formatted), signal),
+                                               StandardCharsets.UTF_8);
+                assertEquals(jaxb, stax, "Error " + signal.getMessageId() + ", formatted=" + formatted);
+            }
+    }
+
+    @Test
+    public void receiptsAreEquivalent() throws Exception {
+        for (String corpusFile : RECEIPT_CORPUS)
+            for (boolean includeContent : new boolean[] { true, false })
+                for (boolean formatted : new boolean[] { true, false }) {
+                    final ISignalMessage signal = TestSignals.receipt(TestSignals.receiptContent(corpusFile));
+                    final byte[] jaxb = write(new JAXBSerializer(includeContent, new MarshallerPool(1, formatted)),
+                                              signal);
+                    final byte[] stax = write(new StAXSerializer(includeContent, formatted), signal);
+                    assertEquals(canonical(jaxb), canonical(stax), corpusFile + ", includeContent=" + includeContent
+                                                                   + ", formatted=" + formatted);
+                }
+    }
+
+    @Test
+    public void timestampsAreIdentical() throws Exception {
+        final TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zone : TIMESTAMP_ZONES) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                for (long time : TIMESTAMP_CORPUS) {
+                    final Date date = new Date(time);
+                    final GregorianCalendar c = new GregorianCalendar();
+                    c.setTime(date);
+                    final String expected = DatatypeFactory.newInstance().newXMLGregorianCalendar(c).toXMLFormat();
+                    assertEquals(expected, SMDFactory.formatDate(date), zone + ", " + time);
+                    assertEquals(expected, SMDFactory.convertDate(date).toXMLFormat(), zone + ", " + time);
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    private static <T> byte[] write(final ISMDSerializer<T> serializer, final ISignalMessage signal)
+                                                                                                throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.write(serializer.createSMD(signal), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a canonical representation of the XML document that only contains the elements, attributes and text,
+     * i.e. without the namespace prefixes and declarations, comments and whitespace only text.
+     */
+    private static String canonical(final byte[] document) throws Exception {
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        final Element root = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(document)).getDocumentElement();
+        final StringBuilder sb = new StringBuilder();
+        canonical(root, 0, sb);
+        return sb.toString();
+    }
+
+    private static void canonical(final Element e, final int level, final StringBuilder sb) {
+        for (int i = 0; i < level; i++)
+            sb.append("  ");
+        sb.append('{').append(e.getNamespaceURI() != null ? e.getNamespaceURI() : "").append('}')
+          .append(e.getLocalName());
+        final TreeSet<String> attrs = new TreeSet<>();
+        final NamedNodeMap attrNodes = e.getAttributes();
+        for (int i = 0; i < attrNodes.getLength(); i++) {
+            final Attr a = (Attr) attrNodes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI()))
+                attrs.add(" {" + (a.getNamespaceURI() != null ? a.getNamespaceURI() : "") + '}' + a.getLocalName()
+                          + "=\"" + a.getValue() + '"');
+        }
+        attrs.forEach(sb::append);
+        sb.append('\n');
+        for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling())
+            if (n.getNodeType() == Node.ELEMENT_NODE)
+                canonical((Element) n, level + 1, sb);
+            else if (n.getNodeType() == Node.TEXT_NODE && !n.getNodeValue().trim().isEmpty()) {
+                for (int i = 0; i <= level; i++)
+                    sb.append("  ");
+                sb.append('"').append(n.getNodeValue()).append("\"\n");
+            }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright 2023 The Holodeck B2B Team, Sander Fieten
+*
+* Licensed under the EUPL, Version 1.1 or – as soon they will be approved by the European Commission - subsequent
+* versions of the EUPL (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at: https://joinup.ec.europa.eu/software/page/eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on
+* an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+package org.holodeckb2b.delivery.signals.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.holodeckb2b.interfaces.general.IDescription;
+import org.holodeckb2b.interfaces.messagemodel.IEbmsError;
+import org.holodeckb2b.interfaces.messagemodel.IErrorMessage;
+import org.holodeckb2b.interfaces.messagemodel.IReceipt;
+
+/**
+ * Creates the Signals used in the tests. Like the fixtures of the benchmarks the message model objects are dynamic
+ * proxies that only return values for the properties used when creating the SMD. The content of the Receipts is read
+ * from the XML files in the <code>smd-corpus</code> test resources directory.
+ *
+ * @author Sander Fieten <sander at holodeck-b2b.org>
+ * @since 2.1.0
+ */
+public final class TestSignals {
+
+    public static final String MESSAGE_ID = "c3a4e2d0-5b1f-4e8a-9c7d-2f6e8a1b3c5d@receiver.example.org";
+    public static final String REF_TO_MESSAGE_ID = "8fa3c2e1-77b0-4d3a-9d0a-3c5a6b7e1f20@sender.example.org";
+    public static final Date TIMESTAMP = new Date(1685614530123L);
+
+    private TestSignals() {}
+
+    /**
+     * Creates an Error Signal with the default message info containing the given errors.
+     *
+     * @param errors    The errors to include
+     * @return          The Error Signal
+     */
+    public static IErrorMessage error(final IEbmsError... errors) {
+        return error(MESSAGE_ID, REF_TO_MESSAGE_ID, errors);
+    }
+
+    /**
+     * Creates an Error Signal containing the given errors.
+     *
+     * @param msgId         The message id of the Signal
+     * @param refToMsgId    The message id the Signal refers to
+     * @param errors        The errors to include
+     * @return              The Error Signal
+     */
+    public static IErrorMessage error(final String msgId, final String refToMsgId, final IEbmsError... errors) {
+        final Map<String, Object> sig = signalProperties(msgId, refToMsgId);
+        sig.put("getErrors", Arrays.asList(errors));
+        return proxy(IErrorMessage.class, sig);
+    }
+
+    /**
+     * Creates an ebMS error. All values are optional.
+     *
+     * @param category      The category of the error
+     * @param errorCode     The error code
+     * @param origin        The origin of the error
+     * @param severity      The severity of the error
+     * @param message       The short description of the error
+     * @param detail        The error detail
+     * @param description   The text of the description
+     * @param lang          The language of the description
+     * @return              The error
+     */
+    public static IEbmsError ebmsError(final String category, final String errorCode, final String origin,
+                                       final IEbmsError.Severity severity, final String message, final String detail,
+                                       final String description, final String lang) {
+        final Map<String, Object> e = new HashMap<>();
+        e.put("getCategory", category);
+        e.put("getErrorCode", errorCode);
+        e.put("getOrigin", origin);
+        e.put("getSeverity", severity);
+        e.put("getMessage", message);
+        e.put("getErrorDetail", detail);
+        if (description != null) {
+            final Map<String, Object> d = new HashMap<>();
+            d.put("getText", description);
+            d.put("getLanguage", lang);
+            e.put("getDescription", proxy(IDescription.class, d));
+        }
+        return proxy(IEbmsError.class, e);
+    }
+
+    /**
+     * Creates a Receipt Signal with the default message info and the given content.
+     *
+     * @param content   The content of the Receipt
+     * @return          The Receipt Signal
+     */
+    public static IReceipt receipt(final List<OMElement> content) {
+        return receipt(MESSAGE_ID, REF_TO_MESSAGE_ID, content);
+    }
+
+    /**
+     * Creates a Receipt Signal with the given content.
+     *
+     * @param msgId         The message id of the Signal
+     * @param refToMsgId    The message id the Signal refers to
+     * @param content       The content of the Receipt
+     * @return              The Receipt Signal
+     */
+    public static IReceipt receipt(final String msgId, final String refToMsgId, final List<OMElement> content) {
+        final Map<String, Object> sig = signalProperties(msgId, refToMsgId);
+        sig.put("getContent", content);
+        return proxy(IReceipt.class, sig);
+    }
+
+    /**
+     * Reads the Receipt content from the given file of the corpus. The child elements of the root element of the file
+     * are the content of the Receipt.
+     *
+     * @param name  The name of the file in the <code>smd-corpus</code> directory
+     * @return      The Receipt content
+     * @throws IOException When the file could not be read
+     */
+    public static List<OMElement> receiptContent(final String name) throws IOException {
+        try (InputStream is = TestSignals.class.getResourceAsStream("/smd-corpus/" + name)) {
+            if (is == null)
+                throw new IOException("Corpus file " + name + " not found");
+            final OMElement root = OMXMLBuilderFactory.createOMBuilder(is).getDocumentElement();
+            root.build();
+            final List<OMElement> content = new ArrayList<>();
+            for (Iterator<?> it = root.getChildElements(); it.hasNext();)
+                content.add((OMElement) it.next());
+            for (OMElement e : content)
+                e.detach();
+            return content;
+        }
+    }
+
+    private static Map<String, Object> signalProperties(final String msgId, final String refToMsgId) {
+        final Map<String, Object> sig = new HashMap<>();
+        sig.put("getMessageId", msgId);
+        sig.put("getRefToMessageId", refToMsgId);
+        sig.put("getTimestamp", TIMESTAMP);
+        return sig;
+    }
+
+    /**
+     * Creates a proxy implementing the given interface that returns the value from the given map for each method,
+     * using the method name as key. For methods without a value <code>null</code> or zero is returned.
+     */
+    private static <T> T proxy(final Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(TestSignals.class.getClassLoader(), new Class<?>[] { type },
+            (p, m, args) -> {
+                switch (m.getName()) {
+                case "equals" :
+                    return p == args[0];
+                case "hashCode" :
+                    return System.identityHashCode(p);
+                case "toString" :
+                    return type.getSimpleName() + values;
+                default:
+                }
+                final Object v = values.get(m.getName());
+                final Class<?> rt = m.getReturnType();
+                if (v != null || !rt.isPrimitive() || rt == void.class)
+                    return v;
+                else if (rt == boolean.class)
+                    return Boolean.FALSE;
+                else if (rt == long.class)
+                    return 0L;
+                else
+                    return 0;
+            }));
+    }
+}